@@ -0,0 +1,155 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Static facts about one function that the compiling engines need: a slot number for every
+ * variable symbol (parameters first, then body declarations, then any other assigned name), the
+ * size of the body and whether the body evaluates to unit.
+ *
+ * Engines built on a layout keep variables in an int[] indexed by slot, so every name in the
+ * layout starts out as 0 instead of being undefined, and unit values read inside an expression
+ * count as 0. Only a function's own result is reported as null when its body ends in a unit
+ * expression, which is what {@link SimpleLangInterpreter} prints for it.
+ */
+public final class FunctionLayout {
+
+    final int symbol;
+    final String name;
+    final SimpleLangParser.DecContext dec;
+    // The symbols of the parameters, in order
+    final int[] params;
+    final SimpleLangSymbols.SymbolMap<Integer> slots = new SimpleLangSymbols.SymbolMap<>();
+    // The symbol held in each slot
+    private int[] slotSymbols = new int[8];
+    // The symbols of the called functions, without repeats
+    final int[] callees;
+    final int size;
+    boolean returnsUnit;
+
+    private FunctionLayout(SimpleLangParser.DecContext dec) {
+        this.dec = dec;
+        this.symbol = SimpleLangSymbols.of(dec.typed_idfr(0).Idfr());
+        this.name = SimpleLangSymbols.name(symbol);
+        this.params = new int[dec.vardec.size()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = SimpleLangSymbols.of(dec.vardec.get(i).Idfr());
+            addSlot(params[i]);
+        }
+        for (SimpleLangParser.Init_exprContext init : dec.body().vardec) {
+            addSlot(SimpleLangSymbols.of(((SimpleLangParser.InitExprContext) init).typed_idfr().Idfr()));
+        }
+        SimpleLangSymbols.SymbolMap<Boolean> called = new SimpleLangSymbols.SymbolMap<>();
+        this.size = collect(dec.body(), called);
+        this.callees = called.keys();
+    }
+
+    private void addSlot(int varSymbol) {
+        if (!slots.containsKey(varSymbol)) {
+            int slot = slots.size();
+            if (slot == slotSymbols.length) {
+                slotSymbols = Arrays.copyOf(slotSymbols, 2 * slot);
+            }
+            slotSymbols[slot] = varSymbol;
+            slots.put(varSymbol, slot);
+        }
+    }
+
+    // Adds every assigned name to the slot table, notes every called name and returns the number
+    // of expressions visited
+    private int collect(ParseTree tree, SimpleLangSymbols.SymbolMap<Boolean> called) {
+        int count = 0;
+        if (tree instanceof SimpleLangParser.AssignExprContext assign) {
+            addSlot(SimpleLangSymbols.of(assign.Idfr()));
+        } else if (tree instanceof SimpleLangParser.InvokeExprContext invoke) {
+            called.put(SimpleLangSymbols.of(invoke.Idfr()), Boolean.TRUE);
+        }
+        if (tree instanceof SimpleLangParser.ExpContext) {
+            count++;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            count += collect(tree.getChild(i), called);
+        }
+        return count;
+    }
+
+    int slot(int varSymbol) {
+        Integer slot = slots.get(varSymbol);
+        return slot == null ? -1 : slot;
+    }
+
+    int slot(TerminalNode idfr) {
+        return slot(SimpleLangSymbols.of(idfr));
+    }
+
+    // The symbol of the variable in a slot
+    int symbolAt(int slot) {
+        return slotSymbols[slot];
+    }
+
+    int frameSize() {
+        return slots.size();
+    }
+
+    static SimpleLangSymbols.SymbolMap<FunctionLayout> of(SimpleLangParser.ProgContext prog) {
+        SimpleLangSymbols.SymbolMap<FunctionLayout> layouts = new SimpleLangSymbols.SymbolMap<>(prog.dec().size());
+        for (SimpleLangParser.DecContext dec : prog.dec()) {
+            FunctionLayout layout = of(dec);
+            layouts.put(layout.symbol, layout);
+        }
+        resolveUnits(layouts.values(), layouts);
+        return layouts;
+    }
+
+    // A layout whose returnsUnit is only known after resolveUnits
+    static FunctionLayout of(SimpleLangParser.DecContext dec) {
+        return new FunctionLayout(dec);
+    }
+
+    /**
+     * Works out returnsUnit for the given layouts, taking it as settled for every other layout in
+     * layouts. Unit results flow through calls, so this iterates until no function changes.
+     */
+    static void resolveUnits(Collection<FunctionLayout> unresolved, SimpleLangSymbols.SymbolMap<FunctionLayout> layouts) {
+        for (FunctionLayout layout : unresolved) {
+            layout.returnsUnit = false;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunctionLayout layout : unresolved) {
+                if (!layout.returnsUnit && isUnit(layout.dec.body().ene(), layouts)) {
+                    layout.returnsUnit = true;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    static boolean isUnit(SimpleLangParser.EneContext ene, SimpleLangSymbols.SymbolMap<FunctionLayout> layouts) {
+        List<SimpleLangParser.ExpContext> exps = ene.exp();
+        return isUnit(exps.get(exps.size() - 1), layouts);
+    }
+
+    // Mirrors which expressions SimpleLangInterpreter evaluates to null
+    static boolean isUnit(SimpleLangParser.ExpContext exp, SimpleLangSymbols.SymbolMap<FunctionLayout> layouts) {
+        if (exp instanceof SimpleLangParser.WhileExprContext
+                || exp instanceof SimpleLangParser.RepeatExprContext
+                || exp instanceof SimpleLangParser.PrintExprContext
+                || exp instanceof SimpleLangParser.SpaceExprContext
+                || exp instanceof SimpleLangParser.NewLineExprContext) {
+            return true;
+        } else if (exp instanceof SimpleLangParser.BlockExprContext block) {
+            return isUnit(block.block().ene(), layouts);
+        } else if (exp instanceof SimpleLangParser.IfExprContext ifExpr) {
+            return isUnit(ifExpr.block(0).ene(), layouts) && isUnit(ifExpr.block(1).ene(), layouts);
+        } else if (exp instanceof SimpleLangParser.AssignExprContext assign) {
+            return isUnit(assign.exp(), layouts);
+        } else if (exp instanceof SimpleLangParser.InvokeExprContext invoke) {
+            FunctionLayout callee = layouts.get(SimpleLangSymbols.of(invoke.Idfr()));
+            return callee != null && callee.returnsUnit;
+        }
+        return false;
+    }
+}
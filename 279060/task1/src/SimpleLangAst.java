@@ -0,0 +1,774 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+
+/**
+ * The executable tree run by {@link SimpleLangAstEngine}, built by {@link SimpleLangAstBuilder}.
+ *
+ * Nodes start out generic and replace themselves in their parent with a specialised version the
+ * first time they run: variable accesses resolve their name to a frame slot, calls bind to their
+ * target function, operations with a literal operand fold it into the node, and if nodes that
+ * have only ever seen one side stop testing for the other until it turns up. Specialised nodes
+ * go back to a general form themselves if what they assumed stops holding.
+ */
+final class SimpleLangAst {
+
+    // Executions of an if before a branch that was never taken is dropped
+    static final int SPECULATE_AFTER = 100;
+
+    private SimpleLangAst() {
+    }
+
+    abstract static class Node {
+
+        volatile Node parent;
+        // What took this node's place, or the place it lost to; guarded by the parent
+        Node replacement;
+
+        abstract int execute(int[] frame);
+
+        // Conditions of if and while, so comparisons can skip materialising 0 or 1
+        boolean executeCondition(int[] frame) {
+            return execute(frame) > 0;
+        }
+
+        // Makes this node the parent of each of its children, and with deep, of every node below it
+        void adoptChildren(boolean deep) {
+        }
+
+        // A child that was rewritten is adopted in the form it was rewritten to
+        final Node adopt(Node child, boolean deep) {
+            while (child.replacement != null) {
+                child = child.replacement;
+            }
+            child.parent = this;
+            if (deep) {
+                child.adoptChildren(true);
+            }
+            return child;
+        }
+
+        void replaceChild(Node oldChild, Node newChild) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has no children");
+        }
+
+        // Runs sharing a program can race to rewrite the same node. Rewrites of a parent's
+        // children are serialised on the parent and only the first one goes into the tree; a
+        // node that lost keeps running detached, and gives the same results as the one that won.
+        // Only the winner adopts its children, holding this node's lock so that none of them is
+        // rewritten into this node meanwhile. If the parent is itself rewritten first, its
+        // replacement adopts this node, and the rewrite goes into the replacement instead
+        final <T extends Node> T replace(T newNode) {
+            while (true) {
+                Node owner = parent;
+                synchronized (owner) {
+                    if (parent != owner) {
+                        continue;
+                    }
+                    newNode.parent = owner;
+                    if (replacement != null) {
+                        newNode.replacement = replacement;
+                        return newNode;
+                    }
+                    synchronized (this) {
+                        newNode.adoptChildren(false);
+                        owner.replaceChild(this, newNode);
+                        replacement = newNode;
+                    }
+                    return newNode;
+                }
+            }
+        }
+    }
+
+    static final class Program {
+
+        final SimpleLangSymbols.SymbolMap<Function> functions = new SimpleLangSymbols.SymbolMap<>();
+
+        Function function(int symbol) {
+            Function function = functions.get(symbol);
+            if (function == null) {
+                throw new RuntimeException("Undefined function: " + SimpleLangSymbols.name(symbol));
+            }
+            return function;
+        }
+    }
+
+    // The root of one function's tree, also holding the layout of its frame
+    static final class Function extends Node {
+
+        final String name;
+        final SimpleLangSymbols.SymbolMap<Integer> slots = new SimpleLangSymbols.SymbolMap<>();
+        final int[] paramSlots;
+        volatile Node body;
+        boolean returnsUnit;
+
+        Function(int symbol, int[] params) {
+            this.name = SimpleLangSymbols.name(symbol);
+            this.paramSlots = new int[params.length];
+            for (int i = 0; i < paramSlots.length; i++) {
+                paramSlots[i] = slotFor(params[i]);
+            }
+        }
+
+        int slotFor(int varSymbol) {
+            Integer slot = slots.get(varSymbol);
+            if (slot == null) {
+                slot = slots.size();
+                slots.put(varSymbol, slot);
+            }
+            return slot;
+        }
+
+        int frameSize() {
+            return slots.size();
+        }
+
+        Integer call(int[] args) {
+            int[] frame = new int[frameSize()];
+            for (int i = 0; i < args.length; i++) {
+                frame[paramSlots[i]] = args[i];
+            }
+            int result = body.execute(frame);
+            return returnsUnit ? null : result;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return body.execute(frame);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            body = adopt(body, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+
+    static final class IntLiteral extends Node {
+
+        final int value;
+
+        IntLiteral(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return value;
+        }
+    }
+
+    static final class UnresolvedRead extends Node {
+
+        final Function function;
+        final int symbol;
+
+        UnresolvedRead(Function function, int symbol) {
+            this.function = function;
+            this.symbol = symbol;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            Integer slot = function.slots.get(symbol);
+            if (slot == null) {
+                throw new RuntimeException("Undefined variable: " + SimpleLangSymbols.name(symbol) + " in current frame.");
+            }
+            return replace(new SlotRead(slot)).execute(frame);
+        }
+    }
+
+    static final class SlotRead extends Node {
+
+        final int slot;
+
+        SlotRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return frame[slot];
+        }
+    }
+
+    static final class UnresolvedWrite extends Node {
+
+        final Function function;
+        final int symbol;
+        volatile Node value;
+
+        UnresolvedWrite(Function function, int symbol, Node value) {
+            this.function = function;
+            this.symbol = symbol;
+            this.value = value;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return replace(new SlotWrite(function.slots.get(symbol), value, false)).execute(frame);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            value = adopt(value, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = newChild;
+        }
+    }
+
+    static final class SlotWrite extends Node {
+
+        final int slot;
+        final boolean checkBool;
+        final String name;
+        volatile Node value;
+
+        SlotWrite(int slot, Node value, boolean checkBool) {
+            this(slot, value, checkBool, null);
+        }
+
+        // Declarations of bool variables check their initial value as SimpleLangInterpreter does
+        SlotWrite(int slot, Node value, boolean checkBool, String name) {
+            this.slot = slot;
+            this.value = value;
+            this.checkBool = checkBool;
+            this.name = name;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            int v = value.execute(frame);
+            if (checkBool && v != 0 && v != 1) {
+                throw new RuntimeException("Type mismatch: Expected bool for " + name);
+            }
+            return frame[slot] = v;
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            value = adopt(value, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = newChild;
+        }
+    }
+
+    static final class UninitializedBinOp extends Node {
+
+        final int op;
+        volatile Node left;
+        volatile Node right;
+
+        UninitializedBinOp(int op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return specialize().execute(frame);
+        }
+
+        @Override
+        boolean executeCondition(int[] frame) {
+            return specialize().executeCondition(frame);
+        }
+
+        private Node specialize() {
+            if (right instanceof IntLiteral literal && !(op == SimpleLangParser.Divide && literal.value == 0)) {
+                return replace(new ConstantBinOp(op, left, literal.value));
+            } else if (left instanceof IntLiteral literal && mirror(op) >= 0) {
+                return replace(new ConstantBinOp(mirror(op), right, literal.value));
+            }
+            return replace(new GenericBinOp(op, left, right));
+        }
+
+        // The operator that gives the same result with the operands swapped, or -1
+        private static int mirror(int op) {
+            return switch (op) {
+                case SimpleLangParser.Plus, SimpleLangParser.Times, SimpleLangParser.Eq,
+                        SimpleLangParser.And, SimpleLangParser.Or -> op;
+                case SimpleLangParser.Less -> SimpleLangParser.Great;
+                case SimpleLangParser.LessEq -> SimpleLangParser.GreatEq;
+                case SimpleLangParser.Great -> SimpleLangParser.Less;
+                case SimpleLangParser.GreatEq -> SimpleLangParser.LessEq;
+                default -> -1;
+            };
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            left = adopt(left, deep);
+            right = adopt(right, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) {
+                left = newChild;
+            } else if (right == oldChild) {
+                right = newChild;
+            }
+        }
+    }
+
+    static final class GenericBinOp extends Node {
+
+        final int op;
+        volatile Node left;
+        volatile Node right;
+
+        GenericBinOp(int op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            int oprnd1 = left.execute(frame);
+            return apply(op, oprnd1, right.execute(frame));
+        }
+
+        @Override
+        boolean executeCondition(int[] frame) {
+            int oprnd1 = left.execute(frame);
+            return test(op, oprnd1, right.execute(frame));
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            left = adopt(left, deep);
+            right = adopt(right, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) {
+                left = newChild;
+            } else if (right == oldChild) {
+                right = newChild;
+            }
+        }
+    }
+
+    // A binary operation whose other operand is a literal, folded into the node
+    static final class ConstantBinOp extends Node {
+
+        final int op;
+        final int constant;
+        volatile Node operand;
+
+        ConstantBinOp(int op, Node operand, int constant) {
+            this.op = op;
+            this.operand = operand;
+            this.constant = constant;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            return apply(op, operand.execute(frame), constant);
+        }
+
+        @Override
+        boolean executeCondition(int[] frame) {
+            return test(op, operand.execute(frame), constant);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            operand = adopt(operand, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            operand = newChild;
+        }
+    }
+
+    static int apply(int op, int oprnd1, int oprnd2) {
+        return switch (op) {
+            case SimpleLangParser.Plus -> oprnd1 + oprnd2;
+            case SimpleLangParser.Minus -> oprnd1 - oprnd2;
+            case SimpleLangParser.Times -> oprnd1 * oprnd2;
+            case SimpleLangParser.Divide -> {
+                if (oprnd2 == 0) {
+                    throw new RuntimeException("Division by zero.");
+                }
+                yield oprnd1 / oprnd2;
+            }
+            case SimpleLangParser.And -> oprnd1 & oprnd2;
+            case SimpleLangParser.Or -> oprnd1 | oprnd2;
+            default -> test(op, oprnd1, oprnd2) ? 1 : 0;
+        };
+    }
+
+    static boolean test(int op, int oprnd1, int oprnd2) {
+        return switch (op) {
+            case SimpleLangParser.Eq -> oprnd1 == oprnd2;
+            case SimpleLangParser.Less -> oprnd1 < oprnd2;
+            case SimpleLangParser.Great -> oprnd1 > oprnd2;
+            case SimpleLangParser.LessEq -> oprnd1 <= oprnd2;
+            case SimpleLangParser.GreatEq -> oprnd1 >= oprnd2;
+            case SimpleLangParser.Plus, SimpleLangParser.Minus, SimpleLangParser.Times,
+                    SimpleLangParser.Divide, SimpleLangParser.And, SimpleLangParser.Or -> apply(op, oprnd1, oprnd2) > 0;
+            // SimpleLangInterpreter has never implemented ^, so no engine does either
+            default -> throw new RuntimeException("Unsupported binary operator: " + operatorText(op));
+        };
+    }
+
+    static String operatorText(int op) {
+        String literal = SimpleLangLexer.VOCABULARY.getLiteralName(op);
+        return literal == null ? String.valueOf(op) : literal.substring(1, literal.length() - 1);
+    }
+
+    static final class UninitializedCall extends Node {
+
+        final Program program;
+        final int symbol;
+        final Node[] args;
+
+        UninitializedCall(Program program, int symbol, Node[] args) {
+            this.program = program;
+            this.symbol = symbol;
+            this.args = args;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            Function target = program.function(symbol);
+            if (target.paramSlots.length != args.length) {
+                throw new RuntimeException("Function " + target.name + " expects " + target.paramSlots.length + " arguments but got " + args.length);
+            }
+            return replace(new DirectCall(target, args)).execute(frame);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            adoptAll(this, args, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            replaceIn(args, oldChild, newChild);
+        }
+    }
+
+    static final class DirectCall extends Node {
+
+        final Function target;
+        final Node[] args;
+
+        DirectCall(Function target, Node[] args) {
+            this.target = target;
+            this.args = args;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            int[] calleeFrame = new int[target.frameSize()];
+            for (int i = 0; i < args.length; i++) {
+                calleeFrame[target.paramSlots[i]] = child(args, i).execute(frame);
+            }
+            SimpleLangExecutionContext context = SimpleLangExecutionContext.current();
+            context.enter(calleeFrame.length);
+            int result = target.body.execute(calleeFrame);
+            context.exit(calleeFrame.length);
+            return result;
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            adoptAll(this, args, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            replaceIn(args, oldChild, newChild);
+        }
+    }
+
+    // Counts which way it goes, and once one side has never been taken swaps itself for a BiasedIf
+    static final class ProfiledIf extends Node {
+
+        volatile Node cond;
+        volatile Node then;
+        volatile Node otherwise;
+        int thenCount;
+        int elseCount;
+        private final boolean mayRespecialize;
+
+        ProfiledIf(Node cond, Node then, Node otherwise) {
+            this(cond, then, otherwise, true);
+        }
+
+        private ProfiledIf(Node cond, Node then, Node otherwise, boolean mayRespecialize) {
+            this.cond = cond;
+            this.then = then;
+            this.otherwise = otherwise;
+            this.mayRespecialize = mayRespecialize;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            boolean condValue = cond.executeCondition(frame);
+            if (condValue) {
+                thenCount++;
+            } else {
+                elseCount++;
+            }
+            if (mayRespecialize && thenCount + elseCount == SPECULATE_AFTER && (thenCount == 0 || elseCount == 0)) {
+                replace(new BiasedIf(cond, then, otherwise, condValue));
+            }
+            return condValue ? then.execute(frame) : otherwise.execute(frame);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            cond = adopt(cond, deep);
+            then = adopt(then, deep);
+            otherwise = adopt(otherwise, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (cond == oldChild) {
+                cond = newChild;
+            } else if (then == oldChild) {
+                then = newChild;
+            } else if (otherwise == oldChild) {
+                otherwise = newChild;
+            }
+        }
+    }
+
+    static final class BiasedIf extends Node {
+
+        final boolean expected;
+        volatile Node cond;
+        volatile Node then;
+        volatile Node otherwise;
+
+        BiasedIf(Node cond, Node then, Node otherwise, boolean expected) {
+            this.cond = cond;
+            this.then = then;
+            this.otherwise = otherwise;
+            this.expected = expected;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            if (cond.executeCondition(frame) == expected) {
+                return expected ? then.execute(frame) : otherwise.execute(frame);
+            }
+            // The other side turned up after all: profile both sides from now on
+            ProfiledIf general = replace(new ProfiledIf(cond, then, otherwise, false));
+            if (expected) {
+                general.elseCount++;
+                return general.otherwise.execute(frame);
+            }
+            general.thenCount++;
+            return general.then.execute(frame);
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            cond = adopt(cond, deep);
+            then = adopt(then, deep);
+            otherwise = adopt(otherwise, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (cond == oldChild) {
+                cond = newChild;
+            } else if (then == oldChild) {
+                then = newChild;
+            } else if (otherwise == oldChild) {
+                otherwise = newChild;
+            }
+        }
+    }
+
+    static final class WhileNode extends Node {
+
+        volatile Node cond;
+        volatile Node body;
+
+        WhileNode(Node cond, Node body) {
+            this.cond = cond;
+            this.body = body;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            SimpleLangExecutionContext context = SimpleLangExecutionContext.current();
+            while (cond.executeCondition(frame)) {
+                context.backEdge();
+                body.execute(frame);
+            }
+            return 0;
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            cond = adopt(cond, deep);
+            body = adopt(body, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (cond == oldChild) {
+                cond = newChild;
+            } else if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+
+    static final class RepeatNode extends Node {
+
+        volatile Node body;
+        volatile Node cond;
+
+        RepeatNode(Node body, Node cond) {
+            this.body = body;
+            this.cond = cond;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            SimpleLangExecutionContext context = SimpleLangExecutionContext.current();
+            while (true) {
+                body.execute(frame);
+                if (cond.execute(frame) != 0) {
+                    return 0;
+                }
+                context.backEdge();
+            }
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            cond = adopt(cond, deep);
+            body = adopt(body, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (cond == oldChild) {
+                cond = newChild;
+            } else if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+
+    static final class SequenceNode extends Node {
+
+        final Node[] children;
+
+        SequenceNode(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            int result = 0;
+            for (int i = 0; i < children.length; i++) {
+                result = child(children, i).execute(frame);
+            }
+            return result;
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            adoptAll(this, children, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            replaceIn(children, oldChild, newChild);
+        }
+    }
+
+    static final class PrintNode extends Node {
+
+        volatile Node value;
+
+        PrintNode(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        int execute(int[] frame) {
+            SimpleLangExecutionContext.current().out.print(value.execute(frame));
+            return 0;
+        }
+
+        @Override
+        void adoptChildren(boolean deep) {
+            value = adopt(value, deep);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = newChild;
+        }
+    }
+
+    static final class SpaceNode extends Node {
+
+        @Override
+        int execute(int[] frame) {
+            SimpleLangExecutionContext.current().out.print(" ");
+            return 0;
+        }
+    }
+
+    static final class NewLineNode extends Node {
+
+        @Override
+        int execute(int[] frame) {
+            SimpleLangExecutionContext.current().out.println();
+            return 0;
+        }
+    }
+
+    // Children held in arrays are read and written as if each element were a volatile field, so
+    // that a run that finds a rewritten node sees all of it
+    private static final VarHandle NODES = MethodHandles.arrayElementVarHandle(Node[].class);
+
+    private static Node child(Node[] nodes, int i) {
+        return (Node) NODES.getAcquire(nodes, i);
+    }
+
+    private static void replaceIn(Node[] nodes, Node oldChild, Node newChild) {
+        for (int i = 0; i < nodes.length; i++) {
+            if (child(nodes, i) == oldChild) {
+                NODES.setRelease(nodes, i, newChild);
+                return;
+            }
+        }
+    }
+
+    private static void adoptAll(Node parent, Node[] nodes, boolean deep) {
+        for (int i = 0; i < nodes.length; i++) {
+            NODES.setRelease(nodes, i, parent.adopt(child(nodes, i), deep));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Creates the uninitialised node tree of {@link SimpleLangAst}. The factory methods do not depend
+ * on where the program came from; {@link #build} drives them from an ANTLR parse tree.
+ */
+final class SimpleLangAstBuilder {
+
+    private final SimpleLangAst.Program program = new SimpleLangAst.Program();
+
+    static SimpleLangAst.Program build(SimpleLangParser.ProgContext prog) {
+        SimpleLangAstBuilder builder = new SimpleLangAstBuilder();
+        for (SimpleLangParser.DecContext dec : prog.dec()) {
+            int[] params = new int[dec.vardec.size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = SimpleLangSymbols.of(dec.vardec.get(i).Idfr());
+            }
+            SimpleLangAst.Function function = builder.function(SimpleLangSymbols.of(dec.typed_idfr(0).Idfr()), params);
+
+            List<SimpleLangAst.Node> body = new ArrayList<>();
+            for (SimpleLangParser.Init_exprContext init : dec.body().vardec) {
+                SimpleLangParser.InitExprContext initExpr = (SimpleLangParser.InitExprContext) init;
+                body.add(builder.declare(function, initExpr.typed_idfr().type().getText(),
+                        SimpleLangSymbols.of(initExpr.typed_idfr().Idfr()), builder.exp(function, initExpr.exp())));
+            }
+            body.addAll(builder.exps(function, dec.body().ene()));
+            builder.body(function, body);
+        }
+        return builder.finish();
+    }
+
+    SimpleLangAst.Function function(int symbol, int[] params) {
+        SimpleLangAst.Function function = new SimpleLangAst.Function(symbol, params);
+        program.functions.put(symbol, function);
+        return function;
+    }
+
+    void body(SimpleLangAst.Function function, List<SimpleLangAst.Node> body) {
+        function.body = sequence(body);
+        function.adoptChildren(true);
+    }
+
+    SimpleLangAst.Node intLiteral(int value) {
+        return new SimpleLangAst.IntLiteral(value);
+    }
+
+    SimpleLangAst.Node boolLiteral(boolean value) {
+        return new SimpleLangAst.IntLiteral(value ? 1 : 0);
+    }
+
+    SimpleLangAst.Node read(SimpleLangAst.Function function, int symbol) {
+        return new SimpleLangAst.UnresolvedRead(function, symbol);
+    }
+
+    SimpleLangAst.Node assign(SimpleLangAst.Function function, int symbol, SimpleLangAst.Node value) {
+        function.slotFor(symbol);
+        return new SimpleLangAst.UnresolvedWrite(function, symbol, value);
+    }
+
+    SimpleLangAst.Node declare(SimpleLangAst.Function function, String type, int symbol, SimpleLangAst.Node value) {
+        return new SimpleLangAst.SlotWrite(function.slotFor(symbol), value, "bool".equals(type), SimpleLangSymbols.name(symbol));
+    }
+
+    SimpleLangAst.Node binOp(int op, SimpleLangAst.Node left, SimpleLangAst.Node right) {
+        return new SimpleLangAst.UninitializedBinOp(op, left, right);
+    }
+
+    SimpleLangAst.Node call(int symbol, List<SimpleLangAst.Node> args) {
+        return new SimpleLangAst.UninitializedCall(program, symbol, args.toArray(new SimpleLangAst.Node[0]));
+    }
+
+    SimpleLangAst.Node ifNode(SimpleLangAst.Node cond, SimpleLangAst.Node then, SimpleLangAst.Node otherwise) {
+        return new SimpleLangAst.ProfiledIf(cond, then, otherwise);
+    }
+
+    SimpleLangAst.Node whileNode(SimpleLangAst.Node cond, SimpleLangAst.Node body) {
+        return new SimpleLangAst.WhileNode(cond, body);
+    }
+
+    SimpleLangAst.Node repeatNode(SimpleLangAst.Node body, SimpleLangAst.Node cond) {
+        return new SimpleLangAst.RepeatNode(body, cond);
+    }
+
+    SimpleLangAst.Node sequence(List<SimpleLangAst.Node> nodes) {
+        return nodes.size() == 1 ? nodes.get(0) : new SimpleLangAst.SequenceNode(nodes.toArray(new SimpleLangAst.Node[0]));
+    }
+
+    // print space and print newline behave like space and newline on their own
+    SimpleLangAst.Node print(SimpleLangAst.Node value) {
+        if (value instanceof SimpleLangAst.SpaceNode || value instanceof SimpleLangAst.NewLineNode) {
+            return value;
+        }
+        return new SimpleLangAst.PrintNode(value);
+    }
+
+    SimpleLangAst.Node space() {
+        return new SimpleLangAst.SpaceNode();
+    }
+
+    SimpleLangAst.Node newLine() {
+        return new SimpleLangAst.NewLineNode();
+    }
+
+    SimpleLangAst.Node skip() {
+        return new SimpleLangAst.IntLiteral(0);
+    }
+
+    SimpleLangAst.Program finish() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (SimpleLangAst.Function function : program.functions.values()) {
+                if (!function.returnsUnit && isUnit(function.body)) {
+                    function.returnsUnit = true;
+                    changed = true;
+                }
+            }
+        }
+        return program;
+    }
+
+    // Same rules as FunctionLayout.isUnit, on nodes that have not run yet
+    private boolean isUnit(SimpleLangAst.Node node) {
+        if (node instanceof SimpleLangAst.SequenceNode sequence) {
+            return isUnit(sequence.children[sequence.children.length - 1]);
+        } else if (node instanceof SimpleLangAst.ProfiledIf ifNode) {
+            return isUnit(ifNode.then) && isUnit(ifNode.otherwise);
+        } else if (node instanceof SimpleLangAst.UnresolvedWrite write) {
+            return isUnit(write.value);
+        } else if (node instanceof SimpleLangAst.UninitializedCall call) {
+            SimpleLangAst.Function callee = program.functions.get(call.symbol);
+            return callee != null && callee.returnsUnit;
+        }
+        return node instanceof SimpleLangAst.WhileNode || node instanceof SimpleLangAst.RepeatNode
+                || node instanceof SimpleLangAst.PrintNode || node instanceof SimpleLangAst.SpaceNode
+                || node instanceof SimpleLangAst.NewLineNode;
+    }
+
+    private List<SimpleLangAst.Node> exps(SimpleLangAst.Function function, SimpleLangParser.EneContext ene) {
+        List<SimpleLangAst.Node> nodes = new ArrayList<>();
+        for (SimpleLangParser.ExpContext exp : ene.exp()) {
+            nodes.add(exp(function, exp));
+        }
+        return nodes;
+    }
+
+    private SimpleLangAst.Node block(SimpleLangAst.Function function, SimpleLangParser.BlockContext block) {
+        return sequence(exps(function, block.ene()));
+    }
+
+    private SimpleLangAst.Node exp(SimpleLangAst.Function function, SimpleLangParser.ExpContext ctx) {
+        if (ctx instanceof SimpleLangParser.IntExprContext intExpr) {
+            return intLiteral(Integer.parseInt(intExpr.IntLit().getText()));
+        } else if (ctx instanceof SimpleLangParser.BoolExprContext) {
+            return boolLiteral(ctx.getText().equals("true"));
+        } else if (ctx instanceof SimpleLangParser.IdExprContext id) {
+            return read(function, SimpleLangSymbols.of(id.Idfr()));
+        } else if (ctx instanceof SimpleLangParser.AssignExprContext assign) {
+            return assign(function, SimpleLangSymbols.of(assign.Idfr()), exp(function, assign.exp()));
+        } else if (ctx instanceof SimpleLangParser.BinOpExprContext binOp) {
+            int op = ((TerminalNode) binOp.binop().getChild(0)).getSymbol().getType();
+            return binOp(op, exp(function, binOp.exp(0)), exp(function, binOp.exp(1)));
+        } else if (ctx instanceof SimpleLangParser.InvokeExprContext invoke) {
+            List<SimpleLangAst.Node> args = new ArrayList<>();
+            for (SimpleLangParser.ExpContext arg : invoke.args) {
+                args.add(exp(function, arg));
+            }
+            return call(SimpleLangSymbols.of(invoke.Idfr()), args);
+        } else if (ctx instanceof SimpleLangParser.BlockExprContext block) {
+            return block(function, block.block());
+        } else if (ctx instanceof SimpleLangParser.IfExprContext ifExpr) {
+            return ifNode(exp(function, ifExpr.exp()), block(function, ifExpr.block(0)), block(function, ifExpr.block(1)));
+        } else if (ctx instanceof SimpleLangParser.WhileExprContext whileExpr) {
+            return whileNode(exp(function, whileExpr.exp()), block(function, whileExpr.block()));
+        } else if (ctx instanceof SimpleLangParser.RepeatExprContext repeat) {
+            return repeatNode(block(function, repeat.block()), exp(function, repeat.exp()));
+        } else if (ctx instanceof SimpleLangParser.PrintExprContext print) {
+            return print(exp(function, print.exp()));
+        } else if (ctx instanceof SimpleLangParser.SpaceExprContext) {
+            return space();
+        } else if (ctx instanceof SimpleLangParser.NewLineExprContext) {
+            return newLine();
+        } else if (ctx instanceof SimpleLangParser.SkipExprContext) {
+            return skip();
+        }
+        throw new RuntimeException("Unsupported expression: " + ctx.getText());
+    }
+}
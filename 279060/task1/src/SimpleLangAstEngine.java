@@ -0,0 +1,24 @@
+/**
+ * Runs programs on the self-specialising tree of {@link SimpleLangAst}. It stays an interpreter,
+ * but after the first execution of each node most of the lookups and checks that
+ * {@link SimpleLangInterpreter} repeats on every visit are gone from the tree.
+ */
+public class SimpleLangAstEngine implements SimpleLangEngine {
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        return link(SimpleLangAstBuilder.build(prog));
+    }
+
+    // For trees built without a parse tree, by SimpleLangDescentParser. Runs share the tree and
+    // so also its specialisations; print nodes find the output through the bound context
+    SimpleLangCompiledProgram link(SimpleLangAst.Program program) {
+        return (args, context) -> context.bind(() -> {
+            int[] argValues = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argValues[i] = SimpleLangEngine.parseArgument(args[i]);
+            }
+            return program.function(SimpleLangSymbols.intern("main")).call(argValues);
+        });
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs one linked program on many lines of arguments, for {@link Task1} --batch=file. The lines
+ * are in the format of the .args files of the tests, one run per line.
+ *
+ * Lines are read one at a time and run concurrently on a work-stealing pool, or for the lanes
+ * engine in lockstep batches of {@link SimpleLangLaneEngine#WIDTH}. Each run prints
+ * into a buffer of its own, and each buffer is written out, followed by what Task1 prints after
+ * a single run, once every line before it has been written, so the output is in the order of
+ * the lines. No more than a window of runs is ever in flight, so neither the lines nor their
+ * output have to fit in memory all at once.
+ *
+ * Each run is held to the same {@link SimpleLangLimits}. A run that fails is written as its
+ * output so far, an empty line, RUNTIME_ERROR, or LIMIT_EXCEEDED if it went over a limit, and
+ * the message, and the batch carries on with the next line.
+ */
+final class SimpleLangBatch {
+
+    private SimpleLangBatch() {
+    }
+
+    static String[] arguments(String line) {
+        return line.isBlank() ? new String[0] : line.trim().split("\\s+");
+    }
+
+    // Returns the number of lines run
+    static long run(SimpleLangCompiledProgram program, BufferedReader lines, OutputStream out, ForkJoinPool pool, int window,
+                    SimpleLangLimits limits) throws IOException {
+        // a lockstep program takes its lines a batch at a time, anything else one at a time
+        int width = program instanceof SimpleLangLaneEngine.LaneProgram ? SimpleLangLaneEngine.WIDTH : 1;
+        ArrayDeque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>(window);
+        List<String[]> chunk = new ArrayList<>(width);
+        long count = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            chunk.add(arguments(line));
+            count++;
+            if (chunk.size() == width) {
+                List<String[]> full = chunk;
+                inFlight.add(pool.submit(() -> runChunk(program, full, limits)));
+                chunk = new ArrayList<>(width);
+                if (inFlight.size() >= window) {
+                    out.write(inFlight.remove().join());
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            List<String[]> last = chunk;
+            inFlight.add(pool.submit(() -> runChunk(program, last, limits)));
+        }
+        while (!inFlight.isEmpty()) {
+            out.write(inFlight.remove().join());
+        }
+        out.flush();
+        return count;
+    }
+
+    private static byte[] runChunk(SimpleLangCompiledProgram program, List<String[]> chunk, SimpleLangLimits limits) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer);
+        if (program instanceof SimpleLangLaneEngine.LaneProgram lanes) {
+            for (SimpleLangLaneEngine.Lane lane : lanes.runAll(chunk.toArray(new String[0][]), limits)) {
+                out.print(lane.output);
+                if (lane.failure == null) {
+                    Task1.printResult(out, lane.result);
+                } else {
+                    printFailure(out, lane.failure);
+                }
+            }
+        } else {
+            for (String[] args : chunk) {
+                try {
+                    Task1.printResult(out, program.run(args, new SimpleLangExecutionContext(out, limits)));
+                } catch (RuntimeException | StackOverflowError e) {
+                    printFailure(out, e);
+                }
+            }
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void printFailure(PrintStream out, Throwable failure) {
+        out.println();
+        out.println(failure instanceof SimpleLangLimits.Exceeded ? "LIMIT_EXCEEDED" : "RUNTIME_ERROR");
+        out.println(describe(failure));
+    }
+
+    static String describe(Throwable failure) {
+        return failure instanceof StackOverflowError ? "Stack overflow" : String.valueOf(failure.getMessage());
+    }
+}
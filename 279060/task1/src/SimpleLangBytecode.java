@@ -0,0 +1,280 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Instruction set and program representation for {@link SimpleLangVM}, produced by
+ * {@link SimpleLangBytecodeCompiler}.
+ *
+ * Code is a flat int[] of opcodes each followed by its operands. Every frame keeps its variables
+ * in the first frameSize entries of the VM stack and its operand stack right after them. The
+ * opcodes from S_LOAD_LOAD on are superinstructions: fused forms of common sequences that the
+ * compiler only emits for the sequences a {@link Profile} says are worth it.
+ */
+final class SimpleLangBytecode {
+
+    static final int CONST = 0;         // c         push c
+    static final int LOAD = 1;          // s         push frame[s]
+    static final int STORE = 2;         // s         frame[s] = pop
+    static final int DUP = 3;
+    static final int POP = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int MUL = 7;
+    static final int DIV = 8;
+    static final int EQ = 9;
+    static final int LT = 10;
+    static final int GT = 11;
+    static final int LE = 12;
+    static final int GE = 13;
+    static final int AND = 14;
+    static final int OR = 15;
+    static final int NE = 16;           // only produced by inverting EQ when fusing a conditional jump
+    static final int JUMP = 17;         // t
+    static final int JUMP_IF_TRUE = 18; // t         jump if pop > 0
+    static final int JUMP_IF_FALSE = 19;// t         jump if pop <= 0
+    static final int JUMP_IF_ZERO = 20; // t         jump if pop == 0
+    static final int CALL = 21;         // f n       call function f with the top n values as arguments
+    static final int RET = 22;
+    static final int PRINT = 23;
+    static final int SPACE = 24;
+    static final int NEWLINE = 25;
+    static final int CHECK_BOOL = 26;   // m         fail with constant m unless the top value is 0 or 1
+    static final int FAIL = 27;         // m         fail with constant m
+
+    static final int S_LOAD_LOAD = 28;          // a b
+    static final int S_LOAD_CONST = 29;         // s c
+    static final int S_LOAD_CONST_OP = 30;      // s c op        push frame[s] op c
+    static final int S_LOAD_LOAD_OP = 31;       // a b op        push frame[a] op frame[b]
+    static final int S_LOAD_CONST_OP_STORE = 32;// s c op d      frame[d] = frame[s] op c
+    static final int S_CMP_JUMP = 33;           // op t          jump if pop2 op pop1
+    static final int S_LOAD_CONST_CMP_JUMP = 34;// s c op t      jump if frame[s] op c
+    static final int S_LOAD_LOAD_CMP_JUMP = 35; // a b op t      jump if frame[a] op frame[b]
+    static final int S_LOAD_LOAD_OP_STORE = 36; // a b op d      frame[d] = frame[a] op frame[b]
+
+    static final int OPCODES = 37;
+
+    static final String[] NAMES = {
+            "CONST", "LOAD", "STORE", "DUP", "POP", "ADD", "SUB", "MUL", "DIV", "EQ", "LT", "GT", "LE", "GE",
+            "AND", "OR", "NE", "JUMP", "JUMP_IF_TRUE", "JUMP_IF_FALSE", "JUMP_IF_ZERO", "CALL", "RET", "PRINT",
+            "SPACE", "NEWLINE", "CHECK_BOOL", "FAIL", "S_LOAD_LOAD", "S_LOAD_CONST", "S_LOAD_CONST_OP",
+            "S_LOAD_LOAD_OP", "S_LOAD_CONST_OP_STORE", "S_CMP_JUMP", "S_LOAD_CONST_CMP_JUMP", "S_LOAD_LOAD_CMP_JUMP",
+            "S_LOAD_LOAD_OP_STORE"
+    };
+
+    // How many ints each opcode takes up in code, itself and its operands
+    private static final int[] LENGTHS = {
+            2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 2, 2, 2, 2, 3, 1, 1,
+            1, 1, 2, 2, 3, 3, 4,
+            4, 5, 3, 5, 5,
+            5
+    };
+
+    private SimpleLangBytecode() {
+    }
+
+    static int length(int op) {
+        return LENGTHS[op];
+    }
+
+    static boolean isBinary(int op) {
+        return op >= ADD && op <= NE;
+    }
+
+    static boolean isComparison(int op) {
+        return op >= EQ && op <= GE || op == NE;
+    }
+
+    static boolean isConditionalJump(int op) {
+        return op == JUMP_IF_TRUE || op == JUMP_IF_FALSE || op == JUMP_IF_ZERO;
+    }
+
+    static boolean isJump(int op) {
+        return op == JUMP || isConditionalJump(op);
+    }
+
+    // The comparison that is true exactly when op is false
+    static int negate(int op) {
+        return switch (op) {
+            case EQ -> NE;
+            case NE -> EQ;
+            case LT -> GE;
+            case GE -> LT;
+            case GT -> LE;
+            case LE -> GT;
+            default -> throw new IllegalArgumentException(NAMES[op]);
+        };
+    }
+
+    static int binary(int op, int oprnd1, int oprnd2) {
+        return switch (op) {
+            case ADD -> oprnd1 + oprnd2;
+            case SUB -> oprnd1 - oprnd2;
+            case MUL -> oprnd1 * oprnd2;
+            case DIV -> {
+                if (oprnd2 == 0) {
+                    throw new RuntimeException("Division by zero.");
+                }
+                yield oprnd1 / oprnd2;
+            }
+            case AND -> oprnd1 & oprnd2;
+            case OR -> oprnd1 | oprnd2;
+            default -> compare(op, oprnd1, oprnd2) ? 1 : 0;
+        };
+    }
+
+    static boolean compare(int op, int oprnd1, int oprnd2) {
+        return switch (op) {
+            case EQ -> oprnd1 == oprnd2;
+            case NE -> oprnd1 != oprnd2;
+            case LT -> oprnd1 < oprnd2;
+            case GT -> oprnd1 > oprnd2;
+            case LE -> oprnd1 <= oprnd2;
+            case GE -> oprnd1 >= oprnd2;
+            default -> throw new IllegalArgumentException(NAMES[op]);
+        };
+    }
+
+    static final class Function {
+
+        final String name;
+        final int[] paramSlots;
+        final int frameSize;
+        final int maxStack;
+        final boolean returnsUnit;
+        final int[] code;
+        // Whether parameter i is slot i, so arguments pushed by the caller are already in place
+        final boolean paramsInOrder;
+
+        Function(String name, int[] paramSlots, int frameSize, int maxStack, boolean returnsUnit, int[] code) {
+            this.name = name;
+            this.paramSlots = paramSlots;
+            this.frameSize = frameSize;
+            this.maxStack = maxStack;
+            this.returnsUnit = returnsUnit;
+            this.code = code;
+            boolean inOrder = true;
+            for (int i = 0; i < paramSlots.length; i++) {
+                inOrder &= paramSlots[i] == i;
+            }
+            this.paramsInOrder = inOrder;
+        }
+    }
+
+    static class Program {
+
+        final String[] names;
+        final String[] constants;
+        final Function[] functions;
+
+        Program(String[] names, String[] constants, Function[] functions) {
+            this.names = names;
+            this.constants = constants;
+            this.functions = functions;
+        }
+
+        Function function(int index) {
+            return functions[index];
+        }
+
+        int indexOf(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            throw new RuntimeException("Undefined function: " + name);
+        }
+    }
+
+    /**
+     * How often each pair and triple of base opcodes ran back to back, either recorded by a
+     * profiling run of the VM or estimated from the code itself.
+     */
+    static final class Profile {
+
+        final long[] pairs = new long[OPCODES * OPCODES];
+        final long[] triples = new long[OPCODES * OPCODES * OPCODES];
+        long dispatches;
+
+        long pair(int a, int b) {
+            return pairs[a * OPCODES + b];
+        }
+
+        long triple(int a, int b, int c) {
+            return triples[(a * OPCODES + b) * OPCODES + c];
+        }
+
+        void add(int prev2, int prev1, int op, long weight) {
+            dispatches += weight;
+            if (prev1 >= 0) {
+                pairs[prev1 * OPCODES + op] += weight;
+                if (prev2 >= 0) {
+                    triples[(prev2 * OPCODES + prev1) * OPCODES + op] += weight;
+                }
+            }
+        }
+
+        static Profile load(Path file) throws IOException {
+            Profile profile = new Profile();
+            if (!Files.exists(file)) {
+                return profile;
+            }
+            for (String line : Files.readAllLines(file)) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts[0].equals("dispatches")) {
+                    profile.dispatches += Long.parseLong(parts[1]);
+                } else if (parts[0].equals("pair")) {
+                    profile.pairs[opcode(parts[1]) * OPCODES + opcode(parts[2])] += Long.parseLong(parts[3]);
+                } else if (parts[0].equals("triple")) {
+                    profile.triples[(opcode(parts[1]) * OPCODES + opcode(parts[2])) * OPCODES + opcode(parts[3])] += Long.parseLong(parts[4]);
+                }
+            }
+            return profile;
+        }
+
+        void save(Path file) throws IOException {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+                out.println("dispatches " + dispatches);
+                for (int a = 0; a < OPCODES; a++) {
+                    for (int b = 0; b < OPCODES; b++) {
+                        if (pair(a, b) > 0) {
+                            out.println("pair " + NAMES[a] + " " + NAMES[b] + " " + pair(a, b));
+                        }
+                        for (int c = 0; c < OPCODES; c++) {
+                            if (triple(a, b, c) > 0) {
+                                out.println("triple " + NAMES[a] + " " + NAMES[b] + " " + NAMES[c] + " " + triple(a, b, c));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        void report(PrintStream out, int limit) {
+            out.println("Instructions dispatched: " + dispatches);
+            List<long[]> ranked = new ArrayList<>();
+            for (int i = 0; i < triples.length; i++) {
+                if (triples[i] > 0) {
+                    ranked.add(new long[]{triples[i], i});
+                }
+            }
+            ranked.sort((x, y) -> Long.compare(y[0], x[0]));
+            for (long[] entry : ranked.subList(0, Math.min(limit, ranked.size()))) {
+                int index = (int) entry[1];
+                out.printf("%12d  %s %s %s%n", entry[0], NAMES[index / (OPCODES * OPCODES)],
+                        NAMES[index / OPCODES % OPCODES], NAMES[index % OPCODES]);
+            }
+        }
+
+        private static int opcode(String name) {
+            int op = Arrays.asList(NAMES).indexOf(name);
+            if (op < 0) {
+                throw new IllegalArgumentException("Unknown opcode in profile: " + name);
+            }
+            return op;
+        }
+    }
+}
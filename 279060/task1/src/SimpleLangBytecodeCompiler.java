@@ -0,0 +1,472 @@
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Compiles a parsed program to {@link SimpleLangBytecode}. Code is first generated from base
+ * opcodes only; a peephole pass then fuses the sequences covered by the superinstructions that
+ * {@link #select} picked from a profile, either one recorded by running the VM or, when there is
+ * none, an estimate that weights each sequence in the code by how deeply it is nested in loops.
+ */
+final class SimpleLangBytecodeCompiler {
+
+    // Fusions worth fewer dispatches than this share of the profile are not emitted
+    static final double MIN_SHARE = 0.01;
+
+    private static final int LABEL = -1;
+    private static final int LOOP_WEIGHT = 8;
+
+    private enum Shape {
+        LOAD, CONST, STORE, BINARY, COMPARE, BRANCH;
+
+        boolean matches(int op) {
+            return switch (this) {
+                case LOAD -> op == SimpleLangBytecode.LOAD;
+                case CONST -> op == SimpleLangBytecode.CONST;
+                case STORE -> op == SimpleLangBytecode.STORE;
+                case BINARY -> SimpleLangBytecode.isBinary(op);
+                case COMPARE -> SimpleLangBytecode.isComparison(op);
+                case BRANCH -> SimpleLangBytecode.isConditionalJump(op);
+            };
+        }
+    }
+
+    enum Superinstruction {
+        LOAD_CONST_CMP_JUMP(SimpleLangBytecode.S_LOAD_CONST_CMP_JUMP, Shape.LOAD, Shape.CONST, Shape.COMPARE, Shape.BRANCH),
+        LOAD_LOAD_CMP_JUMP(SimpleLangBytecode.S_LOAD_LOAD_CMP_JUMP, Shape.LOAD, Shape.LOAD, Shape.COMPARE, Shape.BRANCH),
+        LOAD_CONST_OP_STORE(SimpleLangBytecode.S_LOAD_CONST_OP_STORE, Shape.LOAD, Shape.CONST, Shape.BINARY, Shape.STORE),
+        LOAD_LOAD_OP_STORE(SimpleLangBytecode.S_LOAD_LOAD_OP_STORE, Shape.LOAD, Shape.LOAD, Shape.BINARY, Shape.STORE),
+        LOAD_CONST_OP(SimpleLangBytecode.S_LOAD_CONST_OP, Shape.LOAD, Shape.CONST, Shape.BINARY),
+        LOAD_LOAD_OP(SimpleLangBytecode.S_LOAD_LOAD_OP, Shape.LOAD, Shape.LOAD, Shape.BINARY),
+        CMP_JUMP(SimpleLangBytecode.S_CMP_JUMP, Shape.COMPARE, Shape.BRANCH),
+        LOAD_LOAD(SimpleLangBytecode.S_LOAD_LOAD, Shape.LOAD, Shape.LOAD),
+        LOAD_CONST(SimpleLangBytecode.S_LOAD_CONST, Shape.LOAD, Shape.CONST);
+
+        final int opcode;
+        final Shape[] shape;
+
+        Superinstruction(int opcode, Shape... shape) {
+            this.opcode = opcode;
+            this.shape = shape;
+        }
+
+        // Dispatches the profile says this fusion would have saved
+        long savings(SimpleLangBytecode.Profile profile) {
+            long count = shape.length == 2 ? count(profile, 0, 2) : count(profile, 0, 3);
+            if (shape.length == 4) {
+                count = Math.min(count, count(profile, 1, 3));
+            }
+            return count * (shape.length - 1);
+        }
+
+        private long count(SimpleLangBytecode.Profile profile, int from, int length) {
+            long count = 0;
+            for (int a = 0; a < SimpleLangBytecode.OPCODES; a++) {
+                if (!shape[from].matches(a)) {
+                    continue;
+                }
+                for (int b = 0; b < SimpleLangBytecode.OPCODES; b++) {
+                    if (!shape[from + 1].matches(b)) {
+                        continue;
+                    }
+                    if (length == 2) {
+                        count += profile.pair(a, b);
+                        continue;
+                    }
+                    for (int c = 0; c < SimpleLangBytecode.OPCODES; c++) {
+                        if (shape[from + 2].matches(c)) {
+                            count += profile.triple(a, b, c);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class Insn {
+        final int op;
+        final int[] operands;
+        final int loopDepth;
+
+        Insn(int op, int[] operands, int loopDepth) {
+            this.op = op;
+            this.operands = operands;
+            this.loopDepth = loopDepth;
+        }
+    }
+
+    private final SimpleLangSymbols.SymbolMap<FunctionLayout> layouts;
+    private final List<FunctionLayout> functions = new ArrayList<>();
+    private final SimpleLangSymbols.SymbolMap<Integer> indices = new SimpleLangSymbols.SymbolMap<>();
+    private final List<String> constants = new ArrayList<>();
+
+    private List<Insn> code;
+    private FunctionLayout layout;
+    private int labels;
+    private int loopDepth;
+    private int depth;
+    private int maxDepth;
+
+    private SimpleLangBytecodeCompiler(SimpleLangParser.ProgContext prog) {
+        this.layouts = FunctionLayout.of(prog);
+        for (SimpleLangParser.DecContext dec : prog.dec()) {
+            FunctionLayout layout = layouts.get(SimpleLangSymbols.of(dec.typed_idfr(0).Idfr()));
+            if (layout.dec == dec) {
+                indices.put(layout.symbol, functions.size());
+                functions.add(layout);
+            }
+        }
+    }
+
+    /**
+     * Compiles prog, fusing the superinstructions that profile makes worthwhile, or those a
+     * static estimate picks if profile is null. With fuse false only base opcodes are emitted,
+     * which is what a profiling run needs.
+     */
+    static SimpleLangBytecode.Program compile(SimpleLangParser.ProgContext prog, SimpleLangBytecode.Profile profile, boolean fuse) {
+        SimpleLangBytecodeCompiler compiler = new SimpleLangBytecodeCompiler(prog);
+        List<List<Insn>> bodies = new ArrayList<>();
+        int[] maxStacks = new int[compiler.functions.size()];
+        for (int i = 0; i < maxStacks.length; i++) {
+            bodies.add(compiler.function(compiler.functions.get(i)));
+            maxStacks[i] = compiler.maxDepth;
+        }
+
+        EnumSet<Superinstruction> enabled = EnumSet.noneOf(Superinstruction.class);
+        if (fuse) {
+            enabled = select(profile != null ? profile : estimate(bodies));
+        }
+
+        SimpleLangBytecode.Function[] functions = new SimpleLangBytecode.Function[bodies.size()];
+        String[] names = new String[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            FunctionLayout layout = compiler.functions.get(i);
+            int[] paramSlots = new int[layout.params.length];
+            for (int p = 0; p < paramSlots.length; p++) {
+                paramSlots[p] = layout.slot(layout.params[p]);
+            }
+            names[i] = layout.name;
+            functions[i] = new SimpleLangBytecode.Function(layout.name, paramSlots, layout.frameSize(), maxStacks[i],
+                    layout.returnsUnit, assemble(fuse(bodies.get(i), enabled)));
+        }
+        return new SimpleLangBytecode.Program(names, compiler.constants.toArray(new String[0]), functions);
+    }
+
+    static EnumSet<Superinstruction> select(SimpleLangBytecode.Profile profile) {
+        EnumSet<Superinstruction> enabled = EnumSet.noneOf(Superinstruction.class);
+        for (Superinstruction candidate : Superinstruction.values()) {
+            long savings = candidate.savings(profile);
+            if (savings > 0 && savings >= MIN_SHARE * profile.dispatches) {
+                enabled.add(candidate);
+            }
+        }
+        return enabled;
+    }
+
+    private static SimpleLangBytecode.Profile estimate(List<List<Insn>> bodies) {
+        SimpleLangBytecode.Profile profile = new SimpleLangBytecode.Profile();
+        for (List<Insn> body : bodies) {
+            int prev2 = -1;
+            int prev1 = -1;
+            for (Insn insn : body) {
+                if (insn.op == LABEL) {
+                    prev2 = prev1 = -1;
+                    continue;
+                }
+                profile.add(prev2, prev1, insn.op, (long) Math.pow(LOOP_WEIGHT, Math.min(insn.loopDepth, 6)));
+                prev2 = prev1;
+                prev1 = insn.op;
+            }
+        }
+        return profile;
+    }
+
+    // Greedily replaces the longest enabled superinstruction starting at each instruction
+    private static List<Insn> fuse(List<Insn> body, EnumSet<Superinstruction> enabled) {
+        if (enabled.isEmpty()) {
+            return body;
+        }
+        List<Insn> fused = new ArrayList<>();
+        int i = 0;
+        while (i < body.size()) {
+            Superinstruction match = null;
+            for (Superinstruction candidate : enabled) {
+                if (matches(body, i, candidate.shape)) {
+                    match = candidate;
+                    break;
+                }
+            }
+            if (match == null) {
+                fused.add(body.get(i++));
+                continue;
+            }
+            fused.add(combine(match, body.subList(i, i + match.shape.length)));
+            i += match.shape.length;
+        }
+        return fused;
+    }
+
+    private static boolean matches(List<Insn> body, int start, Shape[] shape) {
+        if (start + shape.length > body.size()) {
+            return false;
+        }
+        for (int k = 0; k < shape.length; k++) {
+            if (!shape[k].matches(body.get(start + k).op)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Insn combine(Superinstruction fusion, List<Insn> parts) {
+        int[] operands = switch (fusion) {
+            case LOAD_CONST_CMP_JUMP, LOAD_LOAD_CMP_JUMP -> new int[]{
+                    parts.get(0).operands[0], parts.get(1).operands[0],
+                    jumpCondition(parts.get(2).op, parts.get(3).op), parts.get(3).operands[0]};
+            case LOAD_CONST_OP_STORE, LOAD_LOAD_OP_STORE -> new int[]{
+                    parts.get(0).operands[0], parts.get(1).operands[0], parts.get(2).op, parts.get(3).operands[0]};
+            case LOAD_CONST_OP, LOAD_LOAD_OP -> new int[]{
+                    parts.get(0).operands[0], parts.get(1).operands[0], parts.get(2).op};
+            case CMP_JUMP -> new int[]{jumpCondition(parts.get(0).op, parts.get(1).op), parts.get(1).operands[0]};
+            case LOAD_LOAD, LOAD_CONST -> new int[]{parts.get(0).operands[0], parts.get(1).operands[0]};
+        };
+        return new Insn(fusion.opcode, operands, parts.get(0).loopDepth);
+    }
+
+    // A fused jump is taken when its comparison holds, so conditions that jump on false are negated
+    private static int jumpCondition(int compare, int jump) {
+        return jump == SimpleLangBytecode.JUMP_IF_TRUE ? compare : SimpleLangBytecode.negate(compare);
+    }
+
+    private static int[] assemble(List<Insn> body) {
+        Map<Integer, Integer> targets = new HashMap<>();
+        int pc = 0;
+        for (Insn insn : body) {
+            if (insn.op == LABEL) {
+                targets.put(insn.operands[0], pc);
+            } else {
+                pc += 1 + insn.operands.length;
+            }
+        }
+        int[] code = new int[pc];
+        pc = 0;
+        for (Insn insn : body) {
+            if (insn.op == LABEL) {
+                continue;
+            }
+            code[pc++] = insn.op;
+            for (int operand : insn.operands) {
+                code[pc++] = operand;
+            }
+            // Jump targets are always the last operand
+            if (SimpleLangBytecode.isJump(insn.op) || insn.op == SimpleLangBytecode.S_CMP_JUMP
+                    || insn.op == SimpleLangBytecode.S_LOAD_CONST_CMP_JUMP || insn.op == SimpleLangBytecode.S_LOAD_LOAD_CMP_JUMP) {
+                code[pc - 1] = targets.get(code[pc - 1]);
+            }
+        }
+        return code;
+    }
+
+    private List<Insn> function(FunctionLayout layout) {
+        this.layout = layout;
+        this.code = new ArrayList<>();
+        this.depth = 0;
+        this.maxDepth = 0;
+        for (SimpleLangParser.Init_exprContext init : layout.dec.body().vardec) {
+            SimpleLangParser.InitExprContext initExpr = (SimpleLangParser.InitExprContext) init;
+            String varName = initExpr.typed_idfr().Idfr().getText();
+            exp(initExpr.exp(), true);
+            if ("bool".equals(initExpr.typed_idfr().type().getText())) {
+                emit(SimpleLangBytecode.CHECK_BOOL, constant("Type mismatch: Expected bool for " + varName));
+            }
+            emit(SimpleLangBytecode.STORE, layout.slot(initExpr.typed_idfr().Idfr()));
+        }
+        ene(layout.dec.body().ene(), true);
+        emit(SimpleLangBytecode.RET);
+        return code;
+    }
+
+    private int constant(String value) {
+        int index = constants.indexOf(value);
+        if (index < 0) {
+            constants.add(value);
+            index = constants.size() - 1;
+        }
+        return index;
+    }
+
+    private int newLabel() {
+        return labels++;
+    }
+
+    private void label(int label) {
+        code.add(new Insn(LABEL, new int[]{label}, loopDepth));
+    }
+
+    private void emit(int op, int... operands) {
+        code.add(new Insn(op, operands, loopDepth));
+        depth += switch (op) {
+            case SimpleLangBytecode.CONST, SimpleLangBytecode.LOAD, SimpleLangBytecode.DUP -> 1;
+            case SimpleLangBytecode.CALL -> 1 - operands[1];
+            case SimpleLangBytecode.STORE, SimpleLangBytecode.POP, SimpleLangBytecode.PRINT, SimpleLangBytecode.RET,
+                    SimpleLangBytecode.JUMP_IF_TRUE, SimpleLangBytecode.JUMP_IF_FALSE, SimpleLangBytecode.JUMP_IF_ZERO -> -1;
+            default -> SimpleLangBytecode.isBinary(op) ? -1 : 0;
+        };
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void fail(String message, boolean needValue) {
+        emit(SimpleLangBytecode.FAIL, constant(message));
+        if (needValue) {
+            emit(SimpleLangBytecode.CONST, 0);
+        }
+    }
+
+    private void ene(SimpleLangParser.EneContext ene, boolean needValue) {
+        List<SimpleLangParser.ExpContext> exps = ene.exp();
+        for (int i = 0; i < exps.size(); i++) {
+            exp(exps.get(i), needValue && i == exps.size() - 1);
+        }
+    }
+
+    // Leaves the value of ctx on the operand stack only if needValue
+    private void exp(SimpleLangParser.ExpContext ctx, boolean needValue) {
+        if (ctx instanceof SimpleLangParser.IntExprContext intExpr) {
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, Integer.parseInt(intExpr.IntLit().getText()));
+            }
+        } else if (ctx instanceof SimpleLangParser.BoolExprContext) {
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, ctx.getText().equals("true") ? 1 : 0);
+            }
+        } else if (ctx instanceof SimpleLangParser.SkipExprContext) {
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, 0);
+            }
+        } else if (ctx instanceof SimpleLangParser.IdExprContext id) {
+            int slot = layout.slot(id.Idfr());
+            if (slot < 0) {
+                fail("Undefined variable: " + id.Idfr().getText() + " in current frame.", needValue);
+            } else if (needValue) {
+                emit(SimpleLangBytecode.LOAD, slot);
+            }
+        } else if (ctx instanceof SimpleLangParser.AssignExprContext assign) {
+            exp(assign.exp(), true);
+            if (needValue) {
+                emit(SimpleLangBytecode.DUP);
+            }
+            emit(SimpleLangBytecode.STORE, layout.slot(assign.Idfr()));
+        } else if (ctx instanceof SimpleLangParser.BinOpExprContext binOp) {
+            binOp(binOp, needValue);
+        } else if (ctx instanceof SimpleLangParser.InvokeExprContext invoke) {
+            invoke(invoke, needValue);
+        } else if (ctx instanceof SimpleLangParser.BlockExprContext block) {
+            ene(block.block().ene(), needValue);
+        } else if (ctx instanceof SimpleLangParser.IfExprContext ifExpr) {
+            int otherwise = newLabel();
+            int end = newLabel();
+            exp(ifExpr.exp(), true);
+            emit(SimpleLangBytecode.JUMP_IF_FALSE, otherwise);
+            int branchDepth = depth;
+            ene(ifExpr.block(0).ene(), needValue);
+            emit(SimpleLangBytecode.JUMP, end);
+            label(otherwise);
+            depth = branchDepth;
+            ene(ifExpr.block(1).ene(), needValue);
+            label(end);
+        } else if (ctx instanceof SimpleLangParser.WhileExprContext whileExpr) {
+            // Condition at the bottom, so each iteration takes a single conditional jump
+            int top = newLabel();
+            int test = newLabel();
+            emit(SimpleLangBytecode.JUMP, test);
+            loopDepth++;
+            label(top);
+            ene(whileExpr.block().ene(), false);
+            label(test);
+            exp(whileExpr.exp(), true);
+            emit(SimpleLangBytecode.JUMP_IF_TRUE, top);
+            loopDepth--;
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, 0);
+            }
+        } else if (ctx instanceof SimpleLangParser.RepeatExprContext repeat) {
+            int top = newLabel();
+            loopDepth++;
+            label(top);
+            ene(repeat.block().ene(), false);
+            exp(repeat.exp(), true);
+            emit(SimpleLangBytecode.JUMP_IF_ZERO, top);
+            loopDepth--;
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, 0);
+            }
+        } else if (ctx instanceof SimpleLangParser.PrintExprContext print) {
+            SimpleLangParser.ExpContext value = print.exp();
+            if (value instanceof SimpleLangParser.SpaceExprContext || value instanceof SimpleLangParser.NewLineExprContext) {
+                exp(value, needValue);
+                return;
+            }
+            exp(value, true);
+            emit(SimpleLangBytecode.PRINT);
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, 0);
+            }
+        } else if (ctx instanceof SimpleLangParser.SpaceExprContext || ctx instanceof SimpleLangParser.NewLineExprContext) {
+            emit(ctx instanceof SimpleLangParser.SpaceExprContext ? SimpleLangBytecode.SPACE : SimpleLangBytecode.NEWLINE);
+            if (needValue) {
+                emit(SimpleLangBytecode.CONST, 0);
+            }
+        } else {
+            throw new RuntimeException("Unsupported expression: " + ctx.getText());
+        }
+    }
+
+    private void binOp(SimpleLangParser.BinOpExprContext ctx, boolean needValue) {
+        int op = switch (((TerminalNode) ctx.binop().getChild(0)).getSymbol().getType()) {
+            case SimpleLangParser.Plus -> SimpleLangBytecode.ADD;
+            case SimpleLangParser.Minus -> SimpleLangBytecode.SUB;
+            case SimpleLangParser.Times -> SimpleLangBytecode.MUL;
+            case SimpleLangParser.Divide -> SimpleLangBytecode.DIV;
+            case SimpleLangParser.Eq -> SimpleLangBytecode.EQ;
+            case SimpleLangParser.Less -> SimpleLangBytecode.LT;
+            case SimpleLangParser.Great -> SimpleLangBytecode.GT;
+            case SimpleLangParser.LessEq -> SimpleLangBytecode.LE;
+            case SimpleLangParser.GreatEq -> SimpleLangBytecode.GE;
+            case SimpleLangParser.And -> SimpleLangBytecode.AND;
+            case SimpleLangParser.Or -> SimpleLangBytecode.OR;
+            default -> -1;
+        };
+        exp(ctx.exp(0), true);
+        exp(ctx.exp(1), true);
+        if (op < 0) {
+            emit(SimpleLangBytecode.POP);
+            emit(SimpleLangBytecode.POP);
+            fail("Unsupported binary operator: " + ctx.binop().getText(), needValue);
+            return;
+        }
+        emit(op);
+        if (!needValue) {
+            emit(SimpleLangBytecode.POP);
+        }
+    }
+
+    private void invoke(SimpleLangParser.InvokeExprContext ctx, boolean needValue) {
+        String calleeName = ctx.Idfr().getText();
+        FunctionLayout callee = layouts.get(SimpleLangSymbols.of(ctx.Idfr()));
+        if (callee == null) {
+            fail("Undefined function: " + calleeName, needValue);
+            return;
+        } else if (callee.params.length != ctx.args.size()) {
+            fail("Function " + calleeName + " expects " + callee.params.length + " arguments but got " + ctx.args.size(), needValue);
+            return;
+        }
+        for (SimpleLangParser.ExpContext arg : ctx.args) {
+            exp(arg, true);
+        }
+        emit(SimpleLangBytecode.CALL, indices.get(callee.symbol), ctx.args.size());
+        if (!needValue) {
+            emit(SimpleLangBytecode.POP);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Compiles programs to {@link SimpleLangBytecode} and runs them on {@link SimpleLangVM}.
+ *
+ * Running with -Dsimplelang.bytecode.record=file executes unfused code, adds the opcode pairs
+ * and triples it dispatched to file and prints the most frequent ones. Runs with
+ * -Dsimplelang.bytecode.profile=file then fuse the superinstructions that profile favours;
+ * without one the compiler estimates the profile from the loop structure of the program.
+ * -Dsimplelang.memo=file keeps what pure functions return in a {@link SimpleLangMemo}.
+ */
+public class SimpleLangBytecodeEngine implements SimpleLangEngine {
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        try {
+            String record = System.getProperty("simplelang.bytecode.record");
+            if (record == null) {
+                return link(compile(prog));
+            }
+            // recording runs unfused code and adds what it dispatched to the file after every
+            // run, one run at a time since they all count into the same profile
+            SimpleLangBytecode.Profile profile = SimpleLangBytecode.Profile.load(Path.of(record));
+            SimpleLangBytecode.Program program = SimpleLangBytecodeCompiler.compile(prog, null, false);
+            return (args, context) -> {
+                synchronized (profile) {
+                    Integer result = new SimpleLangVM(program, profile, context).run("main", arguments(args));
+                    try {
+                        profile.save(Path.of(record));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    profile.report(System.err, 10);
+                    return result;
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // For programs that are already compiled, such as those loaded by SimpleLangBytecodeFile
+    BytecodeProgram link(SimpleLangBytecode.Program program) {
+        return link(program, SimpleLangMemo.shared());
+    }
+
+    // Memoizing the program's pure functions in memo, unless it is null
+    BytecodeProgram link(SimpleLangBytecode.Program program, SimpleLangMemo memo) {
+        return new BytecodeProgram(program, memo);
+    }
+
+    /**
+     * A linked bytecode program. Each run gets a VM, and with it a stack, of its own; besides
+     * running to the end, a run can be started and then carried out a slice at a time by
+     * {@link SimpleLangScheduler}. With a {@link SimpleLangMemo}, every run shares it.
+     */
+    static final class BytecodeProgram implements SimpleLangCompiledProgram {
+
+        private final SimpleLangBytecode.Program program;
+        private final SimpleLangMemo memo;
+        private final SimpleLangMemo.Fingerprints fingerprints;
+
+        BytecodeProgram(SimpleLangBytecode.Program program, SimpleLangMemo memo) {
+            this.program = program;
+            this.memo = memo;
+            this.fingerprints = memo == null ? null : new SimpleLangMemo.Fingerprints(program);
+        }
+
+        @Override
+        public Integer run(String[] args, SimpleLangExecutionContext context) {
+            return new SimpleLangVM(program, null, context, memo, fingerprints).run("main", arguments(args));
+        }
+
+        // A VM about to run main with args, see SimpleLangVM.step
+        SimpleLangVM start(String[] args, SimpleLangExecutionContext context) {
+            SimpleLangVM vm = new SimpleLangVM(program, null, context, memo, fingerprints);
+            vm.start("main", arguments(args));
+            return vm;
+        }
+    }
+
+    static SimpleLangBytecode.Program compile(SimpleLangParser.ProgContext prog) throws IOException {
+        String profileFile = System.getProperty("simplelang.bytecode.profile");
+        SimpleLangBytecode.Profile profile = profileFile == null ? null : SimpleLangBytecode.Profile.load(Path.of(profileFile));
+        return SimpleLangBytecodeCompiler.compile(prog, profile, true);
+    }
+
+    private static int[] arguments(String[] args) {
+        int[] argValues = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argValues[i] = SimpleLangEngine.parseArgument(args[i]);
+        }
+        return argValues;
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The .simpc format: a {@link SimpleLangBytecode.Program} compiled ahead of time, so that a run
+ * does not have to lex, parse or compile anything.
+ *
+ * All numbers are big-endian ints:
+ *
+ *   magic, version, function count F, constant count C,
+ *   F offsets, one per function, from the start of the file,
+ *   F function names and C constants, each as a byte length followed by UTF-8,
+ *   F functions, each as param count, param slots, frame size, max stack, returns unit (0/1),
+ *   code length, code.
+ *
+ * {@link #load} maps the file and decodes a function only when the VM first calls it.
+ */
+final class SimpleLangBytecodeFile {
+
+    static final int MAGIC = 0x53494d43; // "SIMC"
+    static final int VERSION = 1;
+
+    private SimpleLangBytecodeFile() {
+    }
+
+    static void write(SimpleLangBytecode.Program program, Path file) throws IOException {
+        int count = program.names.length;
+        ByteArrayOutputStream symbols = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(symbols);
+        for (String name : program.names) {
+            writeString(out, name);
+        }
+        for (String constant : program.constants) {
+            writeString(out, constant);
+        }
+
+        byte[][] functions = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            SimpleLangBytecode.Function function = program.function(i);
+            out.writeInt(function.paramSlots.length);
+            for (int slot : function.paramSlots) {
+                out.writeInt(slot);
+            }
+            out.writeInt(function.frameSize);
+            out.writeInt(function.maxStack);
+            out.writeInt(function.returnsUnit ? 1 : 0);
+            out.writeInt(function.code.length);
+            for (int word : function.code) {
+                out.writeInt(word);
+            }
+            functions[i] = bytes.toByteArray();
+        }
+
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        out = new DataOutputStream(image);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(program.constants.length);
+        int offset = 4 * (4 + count) + symbols.size();
+        for (byte[] function : functions) {
+            out.writeInt(offset);
+            offset += function.length;
+        }
+        symbols.writeTo(out);
+        for (byte[] function : functions) {
+            out.write(function);
+        }
+        Files.write(file, image.toByteArray());
+    }
+
+    static SimpleLangBytecode.Program load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.remaining() < 16 || data.getInt(0) != MAGIC) {
+            throw new RuntimeException("Not a .simpc file: " + file);
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new RuntimeException("Unsupported .simpc version " + data.getInt(4) + " in " + file);
+        }
+        int count = data.getInt(8);
+        int[] offsets = new int[count];
+        data.position(16);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = data.getInt();
+        }
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readString(data);
+        }
+        String[] constants = new String[data.getInt(12)];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = readString(data);
+        }
+        return new MappedProgram(names, constants, data, offsets);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A program whose functions stay encoded in the mapped file until they are first needed.
+     */
+    private static final class MappedProgram extends SimpleLangBytecode.Program {
+
+        private final ByteBuffer data;
+        private final int[] offsets;
+
+        MappedProgram(String[] names, String[] constants, ByteBuffer data, int[] offsets) {
+            super(names, constants, new SimpleLangBytecode.Function[names.length]);
+            this.data = data;
+            this.offsets = offsets;
+        }
+
+        @Override
+        SimpleLangBytecode.Function function(int index) {
+            SimpleLangBytecode.Function function = functions[index];
+            if (function == null) {
+                function = decode(index);
+                functions[index] = function;
+            }
+            return function;
+        }
+
+        private SimpleLangBytecode.Function decode(int index) {
+            ByteBuffer in = data.duplicate().position(offsets[index]);
+            int[] paramSlots = new int[in.getInt()];
+            for (int i = 0; i < paramSlots.length; i++) {
+                paramSlots[i] = in.getInt();
+            }
+            int frameSize = in.getInt();
+            int maxStack = in.getInt();
+            boolean returnsUnit = in.getInt() != 0;
+            int[] code = new int[in.getInt()];
+            in.asIntBuffer().get(code);
+            return new SimpleLangBytecode.Function(names[index], paramSlots, frameSize, maxStack, returnsUnit, code);
+        }
+    }
+}
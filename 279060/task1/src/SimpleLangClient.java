@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a program on a {@link SimpleLangServer} instead of in a JVM of its own. It takes the same
+ * command line as Task1, reads the program from standard input or --file=program.simp, and
+ * prints what Task1 would. Its own options come first: --socket=path if the server is not on
+ * the default socket, and --timing to print how long linking and running took to stderr.
+ *
+ * A run that fails prints its output so far and the error and exits with 1; a request the
+ * server refuses exits with 2; a run that goes over a limit prints what Task1 would and exits
+ * with 3.
+ */
+public class SimpleLangClient {
+
+    public static void main(String[] args) throws IOException {
+        Path socket = SimpleLangProtocol.defaultSocket();
+        boolean timing = false;
+        byte[] source = null;
+        List<String> forwarded = new ArrayList<>();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (args[i].startsWith("--socket=")) {
+                socket = Path.of(args[i].substring("--socket=".length()));
+            } else if (args[i].equals("--timing")) {
+                timing = true;
+            } else if (args[i].startsWith("--file=")) {
+                // the server may not see the same files, so the source is sent instead
+                source = Files.readAllBytes(Path.of(args[i].substring("--file=".length())));
+            } else {
+                forwarded.add(args[i]);
+            }
+        }
+        for (; i < args.length; i++) {
+            forwarded.add(args[i]);
+        }
+        if (source == null) {
+            source = System.in.readAllBytes();
+        }
+
+        SimpleLangProtocol.Response response;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            new SimpleLangProtocol.Request(forwarded.toArray(new String[0]), source).write(Channels.newOutputStream(channel));
+            response = SimpleLangProtocol.Response.read(Channels.newInputStream(channel));
+        }
+
+        System.out.write(response.output);
+        if (timing) {
+            System.err.printf("link %.3f ms, run %.3f ms%n", response.linkNanos / 1e6, response.runNanos / 1e6);
+        }
+        if (response.status == SimpleLangProtocol.NORMAL) {
+            System.out.println();
+            System.out.println("NORMAL_TERMINATION");
+            System.out.println(response.result);
+            return;
+        }
+        if (response.status == SimpleLangProtocol.LIMIT_EXCEEDED) {
+            System.out.println();
+            System.out.println("LIMIT_EXCEEDED");
+            System.out.println(response.message);
+            System.out.flush();
+            System.exit(3);
+        }
+        System.out.flush();
+        System.err.println(response.status == SimpleLangProtocol.FAILED ? "Exception: " + response.message : response.message);
+        System.exit(response.status == SimpleLangProtocol.FAILED ? 1 : 2);
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs work that is asked for again while it is still running only once, and gives what it
+ * produced to every caller that asked for it in the meantime. {@link SimpleLangServer} keys
+ * requests by everything that decides their response, so that a burst of identical requests
+ * costs one run, however many clients sent it.
+ *
+ * Callers that join a run get what the run returned or threw, as if they had run it themselves.
+ * Once the run is over its key is free again, so a failure is never handed to a caller that
+ * arrives after it, and the next caller runs the work afresh.
+ *
+ * Callers may give a priority, which is not part of the key: the run hears through its
+ * {@link Flight} of every caller that joins it with a higher priority than any before, so that
+ * a run started for a caller in no hurry can speed up for one that is.
+ */
+final class SimpleLangCoalescer<T> {
+
+    private final ConcurrentHashMap<String, Flight<T>> running = new ConcurrentHashMap<>();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    T run(String key, Supplier<T> work) {
+        return run(key, 0, flight -> work.get());
+    }
+
+    T run(String key, int priority, Function<Flight<T>, T> work) {
+        Flight<T> flight = new Flight<>(priority);
+        Flight<T> other = running.putIfAbsent(key, flight);
+        if (other != null) {
+            joined.incrementAndGet();
+            other.raise(priority);
+            try {
+                return other.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        runs.incrementAndGet();
+        try {
+            T result = work.apply(flight);
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            running.remove(key, flight);
+        }
+    }
+
+    // Callers that got the result of a run they did not start
+    long joined() {
+        return joined.get();
+    }
+
+    String stats() {
+        return runs.get() + " runs, " + joined.get() + " joined";
+    }
+
+    /**
+     * A run in progress, and the highest priority of the callers waiting for it.
+     */
+    static final class Flight<T> extends CompletableFuture<T> {
+
+        private int priority;
+        private IntConsumer onRaise;
+
+        private Flight(int priority) {
+            this.priority = priority;
+        }
+
+        // Calls onRaise with the highest priority so far, and again whenever a caller that
+        // joins raises it
+        synchronized void onRaise(IntConsumer onRaise) {
+            this.onRaise = onRaise;
+            onRaise.accept(priority);
+        }
+
+        private synchronized void raise(int priority) {
+            if (priority > this.priority) {
+                this.priority = priority;
+                if (onRaise != null) {
+                    onRaise.accept(priority);
+                }
+            }
+        }
+    }
+}
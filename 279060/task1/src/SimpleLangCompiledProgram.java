@@ -0,0 +1,11 @@
+/**
+ * A program linked by one of the engines, ready to run. It holds nothing that belongs to a run,
+ * so it is linked once and can then be run any number of times, from any number of threads at
+ * once, each run with its own {@link SimpleLangExecutionContext}.
+ */
+@FunctionalInterface
+public interface SimpleLangCompiledProgram {
+
+    // Runs main with args, printing to the context's output; null if main returns unit
+    Integer run(String[] args, SimpleLangExecutionContext context);
+}
@@ -0,0 +1,229 @@
+import org.antlr.v4.runtime.Token;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hand-written recursive-descent parser for SimpleLang.g4 that builds {@link SimpleLangAst} nodes
+ * straight from the tokens of {@link SimpleLangScanner}, with no parse tree in between. Every
+ * alternative of exp starts with its own token, except the three starting with an identifier,
+ * which the token after it tells apart, so the parser pulls one token at a time from the scanner
+ * and never holds on to more than the current one.
+ *
+ * It stops at the first syntax error; {@link SimpleLangParser} stays the parser that reports
+ * errors properly and the reference for what the grammar accepts.
+ */
+final class SimpleLangDescentParser {
+
+    private final SimpleLangScanner scanner;
+    private final SimpleLangAstBuilder builder = new SimpleLangAstBuilder();
+
+    private SimpleLangDescentParser(SimpleLangScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    static SimpleLangAst.Program parse(ByteBuffer source) {
+        SimpleLangScanner scanner = new SimpleLangScanner(source);
+        scanner.next();
+        return new SimpleLangDescentParser(scanner).prog();
+    }
+
+    private SimpleLangAst.Program prog() {
+        do {
+            dec();
+        } while (current() != Token.EOF);
+        return builder.finish();
+    }
+
+    private void dec() {
+        typeName();
+        int name = identifier();
+        expect(SimpleLangLexer.LParen);
+        int[] params = new int[4];
+        int paramCount = 0;
+        if (current() != SimpleLangLexer.RParen) {
+            do {
+                typeName();
+                if (paramCount == params.length) {
+                    params = Arrays.copyOf(params, 2 * paramCount);
+                }
+                params[paramCount++] = identifier();
+            } while (accept(SimpleLangLexer.Comma));
+        }
+        expect(SimpleLangLexer.RParen);
+        SimpleLangAst.Function function = builder.function(name, Arrays.copyOf(params, paramCount));
+
+        expect(SimpleLangLexer.LBrace);
+        List<SimpleLangAst.Node> body = new ArrayList<>();
+        while (isType(current())) {
+            String type = typeName();
+            int var = identifier();
+            expect(SimpleLangLexer.Assign);
+            body.add(builder.declare(function, type, var, exp(function)));
+            expect(SimpleLangLexer.Semicolon);
+        }
+        ene(function, body);
+        expect(SimpleLangLexer.RBrace);
+        builder.body(function, body);
+    }
+
+    private SimpleLangAst.Node block(SimpleLangAst.Function function) {
+        expect(SimpleLangLexer.LBrace);
+        List<SimpleLangAst.Node> nodes = new ArrayList<>();
+        ene(function, nodes);
+        expect(SimpleLangLexer.RBrace);
+        return builder.sequence(nodes);
+    }
+
+    private void ene(SimpleLangAst.Function function, List<SimpleLangAst.Node> nodes) {
+        do {
+            nodes.add(exp(function));
+        } while (accept(SimpleLangLexer.Semicolon));
+    }
+
+    private SimpleLangAst.Node exp(SimpleLangAst.Function function) {
+        switch (current()) {
+            case SimpleLangLexer.Idfr -> {
+                int name = identifier();
+                if (accept(SimpleLangLexer.Assign)) {
+                    return builder.assign(function, name, exp(function));
+                } else if (accept(SimpleLangLexer.LParen)) {
+                    List<SimpleLangAst.Node> args = new ArrayList<>();
+                    if (current() != SimpleLangLexer.RParen) {
+                        do {
+                            args.add(exp(function));
+                        } while (accept(SimpleLangLexer.Comma));
+                    }
+                    expect(SimpleLangLexer.RParen);
+                    return builder.call(name, args);
+                }
+                return builder.read(function, name);
+            }
+            case SimpleLangLexer.LParen -> {
+                scanner.next();
+                SimpleLangAst.Node left = exp(function);
+                int op = current();
+                if (!isBinop(op)) {
+                    throw error("a binary operator");
+                }
+                scanner.next();
+                SimpleLangAst.Node right = exp(function);
+                expect(SimpleLangLexer.RParen);
+                return builder.binOp(op, left, right);
+            }
+            case SimpleLangLexer.LBrace -> {
+                return block(function);
+            }
+            case SimpleLangLexer.If -> {
+                scanner.next();
+                SimpleLangAst.Node cond = exp(function);
+                expect(SimpleLangLexer.Then);
+                SimpleLangAst.Node then = block(function);
+                expect(SimpleLangLexer.Else);
+                return builder.ifNode(cond, then, block(function));
+            }
+            case SimpleLangLexer.While -> {
+                scanner.next();
+                SimpleLangAst.Node cond = exp(function);
+                expect(SimpleLangLexer.Do);
+                return builder.whileNode(cond, block(function));
+            }
+            case SimpleLangLexer.Repeat -> {
+                scanner.next();
+                SimpleLangAst.Node body = block(function);
+                expect(SimpleLangLexer.Until);
+                return builder.repeatNode(body, exp(function));
+            }
+            case SimpleLangLexer.Print -> {
+                scanner.next();
+                return builder.print(exp(function));
+            }
+            case SimpleLangLexer.Space -> {
+                scanner.next();
+                return builder.space();
+            }
+            case SimpleLangLexer.NewLine -> {
+                scanner.next();
+                return builder.newLine();
+            }
+            case SimpleLangLexer.Skip -> {
+                scanner.next();
+                return builder.skip();
+            }
+            case SimpleLangLexer.BoolLit -> {
+                // true and false differ in length
+                boolean value = scanner.length == 4;
+                scanner.next();
+                return builder.boolLiteral(value);
+            }
+            case SimpleLangLexer.IntLit -> {
+                int value = scanner.intValue();
+                scanner.next();
+                return builder.intLiteral(value);
+            }
+            default -> throw error("an expression");
+        }
+    }
+
+    private int current() {
+        return scanner.type;
+    }
+
+    private boolean accept(int type) {
+        if (scanner.type == type) {
+            scanner.next();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(int type) {
+        if (!accept(type)) {
+            throw error(SimpleLangLexer.VOCABULARY.getDisplayName(type));
+        }
+    }
+
+    // The symbol of an identifier, interned without building its String
+    private int identifier() {
+        if (scanner.type != SimpleLangLexer.Idfr) {
+            throw error("an identifier");
+        }
+        int symbol = scanner.symbol();
+        scanner.next();
+        return symbol;
+    }
+
+    // The type of a typed_idfr, as its keyword
+    private String typeName() {
+        if (!isType(scanner.type)) {
+            throw error("a type");
+        }
+        return take();
+    }
+
+    private String take() {
+        String text = scanner.text();
+        scanner.next();
+        return text;
+    }
+
+    private static boolean isType(int type) {
+        return type == SimpleLangLexer.IntType || type == SimpleLangLexer.BoolType || type == SimpleLangLexer.UnitType;
+    }
+
+    private static boolean isBinop(int type) {
+        return switch (type) {
+            case SimpleLangLexer.Eq, SimpleLangLexer.Less, SimpleLangLexer.LessEq, SimpleLangLexer.Great,
+                    SimpleLangLexer.GreatEq, SimpleLangLexer.Plus, SimpleLangLexer.Minus, SimpleLangLexer.Times,
+                    SimpleLangLexer.Divide, SimpleLangLexer.And, SimpleLangLexer.Or, SimpleLangLexer.Xor -> true;
+            default -> false;
+        };
+    }
+
+    private RuntimeException error(String expected) {
+        String found = scanner.type == Token.EOF ? "<EOF>" : "'" + scanner.text() + "'";
+        return new RuntimeException("line " + scanner.line() + ":" + scanner.column() + " expected " + expected + " but found " + found);
+    }
+}
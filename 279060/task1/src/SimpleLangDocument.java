@@ -0,0 +1,277 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A program that is edited in place, as in an editor. Each {@link #edit} re-lexes and re-parses
+ * only the decs the edit touches; every other dec keeps its {@link SimpleLangParser.DecContext}
+ * and {@link FunctionLayout}. Of the facts that cross functions, only returnsUnit needs
+ * recomputing, and only for the changed functions and the functions that call them, directly
+ * or not.
+ *
+ * An edit whose effect reaches past the decs it touches, such as an unbalanced brace, makes the
+ * whole text parse again. While the text does not parse, the document keeps the decs and
+ * layouts of the last text that did.
+ *
+ * Token positions inside a kept dec refer to the text as it was when that dec was parsed.
+ */
+final class SimpleLangDocument {
+
+    private static final class Dec {
+
+        int start;
+        int end;
+        int line;
+        final FunctionLayout layout;
+
+        Dec(int start, int end, int line, FunctionLayout layout) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.layout = layout;
+        }
+    }
+
+    private final String sourceName;
+    private final StringBuilder text;
+    private final List<Dec> decs = new ArrayList<>();
+    private final SimpleLangSymbols.SymbolMap<FunctionLayout> layouts = new SimpleLangSymbols.SymbolMap<>();
+    // For every called function, the symbols of the decs that call it, once per dec
+    private final SimpleLangSymbols.SymbolMap<List<Integer>> callers = new SimpleLangSymbols.SymbolMap<>();
+    // How many decs declare each function
+    private final SimpleLangSymbols.SymbolMap<Integer> declarations = new SimpleLangSymbols.SymbolMap<>();
+    private int[] invalidated = new int[0];
+    private SimpleLangParser.ProgContext tree;
+    private int reparsed;
+    private boolean broken;
+
+    SimpleLangDocument(String text, String sourceName) {
+        this.sourceName = sourceName;
+        this.text = new StringBuilder(text);
+        List<Dec> parsed = parse(0, this.text.length());
+        decs.addAll(parsed);
+        update(List.of(), parsed);
+    }
+
+    String text() {
+        return text.toString();
+    }
+
+    List<FunctionLayout> layouts() {
+        return layouts.values();
+    }
+
+    FunctionLayout layout(int symbol) {
+        return layouts.get(symbol);
+    }
+
+    // The symbols of the functions whose layout the last edit created or changed
+    int[] invalidated() {
+        return invalidated.clone();
+    }
+
+    // How many decs the last edit parsed
+    int reparsed() {
+        return reparsed;
+    }
+
+    // Whether the text failed to parse after the last edit
+    boolean broken() {
+        return broken;
+    }
+
+    SimpleLangParser.ProgContext tree() {
+        if (tree == null) {
+            tree = new SimpleLangParser.ProgContext(null, -1);
+            for (Dec dec : decs) {
+                tree.addChild(dec.layout.dec);
+                dec.layout.dec.setParent(tree);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Replaces length characters at offset with replacement, and throws the parse error if the
+     * new text does not parse.
+     */
+    void edit(int offset, int length, String replacement) {
+        if (offset < 0 || length < 0 || offset + length > text.length()) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + length + " outside text of length " + text.length());
+        }
+        int delta = replacement.length() - length;
+
+        // The decs the edit overlaps or touches, which may merge with the new text
+        int first = firstEndingAtOrAfter(offset);
+        int last = first;
+        while (last < decs.size() && decs.get(last).start <= offset + length) {
+            last++;
+        }
+        int start = first < last ? Math.min(offset, decs.get(first).start) : offset;
+        int end = first < last ? Math.max(offset + replacement.length(), decs.get(last - 1).end + delta) : offset + replacement.length();
+
+        int lineDelta = newlines(replacement, 0, replacement.length()) - newlines(text, offset, offset + length);
+        text.replace(offset, offset + length, replacement);
+        tree = null;
+        if (!broken) {
+            List<Dec> parsed = null;
+            try {
+                parsed = parse(start, end);
+            } catch (RuntimeException e) {
+                // the decs around the edit no longer parse on their own
+            }
+            if (parsed != null) {
+                List<Dec> removed = new ArrayList<>(decs.subList(first, last));
+                decs.subList(first, last).clear();
+                decs.addAll(first, parsed);
+                for (int i = first + parsed.size(); i < decs.size(); i++) {
+                    decs.get(i).start += delta;
+                    decs.get(i).end += delta;
+                    decs.get(i).line += lineDelta;
+                }
+                update(removed, parsed);
+                return;
+            }
+        }
+
+        List<Dec> parsed;
+        try {
+            parsed = parse(0, text.length());
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        }
+        broken = false;
+        List<Dec> removed = new ArrayList<>(decs);
+        decs.clear();
+        decs.addAll(parsed);
+        update(removed, parsed);
+    }
+
+    // Parses text[start, end), which holds whole decs or only whitespace
+    private List<Dec> parse(int start, int end) {
+        List<Dec> parsed = new ArrayList<>();
+        if (text.substring(start, end).isBlank()) {
+            reparsed = 0;
+            return parsed;
+        }
+        // Count lines from the closest dec before start rather than from the top
+        int before = firstEndingAtOrAfter(start) - 1;
+        int from = before >= 0 ? decs.get(before).start : 0;
+        int line = (before >= 0 ? decs.get(before).line : 1) + newlines(text, from, start);
+        int lineStart = start;
+        while (lineStart > 0 && text.charAt(lineStart - 1) != '\n') {
+            lineStart--;
+        }
+        ByteBuffer source = ByteBuffer.wrap(text.substring(lineStart, end).getBytes(StandardCharsets.UTF_8));
+        source.position(start - lineStart);
+        SimpleLangParser.ProgContext prog = SimpleLangFrontEnd.parseStrict(new SimpleLangScanner(source, line, 0), sourceName);
+        for (SimpleLangParser.DecContext dec : prog.dec()) {
+            parsed.add(new Dec(lineStart + dec.getStart().getStartIndex(), lineStart + dec.getStop().getStopIndex() + 1,
+                    dec.getStart().getLine(), FunctionLayout.of(dec)));
+        }
+        reparsed = parsed.size();
+        return parsed;
+    }
+
+    // Brings layouts and callers in line with the decs, then re-resolves what depends on the change
+    private void update(List<Dec> removed, List<Dec> added) {
+        SimpleLangSymbols.SymbolMap<Boolean> changed = new SimpleLangSymbols.SymbolMap<>();
+        for (Dec dec : removed) {
+            int symbol = dec.layout.symbol;
+            changed.put(symbol, Boolean.TRUE);
+            declarations.put(symbol, declarations.get(symbol) - 1);
+            for (int callee : dec.layout.callees) {
+                List<Integer> symbols = callers.get(callee);
+                symbols.remove((Integer) symbol);
+                if (symbols.isEmpty()) {
+                    callers.remove(callee);
+                }
+            }
+        }
+        for (Dec dec : added) {
+            int symbol = dec.layout.symbol;
+            changed.put(symbol, Boolean.TRUE);
+            Integer count = declarations.get(symbol);
+            declarations.put(symbol, count == null ? 1 : count + 1);
+            for (int callee : dec.layout.callees) {
+                List<Integer> symbols = callers.get(callee);
+                if (symbols == null) {
+                    symbols = new ArrayList<>();
+                    callers.put(callee, symbols);
+                }
+                symbols.add(symbol);
+            }
+        }
+        // The last declaration of a name wins. Unless every declaration left is one just added,
+        // it has to be searched for among all the decs
+        SimpleLangSymbols.SymbolMap<Integer> addedCounts = new SimpleLangSymbols.SymbolMap<>();
+        for (Dec dec : added) {
+            addedCounts.put(dec.layout.symbol, addedCounts.getOrDefault(dec.layout.symbol, 0) + 1);
+        }
+        boolean search = false;
+        int[] changedSymbols = changed.keys();
+        for (int symbol : changedSymbols) {
+            layouts.remove(symbol);
+            Integer count = declarations.get(symbol);
+            if (count != null && count == 0) {
+                declarations.remove(symbol);
+            }
+            search |= count != null && count > addedCounts.getOrDefault(symbol, 0);
+        }
+        for (Dec dec : search ? decs : added) {
+            if (changed.containsKey(dec.layout.symbol)) {
+                layouts.put(dec.layout.symbol, dec.layout);
+            }
+        }
+
+        SimpleLangSymbols.SymbolMap<Boolean> affected = new SimpleLangSymbols.SymbolMap<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (int symbol : changedSymbols) {
+            affected.put(symbol, Boolean.TRUE);
+            pending.push(symbol);
+        }
+        while (!pending.isEmpty()) {
+            for (int caller : callers.getOrDefault(pending.pop(), List.of())) {
+                if (!affected.containsKey(caller)) {
+                    affected.put(caller, Boolean.TRUE);
+                    pending.push(caller);
+                }
+            }
+        }
+        invalidated = affected.keys();
+        List<FunctionLayout> unresolved = new ArrayList<>();
+        for (int symbol : invalidated) {
+            FunctionLayout layout = layouts.get(symbol);
+            if (layout != null) {
+                unresolved.add(layout);
+            }
+        }
+        FunctionLayout.resolveUnits(unresolved, layouts);
+    }
+
+    // The index of the first dec that ends at or after offset, by binary search
+    private int firstEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = decs.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (decs.get(mid).end < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int newlines(CharSequence chars, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (chars.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
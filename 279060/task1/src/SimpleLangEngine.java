@@ -0,0 +1,19 @@
+/**
+ * A way of running a parsed SimpleLang program. Engines are looked up by name in
+ * {@link SimpleLangEngines} and selected in {@link Task1} with --engine=name.
+ */
+public interface SimpleLangEngine {
+
+    // Does everything that does not depend on the arguments, once per program
+    SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog);
+
+    // Links prog and runs it once, printing to System.out
+    default Integer run(SimpleLangParser.ProgContext prog, String[] args) {
+        return link(prog).run(args, SimpleLangExecutionContext.standard());
+    }
+
+    // Converts one command line argument for main the way SimpleLangInterpreter always has
+    static int parseArgument(String arg) {
+        return arg.equals("true") ? 1 : arg.equals("false") ? 0 : Integer.parseInt(arg);
+    }
+}
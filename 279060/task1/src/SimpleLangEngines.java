@@ -0,0 +1,34 @@
+import java.util.*;
+import java.util.function.Supplier;
+
+public final class SimpleLangEngines {
+
+    static final String DEFAULT = "interp";
+
+    private static final Map<String, Supplier<SimpleLangEngine>> ENGINES = new LinkedHashMap<>();
+
+    static {
+        ENGINES.put(DEFAULT, SimpleLangInterpreter::new);
+        ENGINES.put("tiered", SimpleLangTieredInterpreter::new);
+        ENGINES.put("ast", SimpleLangAstEngine::new);
+        ENGINES.put("mh", SimpleLangMethodHandleEngine::new);
+        ENGINES.put("bytecode", SimpleLangBytecodeEngine::new);
+        ENGINES.put("flat", SimpleLangFlatEngine::new);
+        ENGINES.put("lanes", SimpleLangLaneEngine::new);
+    }
+
+    private SimpleLangEngines() {
+    }
+
+    static Set<String> names() {
+        return Collections.unmodifiableSet(ENGINES.keySet());
+    }
+
+    static SimpleLangEngine create(String name) {
+        Supplier<SimpleLangEngine> engine = ENGINES.get(name);
+        if (engine == null) {
+            throw new IllegalArgumentException("Unknown engine: " + name + ", expected one of " + ENGINES.keySet());
+        }
+        return engine.get();
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Stack;
+import java.util.function.Supplier;
+
+/**
+ * The state of one run of a {@link SimpleLangCompiledProgram}: the stream the program prints to,
+ * for {@link SimpleLangInterpreter} its frames, and what the run has used of its
+ * {@link SimpleLangLimits}. Other engines keep their frames in arrays on the Java stack or in
+ * their VM. A context belongs to one run at a time. Without limits it can be reused for the
+ * next run once one has returned; limits count from when the context is created, so a context
+ * with limits is for one run.
+ */
+public final class SimpleLangExecutionContext {
+
+    private static final ThreadLocal<SimpleLangExecutionContext> CURRENT = new ThreadLocal<>();
+
+    final PrintStream out;
+    // Variables of the interpreter, keyed by symbol, innermost call on top
+    final Stack<SimpleLangSymbols.SymbolMap<Integer>> frames = new Stack<>();
+
+    // Steps between two looks at the clock and the allocation counter, when a limit needs them
+    static final long CHECK_INTERVAL = 1 << 14;
+
+    final SimpleLangLimits limits;
+    // Steps left before backEdge has to look at the limits again, and after that
+    private long budget;
+    private long stepsLeft;
+    private final long deadline;
+    private final boolean watched;
+    private final int maxDepth;
+    private final long maxSlots;
+    private int depth;
+    private long slots;
+    private int peakDepth;
+    private long peakSlots;
+    private final Meter output;
+    // Bytes allocated so far, and the thread of the slice in progress with what it had
+    // allocated when last looked at
+    private long allocated;
+    private Thread sliceThread;
+    private long sliceMark;
+
+    public SimpleLangExecutionContext(PrintStream out) {
+        this(out, SimpleLangLimits.NONE);
+    }
+
+    public SimpleLangExecutionContext(PrintStream out, SimpleLangLimits limits) {
+        this.output = new Meter(out, limits.maxOutput);
+        this.out = new PrintStream(output);
+        this.limits = limits;
+        this.stepsLeft = limits.maxSteps;
+        this.deadline = limits.timeoutMillis == 0 ? 0 : System.nanoTime() + limits.timeoutMillis * 1_000_000;
+        this.watched = deadline != 0 || limits.maxAllocated != Long.MAX_VALUE;
+        this.maxDepth = limits.maxDepth;
+        this.maxSlots = limits.maxSlots;
+        if (limits.maxAllocated != Long.MAX_VALUE) {
+            beginSlice();
+        }
+    }
+
+    // A loop is going round again
+    void backEdge() {
+        if (--budget < 0) {
+            refill();
+        }
+    }
+
+    // A call with a frame of frameSize variables is starting; exit when it returns. A call that
+    // fails need not exit, since its run is over
+    void enter(int frameSize) {
+        if (--budget < 0) {
+            refill();
+        }
+        // a new peak is the only time a limit can have been passed
+        if (++depth > peakDepth) {
+            peakDepth = depth;
+            if (depth > maxDepth) {
+                throw new SimpleLangLimits.Exceeded("Call depth limit of " + maxDepth + " exceeded");
+            }
+        }
+        if ((slots += frameSize) > peakSlots) {
+            peakSlots = slots;
+            if (slots > maxSlots) {
+                throw new SimpleLangLimits.Exceeded("Frame slot limit of " + maxSlots + " exceeded");
+            }
+        }
+    }
+
+    void exit(int frameSize) {
+        depth--;
+        slots -= frameSize;
+    }
+
+    // Hands out the next steps up to the next check, this one included
+    private void refill() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new SimpleLangLimits.Exceeded("Time limit of " + limits.timeoutMillis + " ms exceeded");
+        }
+        if (limits.maxAllocated != Long.MAX_VALUE) {
+            checkAllocations();
+        }
+        if (stepsLeft == 0) {
+            throw new SimpleLangLimits.Exceeded("Step limit of " + limits.maxSteps + " exceeded");
+        }
+        long steps = watched ? Math.min(stepsLeft, CHECK_INTERVAL) : stepsLeft;
+        stepsLeft -= steps;
+        budget = steps - 1;
+    }
+
+    // A run may move between threads, as with SimpleLangScheduler, and each thread counts its
+    // own allocations, so the run adds up what threads allocate in slices: from when a slice
+    // begins on a thread to when it ends, looking in between at every check. A run that stays
+    // on one thread is one slice, from when its context is created or its first check there
+    private void checkAllocations() {
+        countAllocations();
+        if (allocated > limits.maxAllocated) {
+            throw new SimpleLangLimits.Exceeded("Allocation limit of " + limits.maxAllocated + " bytes exceeded");
+        }
+    }
+
+    private void countAllocations() {
+        long mark = SimpleLangLimits.allocatedBytes();
+        if (mark < 0) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        if (thread == sliceThread) {
+            allocated += mark - sliceMark;
+        }
+        sliceThread = thread;
+        sliceMark = mark;
+    }
+
+    // The run is about to go on on the calling thread; endSlice once it stops there
+    void beginSlice() {
+        if (limits.maxAllocated != Long.MAX_VALUE) {
+            sliceThread = Thread.currentThread();
+            sliceMark = SimpleLangLimits.allocatedBytes();
+        }
+    }
+
+    // Counts what the slice allocated since it was last looked at, and nothing the thread
+    // allocates after it; the next check enforces the limit
+    void endSlice() {
+        if (limits.maxAllocated != Long.MAX_VALUE && sliceThread == Thread.currentThread()) {
+            countAllocations();
+            sliceThread = null;
+        }
+    }
+
+    // What the run has used so far, for Task1 --usage
+    String usage() {
+        if (limits.maxAllocated != Long.MAX_VALUE && sliceThread == Thread.currentThread()) {
+            countAllocations();
+        }
+        return "peak call depth " + peakDepth + ", peak frame slots " + peakSlots + ", output " + output.count + " bytes"
+                + (limits.maxAllocated != Long.MAX_VALUE ? ", allocated " + allocated + " bytes" : "");
+    }
+
+    // Counts what the run prints, and stops it at the output limit with what fits printed
+    private static final class Meter extends OutputStream {
+
+        private final PrintStream target;
+        private final long max;
+        private long count;
+
+        Meter(PrintStream target, long max) {
+            this.target = target;
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > max - count) {
+                target.write(b, off, (int) (max - count));
+                count = max;
+                throw new SimpleLangLimits.Exceeded("Output limit of " + max + " bytes exceeded");
+            }
+            count += len;
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target.flush();
+        }
+    }
+
+    static SimpleLangExecutionContext standard() {
+        return new SimpleLangExecutionContext(System.out);
+    }
+
+    // For engines whose compiled code has nowhere to pass the context along: makes this the
+    // context of the calling thread while body runs, see current()
+    <T> T bind(Supplier<T> body) {
+        SimpleLangExecutionContext outer = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return body.get();
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    // The context bound on this thread, or one on System.out outside any run
+    static SimpleLangExecutionContext current() {
+        SimpleLangExecutionContext context = CURRENT.get();
+        return context != null ? context : standard();
+    }
+}
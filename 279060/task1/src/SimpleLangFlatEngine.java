@@ -0,0 +1,151 @@
+import java.io.PrintStream;
+
+/**
+ * Lowers programs to a {@link SimpleLangFlatProgram} and evaluates its node arrays directly, one
+ * int[] frame per call.
+ */
+public class SimpleLangFlatEngine implements SimpleLangEngine {
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        return link(SimpleLangFlatLowering.lower(prog));
+    }
+
+    // For programs lowered earlier, whose parse tree is already gone
+    SimpleLangCompiledProgram link(SimpleLangFlatProgram program) {
+        return (args, context) -> {
+            int main = program.indexOf("main");
+            int f = SimpleLangFlatProgram.FUNCTION_STRIDE * main;
+            if (args.length > program.functions[f + 3]) {
+                throw new RuntimeException("Function main expects " + program.functions[f + 3] + " arguments but got " + args.length);
+            }
+            int[] frame = new int[program.functions[f + 1]];
+            for (int i = 0; i < args.length; i++) {
+                frame[program.lists[program.functions[f + 2] + i]] = SimpleLangEngine.parseArgument(args[i]);
+            }
+            int result = new Executor(program, context).eval(program.functions[f], frame);
+            return program.functions[f + 4] != 0 ? null : result;
+        };
+    }
+
+    private static final class Executor {
+
+        private final int[] nodes;
+        private final int[] lists;
+        private final int[] functions;
+        private final String[] constants;
+        private final PrintStream out;
+        private final SimpleLangExecutionContext context;
+
+        Executor(SimpleLangFlatProgram program, SimpleLangExecutionContext context) {
+            this.nodes = program.nodes;
+            this.lists = program.lists;
+            this.functions = program.functions;
+            this.constants = program.constants;
+            this.out = context.out;
+            this.context = context;
+        }
+
+        int eval(int node, int[] frame) {
+            int at = SimpleLangFlatProgram.STRIDE * node;
+            int a = nodes[at + 1];
+            int b = nodes[at + 2];
+            int c = nodes[at + 3];
+            switch (nodes[at]) {
+                case SimpleLangFlatProgram.CONST:
+                    return a;
+                case SimpleLangFlatProgram.LOAD:
+                    return frame[a];
+                case SimpleLangFlatProgram.STORE:
+                    return frame[a] = eval(b, frame);
+                case SimpleLangFlatProgram.CHECK_BOOL: {
+                    int v = eval(a, frame);
+                    if (v != 0 && v != 1) {
+                        throw new RuntimeException(constants[b]);
+                    }
+                    return v;
+                }
+                case SimpleLangFlatProgram.FAIL:
+                    throw new RuntimeException(constants[a]);
+                case SimpleLangFlatProgram.ADD:
+                    return eval(a, frame) + eval(b, frame);
+                case SimpleLangFlatProgram.SUB:
+                    return eval(a, frame) - eval(b, frame);
+                case SimpleLangFlatProgram.MUL:
+                    return eval(a, frame) * eval(b, frame);
+                case SimpleLangFlatProgram.DIV: {
+                    int left = eval(a, frame);
+                    int right = eval(b, frame);
+                    if (right == 0) {
+                        throw new RuntimeException("Division by zero.");
+                    }
+                    return left / right;
+                }
+                case SimpleLangFlatProgram.EQ:
+                    return eval(a, frame) == eval(b, frame) ? 1 : 0;
+                case SimpleLangFlatProgram.LT:
+                    return eval(a, frame) < eval(b, frame) ? 1 : 0;
+                case SimpleLangFlatProgram.GT:
+                    return eval(a, frame) > eval(b, frame) ? 1 : 0;
+                case SimpleLangFlatProgram.LE:
+                    return eval(a, frame) <= eval(b, frame) ? 1 : 0;
+                case SimpleLangFlatProgram.GE:
+                    return eval(a, frame) >= eval(b, frame) ? 1 : 0;
+                case SimpleLangFlatProgram.AND:
+                    return eval(a, frame) & eval(b, frame);
+                case SimpleLangFlatProgram.OR:
+                    return eval(a, frame) | eval(b, frame);
+                case SimpleLangFlatProgram.BAD_OP:
+                    eval(a, frame);
+                    eval(b, frame);
+                    throw new RuntimeException(constants[c]);
+                case SimpleLangFlatProgram.SEQ: {
+                    int end = a + b - 1;
+                    for (int i = a; i < end; i++) {
+                        eval(lists[i], frame);
+                    }
+                    return eval(lists[end], frame);
+                }
+                case SimpleLangFlatProgram.IF:
+                    return eval(eval(a, frame) > 0 ? b : c, frame);
+                case SimpleLangFlatProgram.WHILE:
+                    while (eval(a, frame) > 0) {
+                        context.backEdge();
+                        eval(b, frame);
+                    }
+                    return 0;
+                case SimpleLangFlatProgram.REPEAT:
+                    while (true) {
+                        eval(a, frame);
+                        if (eval(b, frame) != 0) {
+                            return 0;
+                        }
+                        context.backEdge();
+                    }
+                case SimpleLangFlatProgram.PRINT:
+                    out.print(eval(a, frame));
+                    return 0;
+                case SimpleLangFlatProgram.SPACE:
+                    out.print(" ");
+                    return 0;
+                case SimpleLangFlatProgram.NEWLINE:
+                    out.println();
+                    return 0;
+                case SimpleLangFlatProgram.CALL: {
+                    int f = SimpleLangFlatProgram.FUNCTION_STRIDE * a;
+                    int[] calleeFrame = new int[functions[f + 1]];
+                    int params = functions[f + 2];
+                    for (int i = 0; i < c; i++) {
+                        calleeFrame[lists[params + i]] = eval(lists[b + i], frame);
+                    }
+                    context.enter(calleeFrame.length);
+                    int result = eval(functions[f], calleeFrame);
+                    context.exit(calleeFrame.length);
+                    return result;
+                }
+                default:
+                    throw new IllegalStateException("Bad node kind " + nodes[at] + " at node " + node);
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Lowers a parse tree to a {@link SimpleLangFlatProgram}. Variables get the slots of their
+ * {@link FunctionLayout}, and everything that would fail when it runs, an undefined variable or
+ * function, a call with the wrong number of arguments or an unsupported operator, becomes a
+ * node that fails with the same message when it is reached, as in the other engines.
+ *
+ * Nodes are hash-consed: a node is only added if no node with the same kind and operands exists
+ * yet, and child lists likewise. Children are built before their parents, so identical subtrees
+ * come out as one node, and since variables are slots, so do function bodies that differ only
+ * in the names of their variables.
+ */
+final class SimpleLangFlatLowering {
+
+    private final SimpleLangSymbols.SymbolMap<FunctionLayout> layouts;
+    private final SimpleLangSymbols.SymbolMap<Integer> indices;
+    // For every function, the function that calls to it go to, or null to lower shapes, with
+    // the nth call of a body going to n and its callee recorded in callees
+    private final int[] targets;
+    private int[] callees = new int[16];
+    private int calls;
+    private final List<String> constants = new ArrayList<>();
+
+    private int[] nodes = new int[SimpleLangFlatProgram.STRIDE * 256];
+    private int nodeCount;
+    private int[] lists = new int[256];
+    private int listSize;
+    // Open addressing on the contents, holding node index + 1 and list start, which is never 0
+    private int[] nodeTable = new int[1024];
+    private int[] listTable = new int[256];
+    private int listCount;
+    private int nodesLowered;
+    private int listsLowered;
+    private FunctionLayout layout;
+
+    private SimpleLangFlatLowering(SimpleLangSymbols.SymbolMap<FunctionLayout> layouts, SimpleLangSymbols.SymbolMap<Integer> indices, int[] targets) {
+        this.layouts = layouts;
+        this.indices = indices;
+        this.targets = targets;
+    }
+
+    /**
+     * Lowers prog with functions that are alike up to the names of functions sharing one body.
+     * Functions are alike, as states are when minimising an automaton, if they have the same
+     * shape, their body with every call numbered in order instead of going anywhere, and their
+     * nth calls go to alike functions; recursive functions that differ only in calling
+     * themselves stay together. Shapes are lowered once, and the classes refined from them with
+     * Hopcroft's worklist, so a long chain of alike functions costs about as much as its length.
+     */
+    static SimpleLangFlatProgram lower(SimpleLangParser.ProgContext prog) {
+        SimpleLangSymbols.SymbolMap<FunctionLayout> layouts = FunctionLayout.of(prog);
+        List<FunctionLayout> functions = new ArrayList<>();
+        SimpleLangSymbols.SymbolMap<Integer> indices = new SimpleLangSymbols.SymbolMap<>();
+        for (SimpleLangParser.DecContext dec : prog.dec()) {
+            FunctionLayout layout = layouts.get(SimpleLangSymbols.of(dec.typed_idfr(0).Idfr()));
+            if (layout.dec == dec) {
+                indices.put(layout.symbol, functions.size());
+                functions.add(layout);
+            }
+        }
+        int count = functions.size();
+
+        SimpleLangFlatLowering shapes = new SimpleLangFlatLowering(layouts, indices, null);
+        int[] shapeTable = new int[SimpleLangFlatProgram.FUNCTION_STRIDE];
+        Map<List<Integer>, Integer> kinds = new HashMap<>();
+        int[] kind = new int[count];
+        int[][] callees = new int[count][];
+        for (int i = 0; i < count; i++) {
+            shapes.function(functions.get(i), shapeTable, 0);
+            callees[i] = Arrays.copyOf(shapes.callees, shapes.calls);
+            List<Integer> key = List.of(shapeTable[0], shapeTable[1], shapeTable[2], shapeTable[4]);
+            kind[i] = kinds.computeIfAbsent(key, k -> kinds.size());
+        }
+        int[] targets = new Partition(kind, kinds.size(), callees).refine();
+
+        SimpleLangFlatLowering lowering = new SimpleLangFlatLowering(layouts, indices, targets);
+        int[] table = new int[SimpleLangFlatProgram.FUNCTION_STRIDE * count];
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            lowering.function(functions.get(i), table, SimpleLangFlatProgram.FUNCTION_STRIDE * i);
+            names[i] = functions.get(i).name;
+        }
+        return new SimpleLangFlatProgram(Arrays.copyOf(lowering.nodes, SimpleLangFlatProgram.STRIDE * lowering.nodeCount),
+                Arrays.copyOf(lowering.lists, lowering.listSize), table, names, lowering.constants.toArray(new String[0]),
+                lowering.nodesLowered, lowering.listsLowered);
+    }
+
+    private void function(FunctionLayout layout, int[] table, int f) {
+        table[f] = body(layout);
+        table[f + 1] = layout.frameSize();
+        int[] paramSlots = new int[layout.params.length];
+        for (int p = 0; p < paramSlots.length; p++) {
+            paramSlots[p] = layout.slot(layout.params[p]);
+        }
+        table[f + 2] = list(paramSlots, paramSlots.length);
+        table[f + 3] = paramSlots.length;
+        table[f + 4] = layout.returnsUnit ? 1 : 0;
+    }
+
+    private int body(FunctionLayout layout) {
+        this.layout = layout;
+        calls = 0;
+        List<SimpleLangParser.Init_exprContext> inits = layout.dec.body().vardec;
+        List<SimpleLangParser.ExpContext> exps = layout.dec.body().ene().exp();
+        int[] children = new int[inits.size() + exps.size()];
+        int n = 0;
+        for (SimpleLangParser.Init_exprContext init : inits) {
+            SimpleLangParser.InitExprContext initExpr = (SimpleLangParser.InitExprContext) init;
+            int value = exp(initExpr.exp());
+            if ("bool".equals(initExpr.typed_idfr().type().getText())) {
+                value = node(SimpleLangFlatProgram.CHECK_BOOL, value,
+                        constant("Type mismatch: Expected bool for " + initExpr.typed_idfr().Idfr().getText()), 0);
+            }
+            children[n++] = node(SimpleLangFlatProgram.STORE, layout.slot(initExpr.typed_idfr().Idfr()), value, 0);
+        }
+        for (SimpleLangParser.ExpContext exp : exps) {
+            children[n++] = exp(exp);
+        }
+        return sequence(children, n);
+    }
+
+    private int ene(SimpleLangParser.EneContext ene) {
+        List<SimpleLangParser.ExpContext> exps = ene.exp();
+        int[] children = new int[exps.size()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = exp(exps.get(i));
+        }
+        return sequence(children, children.length);
+    }
+
+    private int sequence(int[] children, int count) {
+        return count == 1 ? children[0] : node(SimpleLangFlatProgram.SEQ, list(children, count), count, 0);
+    }
+
+    private int exp(SimpleLangParser.ExpContext ctx) {
+        if (ctx instanceof SimpleLangParser.IntExprContext intExpr) {
+            return node(SimpleLangFlatProgram.CONST, Integer.parseInt(intExpr.IntLit().getText()), 0, 0);
+        } else if (ctx instanceof SimpleLangParser.BoolExprContext) {
+            return node(SimpleLangFlatProgram.CONST, ctx.getText().equals("true") ? 1 : 0, 0, 0);
+        } else if (ctx instanceof SimpleLangParser.SkipExprContext) {
+            return node(SimpleLangFlatProgram.CONST, 0, 0, 0);
+        } else if (ctx instanceof SimpleLangParser.IdExprContext id) {
+            int slot = layout.slot(id.Idfr());
+            if (slot < 0) {
+                return fail("Undefined variable: " + id.Idfr().getText() + " in current frame.");
+            }
+            return node(SimpleLangFlatProgram.LOAD, slot, 0, 0);
+        } else if (ctx instanceof SimpleLangParser.AssignExprContext assign) {
+            return node(SimpleLangFlatProgram.STORE, layout.slot(assign.Idfr()), exp(assign.exp()), 0);
+        } else if (ctx instanceof SimpleLangParser.BinOpExprContext binOp) {
+            return binOp(binOp);
+        } else if (ctx instanceof SimpleLangParser.InvokeExprContext invoke) {
+            return invoke(invoke);
+        } else if (ctx instanceof SimpleLangParser.BlockExprContext block) {
+            return ene(block.block().ene());
+        } else if (ctx instanceof SimpleLangParser.IfExprContext ifExpr) {
+            return node(SimpleLangFlatProgram.IF, exp(ifExpr.exp()), ene(ifExpr.block(0).ene()), ene(ifExpr.block(1).ene()));
+        } else if (ctx instanceof SimpleLangParser.WhileExprContext whileExpr) {
+            return node(SimpleLangFlatProgram.WHILE, exp(whileExpr.exp()), ene(whileExpr.block().ene()), 0);
+        } else if (ctx instanceof SimpleLangParser.RepeatExprContext repeat) {
+            return node(SimpleLangFlatProgram.REPEAT, ene(repeat.block().ene()), exp(repeat.exp()), 0);
+        } else if (ctx instanceof SimpleLangParser.PrintExprContext print) {
+            // print space and print newline behave like space and newline on their own
+            SimpleLangParser.ExpContext value = print.exp();
+            if (value instanceof SimpleLangParser.SpaceExprContext || value instanceof SimpleLangParser.NewLineExprContext) {
+                return exp(value);
+            }
+            return node(SimpleLangFlatProgram.PRINT, exp(value), 0, 0);
+        } else if (ctx instanceof SimpleLangParser.SpaceExprContext) {
+            return node(SimpleLangFlatProgram.SPACE, 0, 0, 0);
+        } else if (ctx instanceof SimpleLangParser.NewLineExprContext) {
+            return node(SimpleLangFlatProgram.NEWLINE, 0, 0, 0);
+        }
+        throw new RuntimeException("Unsupported expression: " + ctx.getText());
+    }
+
+    private int binOp(SimpleLangParser.BinOpExprContext ctx) {
+        int kind = switch (((TerminalNode) ctx.binop().getChild(0)).getSymbol().getType()) {
+            case SimpleLangParser.Plus -> SimpleLangFlatProgram.ADD;
+            case SimpleLangParser.Minus -> SimpleLangFlatProgram.SUB;
+            case SimpleLangParser.Times -> SimpleLangFlatProgram.MUL;
+            case SimpleLangParser.Divide -> SimpleLangFlatProgram.DIV;
+            case SimpleLangParser.Eq -> SimpleLangFlatProgram.EQ;
+            case SimpleLangParser.Less -> SimpleLangFlatProgram.LT;
+            case SimpleLangParser.Great -> SimpleLangFlatProgram.GT;
+            case SimpleLangParser.LessEq -> SimpleLangFlatProgram.LE;
+            case SimpleLangParser.GreatEq -> SimpleLangFlatProgram.GE;
+            case SimpleLangParser.And -> SimpleLangFlatProgram.AND;
+            case SimpleLangParser.Or -> SimpleLangFlatProgram.OR;
+            default -> SimpleLangFlatProgram.BAD_OP;
+        };
+        int left = exp(ctx.exp(0));
+        int right = exp(ctx.exp(1));
+        if (kind == SimpleLangFlatProgram.BAD_OP) {
+            return node(kind, left, right, constant("Unsupported binary operator: " + ctx.binop().getText()));
+        }
+        return node(kind, left, right, 0);
+    }
+
+    private int invoke(SimpleLangParser.InvokeExprContext ctx) {
+        String calleeName = ctx.Idfr().getText();
+        FunctionLayout callee = layouts.get(SimpleLangSymbols.of(ctx.Idfr()));
+        if (callee == null) {
+            return fail("Undefined function: " + calleeName);
+        } else if (callee.params.length != ctx.args.size()) {
+            return fail("Function " + calleeName + " expects " + callee.params.length + " arguments but got " + ctx.args.size());
+        }
+        int[] args = new int[ctx.args.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = exp(ctx.args.get(i));
+        }
+        int target = indices.get(callee.symbol);
+        if (targets == null) {
+            if (calls == callees.length) {
+                callees = Arrays.copyOf(callees, 2 * calls);
+            }
+            callees[calls] = target;
+            target = calls++;
+        } else {
+            target = targets[target];
+        }
+        return node(SimpleLangFlatProgram.CALL, target, list(args, args.length), args.length);
+    }
+
+    private int fail(String message) {
+        return node(SimpleLangFlatProgram.FAIL, constant(message), 0, 0);
+    }
+
+    // The node with this kind and these operands, added if there is none yet
+    private int node(int kind, int a, int b, int c) {
+        nodesLowered++;
+        int mask = nodeTable.length - 1;
+        int i = mix(((kind * 31 + a) * 31 + b) * 31 + c) & mask;
+        for (int entry; (entry = nodeTable[i]) != 0; i = (i + 1) & mask) {
+            int at = SimpleLangFlatProgram.STRIDE * (entry - 1);
+            if (nodes[at] == kind && nodes[at + 1] == a && nodes[at + 2] == b && nodes[at + 3] == c) {
+                return entry - 1;
+            }
+        }
+        int at = SimpleLangFlatProgram.STRIDE * nodeCount;
+        if (at == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+        }
+        nodes[at] = kind;
+        nodes[at + 1] = a;
+        nodes[at + 2] = b;
+        nodes[at + 3] = c;
+        nodeTable[i] = ++nodeCount;
+        if (2 * nodeCount > nodeTable.length) {
+            nodeTable = rehash(nodeTable, entry -> nodeHash(SimpleLangFlatProgram.STRIDE * (entry - 1)));
+        }
+        return nodeCount - 1;
+    }
+
+    // The start of a run of lists equal to values[0, count), added if there is none yet
+    private int list(int[] values, int count) {
+        listsLowered++;
+        int mask = listTable.length - 1;
+        int i = mix(listHash(values, 0, count)) & mask;
+        for (int entry; (entry = listTable[i]) != 0; i = (i + 1) & mask) {
+            if (lists[entry - 1] == count && Arrays.equals(lists, entry, entry + count, values, 0, count)) {
+                return entry;
+            }
+        }
+        // Each list is stored after its length, which only the table reads
+        if (listSize + count + 1 > lists.length) {
+            lists = Arrays.copyOf(lists, Math.max(listSize + count + 1, 2 * lists.length));
+        }
+        lists[listSize] = count;
+        int start = listSize + 1;
+        System.arraycopy(values, 0, lists, start, count);
+        listSize = start + count;
+        listTable[i] = start;
+        if (2 * ++listCount > listTable.length) {
+            listTable = rehash(listTable, entry -> listHash(lists, entry, lists[entry - 1]));
+        }
+        return start;
+    }
+
+    private int nodeHash(int at) {
+        return ((nodes[at] * 31 + nodes[at + 1]) * 31 + nodes[at + 2]) * 31 + nodes[at + 3];
+    }
+
+    private static int listHash(int[] values, int from, int count) {
+        int h = count;
+        for (int i = from; i < from + count; i++) {
+            h = h * 31 + values[i];
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    // A table twice the size with the same entries
+    private static int[] rehash(int[] table, IntUnaryOperator hash) {
+        int[] bigger = new int[2 * table.length];
+        int mask = bigger.length - 1;
+        for (int entry : table) {
+            if (entry != 0) {
+                int i = mix(hash.applyAsInt(entry)) & mask;
+                while (bigger[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                bigger[i] = entry;
+            }
+        }
+        return bigger;
+    }
+
+    private int constant(String value) {
+        int index = constants.indexOf(value);
+        if (index < 0) {
+            constants.add(value);
+            index = constants.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Functions split into classes, first by kind, then whenever the nth calls of some members of
+     * a class go into a splitter class and those of others do not. A class is a range of
+     * elements, with the members found to call into the splitter moved to its front; of the two
+     * parts a class splits into, only the smaller needs to be a splitter again, unless the class
+     * was still waiting to be one.
+     */
+    private static final class Partition {
+
+        private final int count;
+        private final int[] elements;
+        private final int[] location;
+        private final int[] classOf;
+        private final int[] first;
+        private final int[] end;
+        private final int[] marked;
+        private final boolean[] waiting;
+        private final int[] worklist;
+        private int worklistSize;
+        private int classes;
+        // For every function, the calls that go to it, as caller << 32 | n
+        private final long[][] callers;
+
+        Partition(int[] kind, int kinds, int[][] callees) {
+            count = kind.length;
+            elements = new int[count];
+            location = new int[count];
+            classOf = new int[count];
+            first = new int[count + 1];
+            end = new int[count + 1];
+            marked = new int[count + 1];
+            waiting = new boolean[count + 1];
+            worklist = new int[count + 1];
+
+            // Counting sort by kind
+            int[] sizes = new int[kinds + 1];
+            for (int k : kind) {
+                sizes[k + 1]++;
+            }
+            for (int k = 0; k < kinds; k++) {
+                sizes[k + 1] += sizes[k];
+                first[k] = sizes[k];
+                end[k] = sizes[k + 1];
+            }
+            for (int f = 0; f < count; f++) {
+                int at = sizes[kind[f]]++;
+                elements[at] = f;
+                location[f] = at;
+                classOf[f] = kind[f];
+            }
+            classes = kinds;
+            for (int c = 0; c < classes; c++) {
+                waiting[c] = true;
+                worklist[worklistSize++] = c;
+            }
+
+            int[] incoming = new int[count];
+            for (int[] calls : callees) {
+                for (int g : calls) {
+                    incoming[g]++;
+                }
+            }
+            callers = new long[count][];
+            for (int g = 0; g < count; g++) {
+                callers[g] = new long[incoming[g]];
+                incoming[g] = 0;
+            }
+            for (int f = 0; f < count; f++) {
+                for (int n = 0; n < callees[f].length; n++) {
+                    int g = callees[f][n];
+                    callers[g][incoming[g]++] = (long) f << 32 | n;
+                }
+            }
+        }
+
+        // For every function, the first function of its class once no class splits any more
+        int[] refine() {
+            int[] touched = new int[count];
+            long[] calls = new long[0];
+            while (worklistSize > 0) {
+                int splitter = worklist[--worklistSize];
+                waiting[splitter] = false;
+                // The calls into the splitter, by n and then caller; the splitter's own range
+                // may be reordered while it is split, so they are all gathered first
+                int size = 0;
+                for (int i = first[splitter]; i < end[splitter]; i++) {
+                    size += callers[elements[i]].length;
+                }
+                if (calls.length < size) {
+                    calls = new long[Math.max(size, 2 * calls.length)];
+                }
+                size = 0;
+                for (int i = first[splitter]; i < end[splitter]; i++) {
+                    for (long call : callers[elements[i]]) {
+                        calls[size++] = (call & 0xffffffffL) << 32 | call >>> 32;
+                    }
+                }
+                Arrays.sort(calls, 0, size);
+                for (int from = 0, to; from < size; from = to) {
+                    long n = calls[from] >>> 32;
+                    int touchedCount = 0;
+                    for (to = from; to < size && calls[to] >>> 32 == n; to++) {
+                        int f = (int) calls[to];
+                        int c = classOf[f];
+                        int at = location[f];
+                        int front = first[c] + marked[c];
+                        if (at < front) {
+                            continue;
+                        }
+                        if (marked[c]++ == 0) {
+                            touched[touchedCount++] = c;
+                        }
+                        move(f, front);
+                    }
+                    for (int t = 0; t < touchedCount; t++) {
+                        split(touched[t]);
+                    }
+                }
+            }
+            int[] targets = new int[count];
+            for (int c = 0; c < classes; c++) {
+                int representative = Integer.MAX_VALUE;
+                for (int i = first[c]; i < end[c]; i++) {
+                    representative = Math.min(representative, elements[i]);
+                }
+                for (int i = first[c]; i < end[c]; i++) {
+                    targets[elements[i]] = representative;
+                }
+            }
+            return targets;
+        }
+
+        private void move(int f, int at) {
+            int other = elements[at];
+            elements[location[f]] = other;
+            location[other] = location[f];
+            elements[at] = f;
+            location[f] = at;
+        }
+
+        // Splits the marked front off c, if not all of c is marked
+        private void split(int c) {
+            int middle = first[c] + marked[c];
+            marked[c] = 0;
+            if (middle == end[c]) {
+                return;
+            }
+            int part = classes++;
+            first[part] = first[c];
+            end[part] = middle;
+            first[c] = middle;
+            for (int i = first[part]; i < middle; i++) {
+                classOf[elements[i]] = part;
+            }
+            int next = waiting[c] || end[part] - first[part] <= end[c] - first[c] ? part : c;
+            waiting[next] = true;
+            worklist[worklistSize++] = next;
+        }
+    }
+}
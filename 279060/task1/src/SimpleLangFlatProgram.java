@@ -0,0 +1,116 @@
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A loaded program as a handful of primitive arrays, produced by {@link SimpleLangFlatLowering}
+ * and run by {@link SimpleLangFlatEngine}. Once lowered, a program keeps no parse tree, tokens
+ * or per-node objects.
+ *
+ * Every node takes {@link #STRIDE} consecutive ints of {@link #nodes}: its kind and up to three
+ * operands, which are literal values, slots, constant indices or the indices of other nodes.
+ * Nodes with any number of children, sequences and calls, point at a run of node indices in
+ * {@link #lists}, which is preceded by its length. Functions take {@link #FUNCTION_STRIDE} ints
+ * of {@link #functions} each.
+ *
+ * Nodes are shared wherever the lowering found identical subtrees, so the nodes form a DAG
+ * rather than a tree; none of them holds any state of a run.
+ */
+final class SimpleLangFlatProgram {
+
+    static final int STRIDE = 4;
+
+    static final int CONST = 0;      // value
+    static final int LOAD = 1;       // slot
+    static final int STORE = 2;      // slot, value node
+    static final int CHECK_BOOL = 3; // value node, message: fail unless the value is 0 or 1
+    static final int FAIL = 4;       // message
+    static final int ADD = 5;        // left node, right node, for every operator up to OR
+    static final int SUB = 6;
+    static final int MUL = 7;
+    static final int DIV = 8;
+    static final int EQ = 9;
+    static final int LT = 10;
+    static final int GT = 11;
+    static final int LE = 12;
+    static final int GE = 13;
+    static final int AND = 14;
+    static final int OR = 15;
+    static final int BAD_OP = 16;    // left node, right node, message: fail once both have run
+    static final int SEQ = 17;       // list start, count
+    static final int IF = 18;        // condition, then, else
+    static final int WHILE = 19;     // condition, body
+    static final int REPEAT = 20;    // body, condition
+    static final int PRINT = 21;     // value node
+    static final int SPACE = 22;
+    static final int NEWLINE = 23;
+    static final int CALL = 24;      // function, list start of the arguments, count
+
+    static final String[] KINDS = {
+            "CONST", "LOAD", "STORE", "CHECK_BOOL", "FAIL", "ADD", "SUB", "MUL", "DIV", "EQ", "LT", "GT", "LE",
+            "GE", "AND", "OR", "BAD_OP", "SEQ", "IF", "WHILE", "REPEAT", "PRINT", "SPACE", "NEWLINE", "CALL"
+    };
+
+    // root node, frame size, list start of the parameter slots, parameter count, returns unit (0/1)
+    static final int FUNCTION_STRIDE = 5;
+
+    final int[] nodes;
+    final int[] lists;
+    final int[] functions;
+    final String[] names;
+    final String[] constants;
+    // Nodes and lists the lowering asked for, before sharing
+    final int nodesLowered;
+    final int listsLowered;
+
+    SimpleLangFlatProgram(int[] nodes, int[] lists, int[] functions, String[] names, String[] constants,
+                          int nodesLowered, int listsLowered) {
+        this.nodes = nodes;
+        this.lists = lists;
+        this.functions = functions;
+        this.names = names;
+        this.constants = constants;
+        this.nodesLowered = nodesLowered;
+        this.listsLowered = listsLowered;
+    }
+
+    int nodeCount() {
+        return nodes.length / STRIDE;
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new RuntimeException("Undefined function: " + name);
+    }
+
+    // Functions whose body is the root node of an earlier function
+    int sharedBodies() {
+        Set<Integer> roots = new HashSet<>();
+        int shared = 0;
+        for (int f = 0; f < functions.length; f += FUNCTION_STRIDE) {
+            if (!roots.add(functions[f])) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    void report(PrintStream out) {
+        int lists = 0;
+        for (int i = 0; i < this.lists.length; i += this.lists[i] + 1) {
+            lists++;
+        }
+        out.printf("Lowered %d nodes to %d (%.2fx), %d lists to %d, %d of %d functions share a body, %d bytes%n",
+                nodesLowered, nodeCount(), (double) nodesLowered / Math.max(1, nodeCount()), listsLowered, lists,
+                sharedBodies(), names.length, footprint());
+    }
+
+    // Bytes held by the arrays, with compressed references and not counting the strings
+    long footprint() {
+        return 4L * (nodes.length + lists.length + functions.length) + 4L * (names.length + constants.length) + 5 * 16;
+    }
+}
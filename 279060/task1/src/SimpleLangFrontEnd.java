@@ -0,0 +1,192 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.DecisionState;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link SimpleLangParser} over a token source.
+ *
+ * By default it parses in two stages: first with SLL prediction and a {@link BailErrorStrategy},
+ * which is enough for every valid program and avoids full-context prediction, and only if that
+ * fails again with full LL prediction and the default error recovery, so that errors are reported
+ * exactly as a plain LL parse would report them.
+ *
+ * {@link #parseParallel} splits the source into runs of whole decs and parses them concurrently.
+ */
+final class SimpleLangFrontEnd {
+
+    // Below this size splitting and scheduling cost more than parsing on one thread
+    private static final int MIN_CHUNK = 64 * 1024;
+
+    private SimpleLangFrontEnd() {
+    }
+
+    static SimpleLangParser.ProgContext parse(TokenSource lexer) {
+        return parse(new CommonTokenStream(lexer));
+    }
+
+    static SimpleLangParser.ProgContext parse(CommonTokenStream tokens) {
+        SimpleLangParser parser = new SimpleLangParser(tokens);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.prog();
+        } catch (ParseCancellationException e) {
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.prog();
+        }
+    }
+
+    // The old single-stage parse with full LL prediction
+    static SimpleLangParser.ProgContext parseLL(TokenSource lexer) {
+        return new SimpleLangParser(new CommonTokenStream(lexer)).prog();
+    }
+
+    /**
+     * Parses the source on the given pool, one task per chunk of consecutive decs, and merges the
+     * decs of the chunks into one tree. Anything that does not parse cleanly in chunks, including
+     * every syntax error, is parsed again as a whole by {@link #parse} to report it.
+     */
+    static SimpleLangParser.ProgContext parseParallel(ByteBuffer source, String sourceName, ForkJoinPool pool) {
+        return parseParallel(source, sourceName, pool, Math.max(MIN_CHUNK, source.remaining() / (4 * pool.getParallelism())));
+    }
+
+    static SimpleLangParser.ProgContext parseParallel(ByteBuffer source, String sourceName, ForkJoinPool pool, int target) {
+        List<int[]> chunks = split(source, target);
+        if (chunks == null || chunks.size() < 2) {
+            return parse(new SimpleLangScanner.AntlrSource(source, sourceName));
+        }
+
+        List<Callable<SimpleLangParser.ProgContext>> tasks = new ArrayList<>();
+        for (int[] chunk : chunks) {
+            ByteBuffer slice = source.duplicate().limit(chunk[1]).position(chunk[0]);
+            tasks.add(() -> parseStrict(new SimpleLangScanner(slice, chunk[2], chunk[3]), sourceName));
+        }
+
+        SimpleLangParser.ProgContext merged = new SimpleLangParser.ProgContext(null, -1);
+        SimpleLangParser.ProgContext last = null;
+        try {
+            for (Future<SimpleLangParser.ProgContext> result : pool.invokeAll(tasks)) {
+                last = result.get();
+                for (SimpleLangParser.DecContext dec : last.dec()) {
+                    merged.addChild(dec);
+                    dec.setParent(merged);
+                }
+            }
+        } catch (ExecutionException e) {
+            return parse(new SimpleLangScanner.AntlrSource(source, sourceName));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        merged.addChild(last.EOF());
+        return merged;
+    }
+
+    /**
+     * The first stage of {@link #parse} on its own: throws at the first lexical or syntax error
+     * without reporting it.
+     */
+    static SimpleLangParser.ProgContext parseStrict(SimpleLangScanner scanner, String sourceName) {
+        SimpleLangParser parser = new SimpleLangParser(new CommonTokenStream(new SimpleLangScanner.AntlrSource(scanner, sourceName)));
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        return parser.prog();
+    }
+
+    /**
+     * Cuts the source after top-level closing braces into chunks of at least target bytes,
+     * each as {start, end, line, lineStart}. SimpleLang has no strings or comments, so every
+     * brace byte is a brace token. Returns null if the braces do not balance.
+     */
+    private static List<int[]> split(ByteBuffer source, int target) {
+        List<int[]> chunks = new ArrayList<>();
+        int start = source.position();
+        int startLine = 1;
+        int startLineStart = start;
+        int line = 1;
+        int lineStart = start;
+        int depth = 0;
+        for (int i = source.position(), limit = source.limit(); i < limit; i++) {
+            byte b = source.get(i);
+            if (b == '\n') {
+                line++;
+                lineStart = i + 1;
+            } else if (b == '{') {
+                depth++;
+            } else if (b == '}') {
+                if (--depth < 0) {
+                    return null;
+                }
+                if (depth == 0 && i + 1 - start >= target) {
+                    chunks.add(new int[]{start, i + 1, startLine, startLineStart});
+                    start = i + 1;
+                    startLine = line;
+                    startLineStart = lineStart;
+                }
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        // Whatever follows the last cut is either more decs or trailing whitespace
+        boolean blank = true;
+        for (int i = start; blank && i < source.limit(); i++) {
+            byte b = source.get(i);
+            blank = b == ' ' || b == '\n' || b == '\r' || b == '\t';
+        }
+        if (!blank || chunks.isEmpty()) {
+            chunks.add(new int[]{start, source.limit(), startLine, startLineStart});
+        } else {
+            chunks.get(chunks.size() - 1)[1] = source.limit();
+        }
+        return chunks;
+    }
+
+    /**
+     * Parses with full LL prediction under ANTLR's profiler and reports the decisions of
+     * SimpleLang.g4 that took the most prediction time.
+     */
+    static SimpleLangParser.ProgContext profile(TokenSource lexer, PrintStream out, int limit) {
+        SimpleLangParser parser = new SimpleLangParser(new CommonTokenStream(lexer));
+        parser.setProfile(true);
+        long start = System.nanoTime();
+        SimpleLangParser.ProgContext tree = parser.prog();
+        long total = System.nanoTime() - start;
+
+        DecisionInfo[] decisions = parser.getParseInfo().getDecisionInfo();
+        // LL(1) decisions are switches in the generated code and never reach the prediction engine
+        DecisionInfo[] ranked = Arrays.stream(decisions).filter(d -> d.invocations > 0)
+                .sorted(Comparator.comparingLong((DecisionInfo d) -> d.timeInPrediction).reversed())
+                .toArray(DecisionInfo[]::new);
+        out.printf("Parse time %.1f ms, of which prediction %.1f ms%n", total / 1e6,
+                Arrays.stream(decisions).mapToLong(d -> d.timeInPrediction).sum() / 1e6);
+        out.printf("%8s %-12s %10s %10s %10s %10s %10s %10s%n", "decision", "rule", "time ms", "calls",
+                "SLL look", "SLL max", "LL calls", "ambig");
+        for (DecisionInfo d : Arrays.copyOf(ranked, Math.min(limit, ranked.length))) {
+            DecisionState state = parser.getATN().getDecisionState(d.decision);
+            out.printf("%8d %-12s %10.2f %10d %10d %10d %10d %10d%n", d.decision, parser.getRuleNames()[state.ruleIndex],
+                    d.timeInPrediction / 1e6, d.invocations, d.SLL_TotalLook, d.SLL_MaxLook, d.LL_Fallback,
+                    d.ambiguities.size());
+        }
+        return tree;
+    }
+}
@@ -1,14 +1,31 @@
 import org.antlr.v4.runtime.tree.AbstractParseTreeVisitor;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.PrintStream;
 import java.util.*;
 
-public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> implements SimpleLangVisitor<Integer> {
+public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> implements SimpleLangVisitor<Integer>, SimpleLangEngine {
 
-    private final Map<String, Map<String, Object>> global_funcs = new HashMap<>();
-    private final Stack<Map<String, Integer>> frames = new Stack<>();
+    // Keyed by the symbols of SimpleLangSymbols. Built once by link and shared, unchanged, by
+    // every run of the program; the frames and the output belong to the run's context
+    protected final SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs;
+    protected final Stack<SimpleLangSymbols.SymbolMap<Integer>> frames;
+    protected final PrintStream out;
+    protected final SimpleLangExecutionContext context;
 
-    private Map<String, Object> createFunctionDetails(String name, List<SimpleLangParser.Typed_idfrContext> params, SimpleLangParser.BodyContext body) {
+    public SimpleLangInterpreter() {
+        this(new SimpleLangSymbols.SymbolMap<>(), SimpleLangExecutionContext.standard());
+    }
+
+    // One run of a linked program
+    protected SimpleLangInterpreter(SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs, SimpleLangExecutionContext context) {
+        this.global_funcs = global_funcs;
+        this.frames = context.frames;
+        this.out = context.out;
+        this.context = context;
+    }
+
+    private static Map<String, Object> createFunctionDetails(String name, List<SimpleLangParser.Typed_idfrContext> params, SimpleLangParser.BodyContext body) {
         // Create a map to store function details
         Map<String, Object> functionDetails = new HashMap<>();
         functionDetails.put("name", name);
@@ -17,9 +34,8 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
         return functionDetails;
     }
 
-    public Integer visitProgram(SimpleLangParser.ProgContext ctx, String[] args) {
-        //System.out.println("Arguments passed to program: " + Arrays.toString(args));
-
+    static SimpleLangSymbols.SymbolMap<Map<String, Object>> functions(SimpleLangParser.ProgContext ctx) {
+        SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs = new SimpleLangSymbols.SymbolMap<>();
         for (SimpleLangParser.DecContext dec : ctx.dec()) {
             String functionName = dec.typed_idfr(0).Idfr().getText();
             Map<String, Object> funcDetails = createFunctionDetails(
@@ -27,13 +43,19 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
                     dec.typed_idfr().subList(1, dec.typed_idfr().size()),
                     dec.body()
             );
-            global_funcs.put(functionName, funcDetails);
+            global_funcs.put(SimpleLangSymbols.of(dec.typed_idfr(0).Idfr()), funcDetails);
         }
-        Map<String, Object> mainFunction = global_funcs.get("main");
+        return global_funcs;
+    }
+
+    public Integer visitProgram(String[] args) {
+        //System.out.println("Arguments passed to program: " + Arrays.toString(args));
+
+        Map<String, Object> mainFunction = global_funcs.get(SimpleLangSymbols.intern("main"));
 
         //System.out.println("Main function details: " + mainFunction.get("name") + ", parameters: " + mainFunction.get("params"));
 
-        Map<String, Integer> newFrame = new HashMap<>();
+        SimpleLangSymbols.SymbolMap<Integer> newFrame = new SimpleLangSymbols.SymbolMap<>();
         Object paramsObj = mainFunction.get("params");
 
         if (paramsObj instanceof List<?>) {
@@ -41,17 +63,27 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
             List<SimpleLangParser.Typed_idfrContext> params = (List<SimpleLangParser.Typed_idfrContext>) paramsObj;
 
             for (int i = 0; i < args.length; i++) {
-                String paramName = params.get(i).Idfr().getText();
-                int value = args[i].equals("true") ? 1 : args[i].equals("false") ? 0 : Integer.parseInt(args[i]);
-                newFrame.put(paramName, value);
+                int paramSymbol = SimpleLangSymbols.of(params.get(i).Idfr());
+                int value = SimpleLangEngine.parseArgument(args[i]);
+                newFrame.put(paramSymbol, value);
             }
         } else {
             throw new RuntimeException("Expected a List<SimpleLangParser.Typed_idfrContext> but got: " + (paramsObj != null ? paramsObj.getClass() : "null"));
         }
 
+        // a context may be reused, so main's frame is popped again whichever way the run ends
         frames.push(newFrame);
-        Integer result = visit((SimpleLangParser.BodyContext) mainFunction.get("body"));
-        return result;
+        try {
+            return visit((SimpleLangParser.BodyContext) mainFunction.get("body"));
+        } finally {
+            frames.clear();
+        }
+    }
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs = functions(prog);
+        return (args, context) -> new SimpleLangInterpreter(global_funcs, context).visitProgram(args);
     }
 
     @Override
@@ -125,8 +157,7 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
     @Override
     public Integer visitAssignExpr(SimpleLangParser.AssignExprContext ctx) {
         Integer value = visit(ctx.exp());
-        String varName = ctx.Idfr().getText();
-        frames.peek().put(varName, value); // Update the variable in the current frame
+        frames.peek().put(SimpleLangSymbols.of(ctx.Idfr()), value); // Update the variable in the current frame
         return value;
     }
 
@@ -206,12 +237,11 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
 
     @Override
     public Integer visitInvokeExpr(SimpleLangParser.InvokeExprContext ctx) {
-        String functionName = ctx.Idfr().getText();
-
         // Retrieve function details from global_funcs
-        Map<String, Object> funcDetails = global_funcs.get(functionName);
+        int functionSymbol = SimpleLangSymbols.of(ctx.Idfr());
+        Map<String, Object> funcDetails = global_funcs.get(functionSymbol);
         if (funcDetails == null) {
-            throw new RuntimeException("Undefined function: " + functionName);
+            throw new RuntimeException("Undefined function: " + SimpleLangSymbols.name(functionSymbol));
         }
 
         // Extract parameters and body from funcDetails
@@ -225,18 +255,20 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
         // System.out.println("Arguments in ctx: " + ctx.args);
 
         // Create a new frame for the function
-        Map<String, Integer> newFrame = new HashMap<>();
+        SimpleLangSymbols.SymbolMap<Integer> newFrame = new SimpleLangSymbols.SymbolMap<>();
         for (int i = 0; i < ctx.args.size(); i++) {
-            String paramName = params.get(i).Idfr().getText();
+            int paramSymbol = SimpleLangSymbols.of(params.get(i).Idfr());
             Integer argValue = visit(ctx.args.get(i)); // Evaluate arguments
             if (argValue == null) {
                 throw new RuntimeException("Argument " + ctx.args.get(i).getText() + " evaluated to null.");
             }
-            newFrame.put(paramName, argValue);
-            // System.out.println("Mapped parameter " + paramName + " to value " + argValue);
+            newFrame.put(paramSymbol, argValue);
+            // System.out.println("Mapped parameter " + paramSymbol + " to value " + argValue);
         }
 
         // Push the frame and execute the function body
+        int frameSize = params.size() + body.vardec.size();
+        context.enter(frameSize);
         frames.push(newFrame);
         // System.out.println("Frame before function execution: " + frames);
 
@@ -245,6 +277,7 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
             returnValue = visit(body); // Visit the body of the function
         } finally {
             frames.pop(); // Ensure proper cleanup of the frame
+            context.exit(frameSize);
         }
 
         // System.out.println("Function " + functionName + " returned: " + returnValue);
@@ -275,6 +308,7 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
     public Integer visitWhileExpr(SimpleLangParser.WhileExprContext ctx) {
         Integer condValue = visit(ctx.exp());
         while (condValue > 0) { // Check if condition is true
+            context.backEdge();
             visit(ctx.block()); // Execute the block
             condValue = visit(ctx.exp()); // Reevaluate the condition
         }
@@ -283,10 +317,13 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
 
     @Override
     public Integer visitRepeatExpr(SimpleLangParser.RepeatExprContext ctx) {
-        do {
+        while (true) {
             visit(ctx.block());
-        } while (visit(ctx.exp()) == 0);
-        return null;
+            if (visit(ctx.exp()) != 0) {
+                return null;
+            }
+            context.backEdge();
+        }
     }
 
     @Override public Integer visitPrintExpr(SimpleLangParser.PrintExprContext ctx) {
@@ -295,15 +332,15 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
 
         if (((TerminalNode) exp.getChild(0)).getSymbol().getType() == SimpleLangParser.Space) {
 
-            System.out.print(" ");
+            out.print(" ");
 
         } else if (((TerminalNode) exp.getChild(0)).getSymbol().getType() == SimpleLangParser.NewLine) {
 
-            System.out.println();
+            out.println();
 
         } else {
 
-            System.out.print(visit(exp));
+            out.print(visit(exp));
 
         }
 
@@ -313,13 +350,13 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
 
     @Override
     public Integer visitSpaceExpr(SimpleLangParser.SpaceExprContext ctx) {
-        System.out.print(" ");
+        out.print(" ");
         return null;
     }
 
     @Override
     public Integer visitNewLineExpr(SimpleLangParser.NewLineExprContext ctx) {
-        System.out.println();
+        out.println();
         return null;
     }
 
@@ -335,15 +372,15 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
 
     @Override
     public Integer visitIdExpr(SimpleLangParser.IdExprContext ctx) {
-        String varName = ctx.Idfr().getText();
+        int varSymbol = SimpleLangSymbols.of(ctx.Idfr());
         //System.out.println("Attempting to resolve variable: " + varName);
 
         // Check current frame for the variable
-        if (!frames.peek().containsKey(varName)) {
-            throw new RuntimeException("Undefined variable: " + varName + " in current frame.");
+        if (!frames.peek().containsKey(varSymbol)) {
+            throw new RuntimeException("Undefined variable: " + ctx.Idfr().getText() + " in current frame.");
         }
 
-        Integer value = frames.peek().get(varName);
+        Integer value = frames.peek().get(varSymbol);
         //System.out.println("Resolved variable " + varName + " to value: " + value);
         return value;
     }
@@ -360,8 +397,8 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
     @Override
     public Integer visitInitExpr(SimpleLangParser.InitExprContext ctx) {
         // Extract variable type and name
-        String varType = ctx.typed_idfr().type().getText();
-        String varName = ctx.typed_idfr().Idfr().getText();
+        int varType = ctx.typed_idfr().type().getStart().getType();
+        int varSymbol = SimpleLangSymbols.of(ctx.typed_idfr().Idfr());
 
         // Evaluate the assigned value
         Integer value = visit(ctx.exp());
@@ -370,14 +407,14 @@ public class SimpleLangInterpreter extends AbstractParseTreeVisitor<Integer> imp
         //System.out.println("Initializing variable: " + varName + " of type " + varType + " with value " + value);
 
         // Type checking (optional, if needed)
-        if ("int".equals(varType) && !(value instanceof Integer)) {
-            throw new RuntimeException("Type mismatch: Expected int for " + varName);
-        } else if ("bool".equals(varType) && !(value == 0 || value == 1)) {
-            throw new RuntimeException("Type mismatch: Expected bool for " + varName);
+        if (varType == SimpleLangParser.IntType && !(value instanceof Integer)) {
+            throw new RuntimeException("Type mismatch: Expected int for " + SimpleLangSymbols.name(varSymbol));
+        } else if (varType == SimpleLangParser.BoolType && !(value == 0 || value == 1)) {
+            throw new RuntimeException("Type mismatch: Expected bool for " + SimpleLangSymbols.name(varSymbol));
         }
 
         // Store the variable in the current frame
-        frames.peek().put(varName, value);
+        frames.peek().put(varSymbol, value);
 
         return value; // No specific return value, but this could be used in expression chains
     }
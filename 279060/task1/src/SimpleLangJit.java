@@ -0,0 +1,365 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * The compiling tier of {@link SimpleLangTieredInterpreter}. A hot function is turned into a tree
+ * of closures over an int[] frame, with small non-recursive callees inlined into slots of their
+ * own further along the same frame.
+ *
+ * When the profile shows that one side of an if has never been taken, only the other side is
+ * compiled. Reaching the missing side deoptimises: the frame of the function that owns the if
+ * (which may be an inlined callee) is rebuilt as an interpreter frame, the branch runs in the
+ * interpreter, the frame is copied back and compiled code carries on after the if. The compiled
+ * function is invalidated at the same time so that the next call re-profiles and recompiles it.
+ */
+public final class SimpleLangJit {
+
+    static final int MAX_INLINE_SIZE = 40;
+    static final int MAX_INLINE_DEPTH = 3;
+
+    @FunctionalInterface
+    interface JitCode {
+        int run(int[] s);
+    }
+
+    static final class CompiledFunction {
+        final FunctionLayout layout;
+        final boolean speculative;
+        volatile boolean valid = true;
+        private JitCode body;
+        private int frameSize;
+
+        private CompiledFunction(FunctionLayout layout, boolean speculative) {
+            this.layout = layout;
+            this.speculative = speculative;
+        }
+
+        Integer invoke(int[] args) {
+            int[] s = new int[frameSize];
+            for (int i = 0; i < args.length; i++) {
+                s[layout.slot(layout.params[i])] = args[i];
+            }
+            int result = body.run(s);
+            return layout.returnsUnit ? null : result;
+        }
+    }
+
+    // The function whose variables live at frame[base...], and the function it was inlined into
+    private record Scope(FunctionLayout layout, int base, Scope caller) {
+
+        int depth() {
+            return caller == null ? 0 : 1 + caller.depth();
+        }
+
+        boolean contains(FunctionLayout callee) {
+            return layout == callee || (caller != null && caller.contains(callee));
+        }
+    }
+
+    private final SimpleLangTieredInterpreter interpreter;
+    private final SimpleLangSymbols.SymbolMap<FunctionLayout> layouts;
+    private final SimpleLangProfile profile;
+    private final int speculationThreshold;
+
+    SimpleLangJit(SimpleLangTieredInterpreter interpreter, SimpleLangSymbols.SymbolMap<FunctionLayout> layouts, SimpleLangProfile profile, int speculationThreshold) {
+        this.interpreter = interpreter;
+        this.layouts = layouts;
+        this.profile = profile;
+        this.speculationThreshold = speculationThreshold;
+    }
+
+    CompiledFunction compile(FunctionLayout layout, boolean speculate) {
+        CompiledFunction function = new CompiledFunction(layout, speculate);
+        Compilation compilation = new Compilation(function);
+        compilation.nextSlot = layout.frameSize();
+        function.body = compilation.body(layout.dec.body(), new Scope(layout, 0, null));
+        function.frameSize = compilation.nextSlot;
+        return function;
+    }
+
+    // Runs part of a function in the interpreter on a frame rebuilt from the compiled one
+    private int interpret(ParseTree tree, FunctionLayout layout, int base, int[] s) {
+        SimpleLangSymbols.SymbolMap<Integer> frame = new SimpleLangSymbols.SymbolMap<>(layout.frameSize());
+        for (int slot = 0; slot < layout.frameSize(); slot++) {
+            frame.put(layout.symbolAt(slot), s[base + slot]);
+        }
+        Integer result = interpreter.resume(frame, tree);
+        for (int slot = 0; slot < layout.frameSize(); slot++) {
+            Integer value = frame.get(layout.symbolAt(slot));
+            s[base + slot] = value == null ? 0 : value;
+        }
+        return result == null ? 0 : result;
+    }
+
+    private final class Compilation {
+
+        final CompiledFunction function;
+        int nextSlot;
+
+        Compilation(CompiledFunction function) {
+            this.function = function;
+        }
+
+        JitCode body(SimpleLangParser.BodyContext ctx, Scope scope) {
+            List<JitCode> codes = new ArrayList<>();
+            for (SimpleLangParser.Init_exprContext init : ctx.vardec) {
+                codes.add(init((SimpleLangParser.InitExprContext) init, scope));
+            }
+            codes.addAll(exps(ctx.ene(), scope));
+            return sequence(codes);
+        }
+
+        JitCode init(SimpleLangParser.InitExprContext ctx, Scope scope) {
+            String varName = ctx.typed_idfr().Idfr().getText();
+            int slot = scope.base() + scope.layout().slot(ctx.typed_idfr().Idfr());
+            JitCode value = exp(ctx.exp(), scope);
+            if ("bool".equals(ctx.typed_idfr().type().getText())) {
+                return s -> {
+                    int v = value.run(s);
+                    if (v != 0 && v != 1) {
+                        throw new RuntimeException("Type mismatch: Expected bool for " + varName);
+                    }
+                    return s[slot] = v;
+                };
+            }
+            return s -> s[slot] = value.run(s);
+        }
+
+        List<JitCode> exps(SimpleLangParser.EneContext ctx, Scope scope) {
+            List<JitCode> codes = new ArrayList<>();
+            for (SimpleLangParser.ExpContext exp : ctx.exp()) {
+                codes.add(exp(exp, scope));
+            }
+            return codes;
+        }
+
+        JitCode sequence(List<JitCode> codes) {
+            if (codes.size() == 1) {
+                return codes.get(0);
+            } else if (codes.size() == 2) {
+                JitCode first = codes.get(0);
+                JitCode second = codes.get(1);
+                return s -> {
+                    first.run(s);
+                    return second.run(s);
+                };
+            }
+            JitCode[] all = codes.toArray(new JitCode[0]);
+            return s -> {
+                int result = 0;
+                for (JitCode code : all) {
+                    result = code.run(s);
+                }
+                return result;
+            };
+        }
+
+        JitCode exp(SimpleLangParser.ExpContext ctx, Scope scope) {
+            if (ctx instanceof SimpleLangParser.IntExprContext intExpr) {
+                int value = Integer.parseInt(intExpr.IntLit().getText());
+                return s -> value;
+            } else if (ctx instanceof SimpleLangParser.BoolExprContext) {
+                int value = ctx.getText().equals("true") ? 1 : 0;
+                return s -> value;
+            } else if (ctx instanceof SimpleLangParser.IdExprContext id) {
+                int local = scope.layout().slot(id.Idfr());
+                if (local < 0) {
+                    String varName = id.Idfr().getText();
+                    return s -> {
+                        throw new RuntimeException("Undefined variable: " + varName + " in current frame.");
+                    };
+                }
+                int slot = scope.base() + local;
+                return s -> s[slot];
+            } else if (ctx instanceof SimpleLangParser.AssignExprContext assign) {
+                int slot = scope.base() + scope.layout().slot(assign.Idfr());
+                JitCode value = exp(assign.exp(), scope);
+                return s -> s[slot] = value.run(s);
+            } else if (ctx instanceof SimpleLangParser.BinOpExprContext binOp) {
+                return binOp(binOp, scope);
+            } else if (ctx instanceof SimpleLangParser.InvokeExprContext invoke) {
+                return invoke(invoke, scope);
+            } else if (ctx instanceof SimpleLangParser.BlockExprContext block) {
+                return sequence(exps(block.block().ene(), scope));
+            } else if (ctx instanceof SimpleLangParser.IfExprContext ifExpr) {
+                return ifExpr(ifExpr, scope);
+            } else if (ctx instanceof SimpleLangParser.WhileExprContext whileExpr) {
+                JitCode cond = exp(whileExpr.exp(), scope);
+                JitCode body = sequence(exps(whileExpr.block().ene(), scope));
+                return s -> {
+                    while (cond.run(s) > 0) {
+                        interpreter.context.backEdge();
+                        body.run(s);
+                    }
+                    return 0;
+                };
+            } else if (ctx instanceof SimpleLangParser.RepeatExprContext repeat) {
+                JitCode body = sequence(exps(repeat.block().ene(), scope));
+                JitCode cond = exp(repeat.exp(), scope);
+                return s -> {
+                    while (true) {
+                        body.run(s);
+                        if (cond.run(s) != 0) {
+                            return 0;
+                        }
+                        interpreter.context.backEdge();
+                    }
+                };
+            } else if (ctx instanceof SimpleLangParser.PrintExprContext print) {
+                return print(print, scope);
+            } else if (ctx instanceof SimpleLangParser.SpaceExprContext) {
+                return s -> {
+                    interpreter.out.print(" ");
+                    return 0;
+                };
+            } else if (ctx instanceof SimpleLangParser.NewLineExprContext) {
+                return s -> {
+                    interpreter.out.println();
+                    return 0;
+                };
+            } else if (ctx instanceof SimpleLangParser.SkipExprContext) {
+                return s -> 0;
+            }
+            return interpreted(ctx, scope);
+        }
+
+        JitCode binOp(SimpleLangParser.BinOpExprContext ctx, Scope scope) {
+            int op = ((TerminalNode) ctx.binop().getChild(0)).getSymbol().getType();
+            JitCode l = exp(ctx.exp(0), scope);
+            if (ctx.exp(1) instanceof SimpleLangParser.IntExprContext literal) {
+                JitCode folded = binOpConstant(op, l, Integer.parseInt(literal.IntLit().getText()));
+                if (folded != null) {
+                    return folded;
+                }
+            }
+            JitCode r = exp(ctx.exp(1), scope);
+            return switch (op) {
+                case SimpleLangParser.Plus -> s -> l.run(s) + r.run(s);
+                case SimpleLangParser.Minus -> s -> l.run(s) - r.run(s);
+                case SimpleLangParser.Times -> s -> l.run(s) * r.run(s);
+                case SimpleLangParser.Divide -> s -> {
+                    int oprnd1 = l.run(s);
+                    int oprnd2 = r.run(s);
+                    if (oprnd2 == 0) {
+                        throw new RuntimeException("Division by zero.");
+                    }
+                    return oprnd1 / oprnd2;
+                };
+                case SimpleLangParser.Eq -> s -> l.run(s) == r.run(s) ? 1 : 0;
+                case SimpleLangParser.Less -> s -> l.run(s) < r.run(s) ? 1 : 0;
+                case SimpleLangParser.Great -> s -> l.run(s) > r.run(s) ? 1 : 0;
+                case SimpleLangParser.LessEq -> s -> l.run(s) <= r.run(s) ? 1 : 0;
+                case SimpleLangParser.GreatEq -> s -> l.run(s) >= r.run(s) ? 1 : 0;
+                case SimpleLangParser.And -> s -> l.run(s) & r.run(s);
+                case SimpleLangParser.Or -> s -> l.run(s) | r.run(s);
+                // Anything else fails in the interpreter exactly as it would have without the JIT
+                default -> interpreted(ctx, scope);
+            };
+        }
+
+        // The common (i + 1), (i < 10) shapes with the literal folded into the closure
+        JitCode binOpConstant(int op, JitCode l, int c) {
+            return switch (op) {
+                case SimpleLangParser.Plus -> s -> l.run(s) + c;
+                case SimpleLangParser.Minus -> s -> l.run(s) - c;
+                case SimpleLangParser.Times -> s -> l.run(s) * c;
+                case SimpleLangParser.Divide -> c == 0 ? null : s -> l.run(s) / c;
+                case SimpleLangParser.Eq -> s -> l.run(s) == c ? 1 : 0;
+                case SimpleLangParser.Less -> s -> l.run(s) < c ? 1 : 0;
+                case SimpleLangParser.Great -> s -> l.run(s) > c ? 1 : 0;
+                case SimpleLangParser.LessEq -> s -> l.run(s) <= c ? 1 : 0;
+                case SimpleLangParser.GreatEq -> s -> l.run(s) >= c ? 1 : 0;
+                default -> null;
+            };
+        }
+
+        JitCode ifExpr(SimpleLangParser.IfExprContext ctx, Scope scope) {
+            JitCode cond = exp(ctx.exp(), scope);
+            if (function.speculative) {
+                int thenCount = profile.thenCount(ctx);
+                int elseCount = profile.elseCount(ctx);
+                if (elseCount == 0 && thenCount >= speculationThreshold) {
+                    JitCode then = sequence(exps(ctx.block(0).ene(), scope));
+                    return s -> cond.run(s) > 0 ? then.run(s) : deoptimize(ctx, false, scope, s);
+                } else if (thenCount == 0 && elseCount >= speculationThreshold) {
+                    JitCode otherwise = sequence(exps(ctx.block(1).ene(), scope));
+                    return s -> cond.run(s) > 0 ? deoptimize(ctx, true, scope, s) : otherwise.run(s);
+                }
+            }
+            JitCode then = sequence(exps(ctx.block(0).ene(), scope));
+            JitCode otherwise = sequence(exps(ctx.block(1).ene(), scope));
+            return s -> cond.run(s) > 0 ? then.run(s) : otherwise.run(s);
+        }
+
+        int deoptimize(SimpleLangParser.IfExprContext ctx, boolean thenTaken, Scope scope, int[] s) {
+            interpreter.deoptimize(function);
+            profile.recordBranch(ctx, thenTaken);
+            return interpret(ctx.block(thenTaken ? 0 : 1), scope.layout(), scope.base(), s);
+        }
+
+        JitCode invoke(SimpleLangParser.InvokeExprContext ctx, Scope scope) {
+            FunctionLayout callee = layouts.get(SimpleLangSymbols.of(ctx.Idfr()));
+            if (callee == null || callee.params.length != ctx.args.size()) {
+                return interpreted(ctx, scope);
+            }
+            JitCode[] args = new JitCode[ctx.args.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = exp(ctx.args.get(i), scope);
+            }
+
+            if (callee.size <= MAX_INLINE_SIZE && scope.depth() < MAX_INLINE_DEPTH && !scope.contains(callee)) {
+                int base = nextSlot;
+                nextSlot += callee.frameSize();
+                int end = nextSlot;
+                int[] paramSlots = new int[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    paramSlots[i] = base + callee.slot(callee.params[i]);
+                }
+                JitCode body = body(callee.dec.body(), new Scope(callee, base, scope));
+                return s -> {
+                    // Each inlining site has its own slots, so the callee frame can be filled in place
+                    Arrays.fill(s, base, end, 0);
+                    for (int i = 0; i < args.length; i++) {
+                        s[paramSlots[i]] = args[i].run(s);
+                    }
+                    // an inlined call still counts against the run's limits
+                    interpreter.context.enter(end - base);
+                    int result = body.run(s);
+                    interpreter.context.exit(end - base);
+                    return result;
+                };
+            }
+
+            return s -> {
+                int[] values = new int[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    values[i] = args[i].run(s);
+                }
+                Integer result = interpreter.call(callee, values);
+                return result == null ? 0 : result;
+            };
+        }
+
+        JitCode print(SimpleLangParser.PrintExprContext ctx, Scope scope) {
+            SimpleLangParser.ExpContext exp = ctx.exp();
+            if (exp instanceof SimpleLangParser.SpaceExprContext || exp instanceof SimpleLangParser.NewLineExprContext) {
+                return exp(exp, scope);
+            } else if (exp instanceof SimpleLangParser.BlockExprContext) {
+                return interpreted(ctx, scope);
+            }
+            JitCode value = exp(exp, scope);
+            return s -> {
+                interpreter.out.print(value.run(s));
+                return 0;
+            };
+        }
+
+        JitCode interpreted(SimpleLangParser.ExpContext ctx, Scope scope) {
+            FunctionLayout layout = scope.layout();
+            int base = scope.base();
+            return s -> interpret(ctx, layout, base, s);
+        }
+    }
+}
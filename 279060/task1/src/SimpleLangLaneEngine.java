@@ -0,0 +1,453 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Runs a {@link SimpleLangFlatProgram} for many argument vectors at once, in lockstep: every
+ * value is an int[] with one lane per run, operators work through whole lanes in plain loops
+ * that HotSpot can vectorise, and each node is dispatched once for all the runs instead of once
+ * per run.
+ *
+ * Where runs take different sides of an if, or leave a loop after different numbers of
+ * iterations, each side runs under a mask of the lanes that took it and a side no lane took is
+ * skipped. Variables are copied on write, so a value read earlier never changes under an
+ * operator that is still using it. Each lane prints into a buffer of its own.
+ *
+ * A lane that fails is dropped from every later mask and then run again on its own by
+ * {@link SimpleLangFlatEngine}, which reproduces its output and error exactly; so is every lane
+ * if the lockstep run overflows the stack. The lockstep run takes at least as many steps, and
+ * calls at least as deep, as any of its lanes, so it counts against their {@link SimpleLangLimits}
+ * as a whole, and if it exceeds them every lane runs again on its own to find out which did. Run through {@link SimpleLangEngine}, a program is a
+ * batch of one lane; Task1 --batch runs lines in batches of -Dsimplelang.lanes (64).
+ */
+public class SimpleLangLaneEngine extends SimpleLangFlatEngine {
+
+    static final int WIDTH = Integer.getInteger("simplelang.lanes", 64);
+
+    /** What one lane printed and returned, or the error it stopped with. */
+    static final class Lane {
+
+        final String output;
+        final Integer result;
+        final Throwable failure;
+
+        Lane(String output, Integer result, Throwable failure) {
+            this.output = output;
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+
+    @Override
+    SimpleLangCompiledProgram link(SimpleLangFlatProgram program) {
+        return new LaneProgram(program, super.link(program));
+    }
+
+    static final class LaneProgram implements SimpleLangCompiledProgram {
+
+        private final SimpleLangFlatProgram program;
+        private final SimpleLangCompiledProgram scalar;
+
+        private LaneProgram(SimpleLangFlatProgram program, SimpleLangCompiledProgram scalar) {
+            this.program = program;
+            this.scalar = scalar;
+        }
+
+        @Override
+        public Integer run(String[] args, SimpleLangExecutionContext context) {
+            Lane lane = runAll(new String[][]{args}, context.limits)[0];
+            context.out.print(lane.output);
+            if (lane.failure instanceof RuntimeException e) {
+                throw e;
+            } else if (lane.failure instanceof Error e) {
+                throw e;
+            }
+            return lane.result;
+        }
+
+        // One lane per element of args, each held to limits
+        Lane[] runAll(String[][] args, SimpleLangLimits limits) {
+            Lane[] lanes = new Lane[args.length];
+            try {
+                new Executor(program, args.length, limits).runMain(args, lanes);
+            } catch (RuntimeException | StackOverflowError e) {
+                // whatever the lockstep run did not finish, every lane runs on its own below
+            }
+            for (int i = 0; i < lanes.length; i++) {
+                if (lanes[i] == null) {
+                    lanes[i] = runScalar(args[i], limits);
+                }
+            }
+            return lanes;
+        }
+
+        private Lane runScalar(String[] args, SimpleLangLimits limits) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer);
+            try {
+                Integer result = scalar.run(args, new SimpleLangExecutionContext(out, limits));
+                out.flush();
+                return new Lane(buffer.toString(), result, null);
+            } catch (RuntimeException | StackOverflowError e) {
+                out.flush();
+                return new Lane(buffer.toString(), null, e);
+            }
+        }
+    }
+
+    private static final class Executor {
+
+        private static final int POSITIVE = 0;
+        private static final int NOT_POSITIVE = 1;
+        private static final int ZERO = 2;
+
+        private static final String NEWLINE = System.lineSeparator();
+
+        private final int[] nodes;
+        private final int[] lists;
+        private final int[] functions;
+        private final SimpleLangFlatProgram program;
+        private final int n;
+        // Lanes that have not failed; a mask says which lanes a node runs for, and only lanes
+        // that are in both print or go on into calls, branches and loops
+        private final boolean[] alive;
+        private final StringBuilder[] out;
+        private final int[] zeros;
+        private final int[][] constants;
+        // Counts the lockstep run against the limits; lanes print into out instead, up to maxOutput
+        private final SimpleLangExecutionContext context;
+        private final long maxOutput;
+
+        Executor(SimpleLangFlatProgram program, int n, SimpleLangLimits limits) {
+            this.program = program;
+            this.nodes = program.nodes;
+            this.lists = program.lists;
+            this.functions = program.functions;
+            this.n = n;
+            this.alive = new boolean[n];
+            this.out = new StringBuilder[n];
+            for (int i = 0; i < n; i++) {
+                out[i] = new StringBuilder();
+            }
+            this.zeros = new int[n];
+            this.constants = new int[program.nodeCount()][];
+            this.context = new SimpleLangExecutionContext(null, limits);
+            this.maxOutput = limits.maxOutput;
+        }
+
+        // Fills in the lanes that finish, leaving failed ones null
+        void runMain(String[][] args, Lane[] lanes) {
+            int f = SimpleLangFlatProgram.FUNCTION_STRIDE * program.indexOf("main");
+            int[][] frame = frame(functions[f + 1]);
+            int params = functions[f + 2];
+            int paramCount = functions[f + 3];
+            for (int i = 0; i < n; i++) {
+                // more arguments than parameters is left to the flat engine to report
+                alive[i] = args[i].length <= paramCount;
+            }
+            for (int p = 0; p < paramCount; p++) {
+                int[] values = frame[lists[params + p]].clone();
+                for (int i = 0; i < n; i++) {
+                    if (alive[i] && p < args[i].length) {
+                        try {
+                            values[i] = SimpleLangEngine.parseArgument(args[i][p]);
+                        } catch (NumberFormatException e) {
+                            alive[i] = false;
+                        }
+                    }
+                }
+                frame[lists[params + p]] = values;
+            }
+            int[] result = eval(functions[f], frame, alive.clone());
+            for (int i = 0; i < n; i++) {
+                if (alive[i]) {
+                    lanes[i] = new Lane(out[i].toString(), functions[f + 4] != 0 ? null : result[i], null);
+                }
+            }
+        }
+
+        private int[][] frame(int size) {
+            int[][] frame = new int[size][];
+            Arrays.fill(frame, zeros);
+            return frame;
+        }
+
+        private int[] eval(int node, int[][] frame, boolean[] mask) {
+            int at = SimpleLangFlatProgram.STRIDE * node;
+            int a = nodes[at + 1];
+            int b = nodes[at + 2];
+            int c = nodes[at + 3];
+            switch (nodes[at]) {
+                case SimpleLangFlatProgram.CONST: {
+                    int[] value = constants[node];
+                    if (value == null) {
+                        value = new int[n];
+                        Arrays.fill(value, a);
+                        constants[node] = value;
+                    }
+                    return value;
+                }
+                case SimpleLangFlatProgram.LOAD:
+                    return frame[a];
+                case SimpleLangFlatProgram.STORE: {
+                    int[] value = eval(b, frame, mask);
+                    int[] slot = frame[a].clone();
+                    for (int i = 0; i < n; i++) {
+                        if (mask[i]) {
+                            slot[i] = value[i];
+                        }
+                    }
+                    frame[a] = slot;
+                    return value;
+                }
+                case SimpleLangFlatProgram.CHECK_BOOL: {
+                    int[] value = eval(a, frame, mask);
+                    for (int i = 0; i < n; i++) {
+                        if (mask[i] && value[i] != 0 && value[i] != 1) {
+                            alive[i] = false;
+                        }
+                    }
+                    return value;
+                }
+                case SimpleLangFlatProgram.FAIL:
+                    fail(mask);
+                    return zeros;
+                case SimpleLangFlatProgram.ADD: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] + y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.SUB: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] - y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.MUL: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] * y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.DIV: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    // only lanes that are running may fail, and the others may hold anything
+                    for (int i = 0; i < n; i++) {
+                        if (mask[i] && alive[i]) {
+                            if (y[i] == 0) {
+                                alive[i] = false;
+                            } else {
+                                r[i] = x[i] / y[i];
+                            }
+                        }
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.EQ: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] == y[i] ? 1 : 0;
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.LT: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] < y[i] ? 1 : 0;
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.GT: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] > y[i] ? 1 : 0;
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.LE: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] <= y[i] ? 1 : 0;
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.GE: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] >= y[i] ? 1 : 0;
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.AND: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] & y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.OR: {
+                    int[] x = eval(a, frame, mask);
+                    int[] y = eval(b, frame, mask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = x[i] | y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.BAD_OP:
+                    eval(a, frame, mask);
+                    eval(b, frame, mask);
+                    fail(mask);
+                    return zeros;
+                case SimpleLangFlatProgram.SEQ: {
+                    int end = a + b - 1;
+                    for (int i = a; i < end; i++) {
+                        eval(lists[i], frame, mask);
+                    }
+                    return eval(lists[end], frame, mask);
+                }
+                case SimpleLangFlatProgram.IF: {
+                    int[] cond = eval(a, frame, mask);
+                    boolean[] thenMask = narrow(mask, cond, POSITIVE);
+                    boolean[] elseMask = narrow(mask, cond, NOT_POSITIVE);
+                    if (elseMask == null) {
+                        return thenMask == null ? zeros : eval(b, frame, thenMask);
+                    } else if (thenMask == null) {
+                        return eval(c, frame, elseMask);
+                    }
+                    int[] x = eval(b, frame, thenMask);
+                    int[] y = eval(c, frame, elseMask);
+                    int[] r = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        r[i] = thenMask[i] ? x[i] : y[i];
+                    }
+                    return r;
+                }
+                case SimpleLangFlatProgram.WHILE: {
+                    boolean[] loop = mask;
+                    while ((loop = narrow(loop, eval(a, frame, loop), POSITIVE)) != null) {
+                        context.backEdge();
+                        eval(b, frame, loop);
+                    }
+                    return zeros;
+                }
+                case SimpleLangFlatProgram.REPEAT: {
+                    boolean[] loop = mask;
+                    while (true) {
+                        eval(a, frame, loop);
+                        if ((loop = narrow(loop, eval(b, frame, loop), ZERO)) == null) {
+                            return zeros;
+                        }
+                        context.backEdge();
+                    }
+                }
+                case SimpleLangFlatProgram.PRINT: {
+                    int[] value = eval(a, frame, mask);
+                    for (int i = 0; i < n; i++) {
+                        if (mask[i] && alive[i]) {
+                            append(i, String.valueOf(value[i]));
+                        }
+                    }
+                    return zeros;
+                }
+                case SimpleLangFlatProgram.SPACE:
+                    print(mask, " ");
+                    return zeros;
+                case SimpleLangFlatProgram.NEWLINE:
+                    print(mask, NEWLINE);
+                    return zeros;
+                case SimpleLangFlatProgram.CALL: {
+                    // lanes that failed on the way here must not go on recursing
+                    if (!anyAlive(mask)) {
+                        return zeros;
+                    }
+                    int f = SimpleLangFlatProgram.FUNCTION_STRIDE * a;
+                    int[][] calleeFrame = frame(functions[f + 1]);
+                    int params = functions[f + 2];
+                    for (int i = 0; i < c; i++) {
+                        calleeFrame[lists[params + i]] = eval(lists[b + i], frame, mask);
+                    }
+                    context.enter(calleeFrame.length);
+                    int[] result = eval(functions[f], calleeFrame, mask);
+                    context.exit(calleeFrame.length);
+                    return result;
+                }
+                default:
+                    throw new IllegalStateException("Bad node kind " + nodes[at] + " at node " + node);
+            }
+        }
+
+        // The lanes of mask that are alive and whose cond passes test, or null if there are none;
+        // mask itself if that is all of them
+        private boolean[] narrow(boolean[] mask, int[] cond, int test) {
+            boolean[] result = new boolean[n];
+            boolean any = false;
+            boolean same = true;
+            for (int i = 0; i < n; i++) {
+                boolean pass = mask[i] && alive[i] && (test == POSITIVE ? cond[i] > 0
+                        : test == NOT_POSITIVE ? cond[i] <= 0 : cond[i] == 0);
+                result[i] = pass;
+                any |= pass;
+                same &= pass == mask[i];
+            }
+            return !any ? null : same ? mask : result;
+        }
+
+        private boolean anyAlive(boolean[] mask) {
+            for (int i = 0; i < n; i++) {
+                if (mask[i] && alive[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void fail(boolean[] mask) {
+            for (int i = 0; i < n; i++) {
+                if (mask[i]) {
+                    alive[i] = false;
+                }
+            }
+        }
+
+        private void print(boolean[] mask, String text) {
+            for (int i = 0; i < n; i++) {
+                if (mask[i] && alive[i]) {
+                    append(i, text);
+                }
+            }
+        }
+
+        // A lane that prints too much stops the lockstep run, and its scalar run then prints
+        // exactly what fits
+        private void append(int lane, String text) {
+            if (out[lane].append(text).length() > maxOutput) {
+                throw new SimpleLangLimits.Exceeded("Output limit of " + maxOutput + " bytes exceeded");
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Limits on one run of a program: how many steps it may take, how deeply its calls may nest,
+ * how many variables its frames may hold at once, how much it may print and allocate, and how
+ * long it may run. A step is a loop going round again or a call, the only places where a run
+ * can keep going for an unbounded time, so engines count steps there and nowhere else, through
+ * the run's {@link SimpleLangExecutionContext}, which also adds up frames on entry and exit and
+ * the bytes that go through its output. The clock and the allocation counter are only read
+ * every {@link SimpleLangExecutionContext#CHECK_INTERVAL} steps.
+ *
+ * A run that exceeds a limit stops with {@link Exceeded}, which Task1 reports as
+ * LIMIT_EXCEEDED rather than NORMAL_TERMINATION, before it can run the JVM out of stack or
+ * heap.
+ */
+final class SimpleLangLimits {
+
+    static final SimpleLangLimits NONE = new SimpleLangLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+            Long.MAX_VALUE, 0);
+
+    final long maxSteps;
+    // Calls in progress, not counting main
+    final int maxDepth;
+    // Variables in the frames of those calls, as each engine lays them out
+    final long maxSlots;
+    // Bytes printed
+    final long maxOutput;
+    // Bytes allocated by the threads that run the program, while they run it
+    final long maxAllocated;
+    // No deadline if 0
+    final long timeoutMillis;
+
+    SimpleLangLimits(long maxSteps, int maxDepth, long maxSlots, long maxOutput, long maxAllocated, long timeoutMillis) {
+        if (maxSteps < 0 || maxDepth < 0 || maxSlots < 0 || maxOutput < 0 || maxAllocated < 0 || timeoutMillis < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        this.maxSteps = maxSteps;
+        this.maxDepth = maxDepth;
+        this.maxSlots = maxSlots;
+        this.maxOutput = maxOutput;
+        this.maxAllocated = maxAllocated;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // What the calling thread has allocated so far, or -1 where the JVM does not count it. Loads
+    // java.management the first time, so it is only called for runs that ask for it
+    static long allocatedBytes() {
+        return Allocations.BEAN == null ? -1 : Allocations.BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    private static final class Allocations {
+
+        static final com.sun.management.ThreadMXBean BEAN = bean();
+
+        private static com.sun.management.ThreadMXBean bean() {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                    && bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+            return null;
+        }
+    }
+
+    static final class Exceeded extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Exceeded(String message) {
+            super(message);
+        }
+    }
+}
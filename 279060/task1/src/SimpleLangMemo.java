@@ -0,0 +1,397 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What pure functions returned for which arguments, in a memory-mapped file that outlives the
+ * JVM, so that {@link SimpleLangVM} can skip a call it, or an earlier run on the same file, has
+ * made before. A function is pure if nothing it can reach prints: it then reads nothing but its
+ * arguments and does nothing but return, so a call that returned once returns the same again.
+ * Only functions whose own body loops or calls are memoized; a straight-line one is cheaper to
+ * run again than to look up.
+ *
+ * A function is known by a fingerprint, the first 64 bits of a SHA-256 of its bytecode and that
+ * of every function it can reach, with calls by name, so that the same function in another
+ * program, or the next version of a program where it has not changed, is found again. Only
+ * calls that return are stored; one that fails or goes over a limit leaves nothing behind.
+ * Fingerprints are worked out the first time a function is called, from the functions it can
+ * reach, so a program loaded lazily from a .simpc file still only decodes what runs.
+ *
+ * The file is a table of slots after a header of magic, version, slot count and used slot count,
+ * all big-endian. A slot is
+ *
+ *   fingerprint (long, 0 if the slot is empty), argument count, result, MAX_ARGS arguments
+ *
+ * and its fingerprint is written last, and cleared first when the slot is overwritten, so a slot
+ * is never found half written. The slots are split into up to {@link #STRIPES} regions, each
+ * with a lock of its own: a call's hash picks a slot, and the call is looked for and stored in
+ * the {@link #PROBES} slots from there, wrapping round within that slot's region, so runs only
+ * wait for each other on calls that hash into the same region. When those slots are all taken,
+ * a store overwrites one of them, each in turn. Functions of more than {@link #MAX_ARGS}
+ * parameters are not memoized. The file is locked while it is open, so one process at a time
+ * uses it; within the process every run shares it.
+ *
+ * -Dsimplelang.memo=file makes the bytecode engine use it, with a table of
+ * -Dsimplelang.memo.slots slots (262,144 by default) if the file is new.
+ */
+final class SimpleLangMemo implements Closeable {
+
+    static final String FILE = System.getProperty("simplelang.memo");
+    static final int SLOTS = Integer.getInteger("simplelang.memo.slots", 1 << 18);
+    static final int MAX_ARGS = 6;
+    // What lookup returns for a call it has no result for
+    static final long MISS = Long.MIN_VALUE;
+    static final int STRIPES = 64;
+    static final int PROBES = 8;
+
+    private static final int MAGIC = 0x534d454d; // "SMEM"
+    private static final int VERSION = 2;
+    private static final int HEADER = 16;
+    private static final int SLOT = 16 + 4 * MAX_ARGS;
+
+    private static SimpleLangMemo shared;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer table;
+    private final int slots;
+    // A lock per region, and the next slot to overwrite in each, counted from a call's first
+    private final Object[] regions;
+    private final int[] hands;
+    private final int regionShift;
+    private final AtomicInteger used = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder overwritten = new LongAdder();
+
+    SimpleLangMemo(Path file, int slots) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            throw new IllegalStateException(file + " is already open", e);
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException(file + " is in use by another process");
+        }
+        if (channel.size() == 0) {
+            // a power of two, so that a hash picks a slot with a mask
+            int size = Integer.highestOneBit(Math.max(slots, 16) - 1) << 1;
+            if ((long) size * SLOT + HEADER > Integer.MAX_VALUE) {
+                close();
+                throw new IllegalArgumentException("A memo table cannot have " + slots + " slots");
+            }
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) size * SLOT);
+            table.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, size).putInt(12, 0);
+        } else {
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION
+                    || HEADER + (long) table.getInt(8) * SLOT != channel.size() || Integer.bitCount(table.getInt(8)) != 1
+                    || table.getInt(8) < 16) {
+                close();
+                throw new IllegalArgumentException(file + " is not a memo table of this version");
+            }
+        }
+        this.slots = table.getInt(8);
+        // regions of at least PROBES slots
+        int regionCount = Math.min(STRIPES, slots / PROBES);
+        this.regions = new Object[regionCount];
+        for (int r = 0; r < regionCount; r++) {
+            regions[r] = new Object();
+        }
+        this.hands = new int[regionCount];
+        this.regionShift = Integer.numberOfTrailingZeros(slots / regionCount);
+        // counted rather than read from the header, which is only written on close
+        for (int i = 0; i < this.slots; i++) {
+            if (table.getLong(HEADER + i * SLOT) != 0) {
+                used.incrementAndGet();
+            }
+        }
+    }
+
+    // The table -Dsimplelang.memo asks for, opened the first time it is needed, or null for none
+    static synchronized SimpleLangMemo shared() {
+        if (shared == null && FILE != null) {
+            try {
+                shared = new SimpleLangMemo(Path.of(FILE), SLOTS);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            SimpleLangMemo memo = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    memo.close();
+                } catch (IOException e) {
+                    // what has not been written out is lost, and the table is still consistent
+                }
+            }));
+        }
+        return shared;
+    }
+
+    // The result of fingerprint's function for the count arguments at args[from], or MISS
+    long lookup(long fingerprint, int[] args, int from, int count) {
+        int first = hash(fingerprint, args, from, count) & (slots - 1);
+        synchronized (regions[first >>> regionShift]) {
+            for (int probe = 0; probe < PROBES; probe++) {
+                int at = HEADER + slot(first, probe) * SLOT;
+                long stored = table.getLong(at);
+                if (stored == 0) {
+                    break;
+                }
+                if (stored == fingerprint && matches(at, args, from, count)) {
+                    hits.increment();
+                    return table.getInt(at + 12);
+                }
+            }
+        }
+        misses.increment();
+        return MISS;
+    }
+
+    void store(long fingerprint, int[] args, int from, int count, int result) {
+        if (count > MAX_ARGS) {
+            return;
+        }
+        int first = hash(fingerprint, args, from, count) & (slots - 1);
+        int region = first >>> regionShift;
+        synchronized (regions[region]) {
+            int at = -1;
+            for (int probe = 0; probe < PROBES && at < 0; probe++) {
+                int candidate = HEADER + slot(first, probe) * SLOT;
+                long stored = table.getLong(candidate);
+                if (stored == fingerprint && matches(candidate, args, from, count)) {
+                    return;
+                }
+                if (stored == 0) {
+                    at = candidate;
+                    used.incrementAndGet();
+                }
+            }
+            if (at < 0) {
+                // slots are never emptied, so a lookup that reaches an empty one can stop there
+                at = HEADER + slot(first, hands[region]) * SLOT;
+                hands[region] = (hands[region] + 1) % PROBES;
+                table.putLong(at, 0);
+                overwritten.increment();
+            }
+            table.putInt(at + 8, count);
+            table.putInt(at + 12, result);
+            for (int j = 0; j < count; j++) {
+                table.putInt(at + 16 + 4 * j, args[from + j]);
+            }
+            table.putLong(at, fingerprint);
+        }
+    }
+
+    // The probe'th slot for a call whose first slot is first, within first's region
+    private int slot(int first, int probe) {
+        int mask = (1 << regionShift) - 1;
+        return (first & ~mask) | ((first + probe) & mask);
+    }
+
+    int used() {
+        return used.get();
+    }
+
+    String stats() {
+        return used.get() + " of " + slots + " slots used, " + hits.sum() + " hits, " + misses.sum() + " misses, "
+                + overwritten.sum() + " overwritten";
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (table != null) {
+            table.putInt(12, used.get());
+            table.force();
+        }
+        channel.close();
+    }
+
+    private boolean matches(int at, int[] args, int from, int count) {
+        if (table.getInt(at + 8) != count) {
+            return false;
+        }
+        for (int j = 0; j < count; j++) {
+            if (table.getInt(at + 16 + 4 * j) != args[from + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(long fingerprint, int[] args, int from, int count) {
+        long h = fingerprint;
+        for (int j = 0; j < count; j++) {
+            h = (h ^ args[from + j]) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * The fingerprints of a program's functions, each worked out the first time it is asked for.
+     * Runs on any thread share them, and only wait for each other while one is worked out.
+     */
+    static final class Fingerprints {
+
+        // What a function's value is until it is worked out, and for one that is not memoized
+        private static final long UNKNOWN = 0;
+        private static final long NONE = 1;
+
+        private final SimpleLangBytecode.Program program;
+        private final AtomicLongArray values;
+        // Of each function decoded so far, the functions it calls, whether it prints, and
+        // whether it loops or calls; only used with this locked
+        private final int[][] callees;
+        private final boolean[] prints;
+        private final boolean[] worthIt;
+
+        Fingerprints(SimpleLangBytecode.Program program) {
+            int count = program.names.length;
+            this.program = program;
+            this.values = new AtomicLongArray(count);
+            this.callees = new int[count][];
+            this.prints = new boolean[count];
+            this.worthIt = new boolean[count];
+        }
+
+        // The fingerprint of function f, 0 if calls to it are not memoized: those that can reach
+        // a print, return unit, take more than MAX_ARGS arguments or neither loop nor call
+        long of(int f) {
+            long value = values.getAcquire(f);
+            if (value == UNKNOWN) {
+                value = workOut(f);
+            }
+            return value == NONE ? 0 : value;
+        }
+
+        private synchronized long workOut(int f) {
+            long value = values.get(f);
+            if (value != UNKNOWN) {
+                return value;
+            }
+            boolean[] reached = reach(f);
+            SimpleLangBytecode.Function function = program.function(f);
+            boolean memoized = worthIt[f] && !function.returnsUnit && function.paramSlots.length <= MAX_ARGS;
+            for (int g = 0; g < reached.length && memoized; g++) {
+                memoized = !(reached[g] && prints[g]);
+            }
+            value = memoized ? fingerprint(program, f, reached) : NONE;
+            values.setRelease(f, value);
+            return value;
+        }
+
+        private boolean[] reach(int from) {
+            boolean[] reached = new boolean[callees.length];
+            Deque<Integer> pending = new ArrayDeque<>();
+            reached[from] = true;
+            pending.push(from);
+            while (!pending.isEmpty()) {
+                int f = pending.pop();
+                decode(f);
+                for (int g : callees[f]) {
+                    if (!reached[g]) {
+                        reached[g] = true;
+                        pending.push(g);
+                    }
+                }
+            }
+            return reached;
+        }
+
+        private void decode(int f) {
+            if (callees[f] != null) {
+                return;
+            }
+            int[] code = program.function(f).code;
+            int[] calls = new int[4];
+            int count = 0;
+            for (int pc = 0; pc < code.length; pc += SimpleLangBytecode.length(code[pc])) {
+                int op = code[pc];
+                prints[f] |= op == SimpleLangBytecode.PRINT || op == SimpleLangBytecode.SPACE || op == SimpleLangBytecode.NEWLINE;
+                if (op == SimpleLangBytecode.CALL) {
+                    if (count == calls.length) {
+                        calls = Arrays.copyOf(calls, 2 * count);
+                    }
+                    calls[count++] = code[pc + 1];
+                    worthIt[f] = true;
+                } else if (jumps(op) && code[pc + SimpleLangBytecode.length(op) - 1] <= pc) {
+                    // a jump back is a loop
+                    worthIt[f] = true;
+                }
+            }
+            callees[f] = Arrays.copyOf(calls, count);
+        }
+
+        // Jumps, fused or not, all have their target last
+        private static boolean jumps(int op) {
+            return SimpleLangBytecode.isJump(op) || op == SimpleLangBytecode.S_CMP_JUMP
+                    || op == SimpleLangBytecode.S_LOAD_CONST_CMP_JUMP || op == SimpleLangBytecode.S_LOAD_LOAD_CMP_JUMP;
+        }
+    }
+
+    // f first, then what it reaches in the order of their names, each with calls and the
+    // messages it fails with spelled out, since indices differ from one program to the next
+    private static long fingerprint(SimpleLangBytecode.Program program, int f, boolean[] reached) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JDK has SHA-256", e);
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int g = 0; g < reached.length; g++) {
+            if (reached[g]) {
+                order.add(g);
+            }
+        }
+        order.sort(Comparator.comparing((Integer g) -> g != f).thenComparing(g -> program.names[g]));
+        StringBuilder text = new StringBuilder();
+        for (int g : order) {
+            SimpleLangBytecode.Function function = program.function(g);
+            text.append(function.name).append(Arrays.toString(function.paramSlots)).append(' ').append(function.frameSize).append(':');
+            int[] code = function.code;
+            for (int pc = 0; pc < code.length; pc += SimpleLangBytecode.length(code[pc])) {
+                int op = code[pc];
+                text.append(' ').append(op);
+                if (op == SimpleLangBytecode.CALL) {
+                    text.append(' ').append(program.names[code[pc + 1]]).append(' ').append(code[pc + 2]);
+                } else if (op == SimpleLangBytecode.FAIL || op == SimpleLangBytecode.CHECK_BOOL) {
+                    text.append(" \"").append(program.constants[code[pc + 1]]).append('"');
+                } else {
+                    for (int i = 1; i < SimpleLangBytecode.length(op); i++) {
+                        text.append(' ').append(code[pc + i]);
+                    }
+                }
+            }
+            text.append('\n');
+        }
+        byte[] hash = digest.digest(text.toString().getBytes(StandardCharsets.UTF_8));
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++) {
+            fingerprint = fingerprint << 8 | (hash[i] & 0xff);
+        }
+        // 0 marks an empty slot, and 0 and 1 mean unknown and not memoized in Fingerprints
+        return fingerprint == 0 || fingerprint == 1 ? 2 : fingerprint;
+    }
+}
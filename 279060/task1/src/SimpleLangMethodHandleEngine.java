@@ -0,0 +1,368 @@
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.*;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compiles every function into a single method handle of type (int[])int built out of
+ * java.lang.invoke combinators, so that HotSpot can inline whole SimpleLang functions the way it
+ * inlines lambdas. Calls go through one {@link MutableCallSite} per function, which is what lets
+ * functions refer to each other (and themselves) before they have all been compiled.
+ *
+ * Frames are int[] laid out by {@link FunctionLayout}. Loops use whileLoop and doWhileLoop:
+ * SimpleLang loop conditions are arbitrary expressions, so countedLoop does not apply.
+ */
+public class SimpleLangMethodHandleEngine implements SimpleLangEngine {
+
+    private static final MethodType EXP = methodType(int.class, int[].class);
+
+    private static final MethodHandle ADD, SUB, MUL, DIV, EQ, LT, GT, LE, GE, AND, OR, UNSUPPORTED;
+    private static final MethodHandle STORE, CHECK_BOOL, IS_TRUE, IS_FALSE, AGAIN, PRINT, SPACE, NEWLINE, FRAME, ENTER, EXIT, FAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> self = SimpleLangMethodHandleEngine.class;
+            MethodType binary = methodType(int.class, int.class, int.class);
+            ADD = lookup.findStatic(self, "add", binary);
+            SUB = lookup.findStatic(self, "sub", binary);
+            MUL = lookup.findStatic(self, "mul", binary);
+            DIV = lookup.findStatic(self, "div", binary);
+            EQ = lookup.findStatic(self, "eq", binary);
+            LT = lookup.findStatic(self, "lt", binary);
+            GT = lookup.findStatic(self, "gt", binary);
+            LE = lookup.findStatic(self, "le", binary);
+            GE = lookup.findStatic(self, "ge", binary);
+            AND = lookup.findStatic(self, "and", binary);
+            OR = lookup.findStatic(self, "or", binary);
+            UNSUPPORTED = lookup.findStatic(self, "unsupported", methodType(int.class, int.class, int.class, int.class));
+            STORE = lookup.findStatic(self, "store", methodType(int.class, int.class, int[].class, int.class));
+            CHECK_BOOL = lookup.findStatic(self, "checkBool", methodType(int.class, int.class, String.class));
+            IS_TRUE = lookup.findStatic(self, "isTrue", methodType(boolean.class, int.class));
+            IS_FALSE = lookup.findStatic(self, "isFalse", methodType(boolean.class, int.class));
+            AGAIN = lookup.findStatic(self, "again", methodType(boolean.class, boolean.class));
+            PRINT = lookup.findStatic(self, "print", methodType(int.class, int.class));
+            SPACE = lookup.findStatic(self, "space", EXP);
+            NEWLINE = lookup.findStatic(self, "newLine", EXP);
+            FRAME = lookup.findStatic(self, "frame", methodType(int[].class, int[].class, int.class, int[].class));
+            ENTER = lookup.findStatic(self, "enter", methodType(int[].class, int[].class, int.class));
+            EXIT = lookup.findStatic(self, "exit", methodType(int.class, int.class, int.class));
+            FAIL = lookup.findStatic(self, "fail", methodType(int.class, String.class, int[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private SimpleLangSymbols.SymbolMap<FunctionLayout> layouts;
+    private final SimpleLangSymbols.SymbolMap<MutableCallSite> callSites = new SimpleLangSymbols.SymbolMap<>();
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        // the handles are linked through the call sites of an engine of their own
+        return new SimpleLangMethodHandleEngine().build(prog);
+    }
+
+    private SimpleLangCompiledProgram build(SimpleLangParser.ProgContext prog) {
+        layouts = FunctionLayout.of(prog);
+        for (FunctionLayout layout : layouts.values()) {
+            callSites.put(layout.symbol, new MutableCallSite(EXP));
+        }
+        for (FunctionLayout layout : layouts.values()) {
+            callSites.get(layout.symbol).setTarget(body(layout));
+        }
+        MutableCallSite.syncAll(callSites.values().toArray(new MutableCallSite[0]));
+
+        FunctionLayout main = layouts.get(SimpleLangSymbols.intern("main"));
+        MethodHandle entry = main == null ? null : callSites.get(main.symbol).getTarget();
+        // print, space and newline find the output through the context bound to the thread
+        return (args, context) -> context.bind(() -> {
+            if (main == null) {
+                throw new RuntimeException("Undefined function: main");
+            }
+            int[] argValues = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argValues[i] = SimpleLangEngine.parseArgument(args[i]);
+            }
+            int[] frame = frame(argValues, main.frameSize(), paramSlots(main));
+            try {
+                int result = (int) entry.invokeExact(frame);
+                return main.returnsUnit ? null : result;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        });
+    }
+
+    private MethodHandle body(FunctionLayout layout) {
+        List<MethodHandle> handles = new ArrayList<>();
+        for (SimpleLangParser.Init_exprContext init : layout.dec.body().vardec) {
+            SimpleLangParser.InitExprContext initExpr = (SimpleLangParser.InitExprContext) init;
+            String varName = initExpr.typed_idfr().Idfr().getText();
+            MethodHandle value = exp(initExpr.exp(), layout);
+            if ("bool".equals(initExpr.typed_idfr().type().getText())) {
+                value = MethodHandles.filterReturnValue(value, MethodHandles.insertArguments(CHECK_BOOL, 1, varName));
+            }
+            handles.add(store(layout.slot(initExpr.typed_idfr().Idfr()), value));
+        }
+        handles.add(ene(layout.dec.body().ene(), layout));
+        return sequence(handles);
+    }
+
+    private MethodHandle ene(SimpleLangParser.EneContext ene, FunctionLayout layout) {
+        List<MethodHandle> handles = new ArrayList<>();
+        for (SimpleLangParser.ExpContext exp : ene.exp()) {
+            handles.add(exp(exp, layout));
+        }
+        return sequence(handles);
+    }
+
+    // Runs each handle in turn for its side effects, keeping the result of the last one
+    private static MethodHandle sequence(List<MethodHandle> handles) {
+        MethodHandle result = handles.get(handles.size() - 1);
+        for (int i = handles.size() - 2; i >= 0; i--) {
+            result = MethodHandles.foldArguments(MethodHandles.dropArguments(result, 0, int.class), handles.get(i));
+        }
+        return result;
+    }
+
+    private static MethodHandle constant(int value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(int.class, value), 0, int[].class);
+    }
+
+    private static MethodHandle store(int slot, MethodHandle value) {
+        return MethodHandles.foldArguments(MethodHandles.insertArguments(STORE, 2, slot), value);
+    }
+
+    private MethodHandle exp(SimpleLangParser.ExpContext ctx, FunctionLayout layout) {
+        if (ctx instanceof SimpleLangParser.IntExprContext intExpr) {
+            return constant(Integer.parseInt(intExpr.IntLit().getText()));
+        } else if (ctx instanceof SimpleLangParser.BoolExprContext) {
+            return constant(ctx.getText().equals("true") ? 1 : 0);
+        } else if (ctx instanceof SimpleLangParser.IdExprContext id) {
+            int slot = layout.slot(id.Idfr());
+            if (slot < 0) {
+                return MethodHandles.insertArguments(FAIL, 0, "Undefined variable: " + id.Idfr().getText() + " in current frame.");
+            }
+            return MethodHandles.insertArguments(MethodHandles.arrayElementGetter(int[].class), 1, slot);
+        } else if (ctx instanceof SimpleLangParser.AssignExprContext assign) {
+            return store(layout.slot(assign.Idfr()), exp(assign.exp(), layout));
+        } else if (ctx instanceof SimpleLangParser.BinOpExprContext binOp) {
+            return binOp(binOp, layout);
+        } else if (ctx instanceof SimpleLangParser.InvokeExprContext invoke) {
+            return invoke(invoke, layout);
+        } else if (ctx instanceof SimpleLangParser.BlockExprContext block) {
+            return ene(block.block().ene(), layout);
+        } else if (ctx instanceof SimpleLangParser.IfExprContext ifExpr) {
+            return MethodHandles.guardWithTest(
+                    MethodHandles.filterReturnValue(exp(ifExpr.exp(), layout), IS_TRUE),
+                    ene(ifExpr.block(0).ene(), layout),
+                    ene(ifExpr.block(1).ene(), layout));
+        } else if (ctx instanceof SimpleLangParser.WhileExprContext whileExpr) {
+            MethodHandle loop = MethodHandles.whileLoop(null,
+                    MethodHandles.filterReturnValue(MethodHandles.filterReturnValue(exp(whileExpr.exp(), layout), IS_TRUE), AGAIN),
+                    ene(whileExpr.block().ene(), layout).asType(methodType(void.class, int[].class)));
+            return MethodHandles.foldArguments(constant(0), loop);
+        } else if (ctx instanceof SimpleLangParser.RepeatExprContext repeat) {
+            MethodHandle loop = MethodHandles.doWhileLoop(null,
+                    ene(repeat.block().ene(), layout).asType(methodType(void.class, int[].class)),
+                    MethodHandles.filterReturnValue(MethodHandles.filterReturnValue(exp(repeat.exp(), layout), IS_FALSE), AGAIN));
+            return MethodHandles.foldArguments(constant(0), loop);
+        } else if (ctx instanceof SimpleLangParser.PrintExprContext print) {
+            SimpleLangParser.ExpContext value = print.exp();
+            if (value instanceof SimpleLangParser.SpaceExprContext || value instanceof SimpleLangParser.NewLineExprContext) {
+                return exp(value, layout);
+            }
+            return MethodHandles.filterReturnValue(exp(value, layout), PRINT);
+        } else if (ctx instanceof SimpleLangParser.SpaceExprContext) {
+            return SPACE;
+        } else if (ctx instanceof SimpleLangParser.NewLineExprContext) {
+            return NEWLINE;
+        } else if (ctx instanceof SimpleLangParser.SkipExprContext) {
+            return constant(0);
+        }
+        throw new RuntimeException("Unsupported expression: " + ctx.getText());
+    }
+
+    private MethodHandle binOp(SimpleLangParser.BinOpExprContext ctx, FunctionLayout layout) {
+        int op = ((TerminalNode) ctx.binop().getChild(0)).getSymbol().getType();
+        MethodHandle operator = switch (op) {
+            case SimpleLangParser.Plus -> ADD;
+            case SimpleLangParser.Minus -> SUB;
+            case SimpleLangParser.Times -> MUL;
+            case SimpleLangParser.Divide -> DIV;
+            case SimpleLangParser.Eq -> EQ;
+            case SimpleLangParser.Less -> LT;
+            case SimpleLangParser.Great -> GT;
+            case SimpleLangParser.LessEq -> LE;
+            case SimpleLangParser.GreatEq -> GE;
+            case SimpleLangParser.And -> AND;
+            case SimpleLangParser.Or -> OR;
+            default -> MethodHandles.insertArguments(UNSUPPORTED, 0, op);
+        };
+        MethodHandle left = exp(ctx.exp(0), layout);
+        if (ctx.exp(1) instanceof SimpleLangParser.IntExprContext literal) {
+            int constant = Integer.parseInt(literal.IntLit().getText());
+            return MethodHandles.filterArguments(MethodHandles.insertArguments(operator, 1, constant), 0, left);
+        }
+        MethodHandle both = MethodHandles.filterArguments(operator, 0, left, exp(ctx.exp(1), layout));
+        return MethodHandles.permuteArguments(both, EXP, 0, 0);
+    }
+
+    private MethodHandle invoke(SimpleLangParser.InvokeExprContext ctx, FunctionLayout layout) {
+        String calleeName = ctx.Idfr().getText();
+        FunctionLayout callee = layouts.get(SimpleLangSymbols.of(ctx.Idfr()));
+        if (callee == null) {
+            return MethodHandles.insertArguments(FAIL, 0, "Undefined function: " + calleeName);
+        }
+        int argCount = ctx.args.size();
+        if (argCount != callee.params.length) {
+            return MethodHandles.insertArguments(FAIL, 0, "Function " + calleeName + " expects " + callee.params.length + " arguments but got " + argCount);
+        }
+
+        // (int[] caller frame) -> int[] argument values -> int[] callee frame -> call site
+        MethodHandle collect = MethodHandles.identity(int[].class).asCollector(int[].class, argCount);
+        MethodHandle[] args = new MethodHandle[argCount];
+        for (int i = 0; i < argCount; i++) {
+            args[i] = exp(ctx.args.get(i), layout);
+        }
+        MethodHandle argValues = MethodHandles.filterArguments(collect, 0, args);
+        argValues = MethodHandles.permuteArguments(argValues, methodType(int[].class, int[].class), new int[argCount]);
+        MethodHandle calleeFrame = MethodHandles.filterReturnValue(argValues,
+                MethodHandles.insertArguments(FRAME, 1, callee.frameSize(), paramSlots(callee)));
+        MethodHandle call = MethodHandles.filterReturnValue(callSites.get(callee.symbol).dynamicInvoker(),
+                MethodHandles.insertArguments(EXIT, 1, callee.frameSize()));
+        return MethodHandles.filterArguments(call, 0,
+                MethodHandles.filterReturnValue(calleeFrame, MethodHandles.insertArguments(ENTER, 1, callee.frameSize())));
+    }
+
+    private static int[] paramSlots(FunctionLayout layout) {
+        int[] slots = new int[layout.params.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = layout.slot(layout.params[i]);
+        }
+        return slots;
+    }
+
+    private static int[] frame(int[] args, int size, int[] paramSlots) {
+        int[] frame = new int[size];
+        for (int i = 0; i < args.length; i++) {
+            frame[paramSlots[i]] = args[i];
+        }
+        return frame;
+    }
+
+    private static int add(int a, int b) {
+        return a + b;
+    }
+
+    private static int sub(int a, int b) {
+        return a - b;
+    }
+
+    private static int mul(int a, int b) {
+        return a * b;
+    }
+
+    private static int div(int a, int b) {
+        if (b == 0) {
+            throw new RuntimeException("Division by zero.");
+        }
+        return a / b;
+    }
+
+    private static int eq(int a, int b) {
+        return a == b ? 1 : 0;
+    }
+
+    private static int lt(int a, int b) {
+        return a < b ? 1 : 0;
+    }
+
+    private static int gt(int a, int b) {
+        return a > b ? 1 : 0;
+    }
+
+    private static int le(int a, int b) {
+        return a <= b ? 1 : 0;
+    }
+
+    private static int ge(int a, int b) {
+        return a >= b ? 1 : 0;
+    }
+
+    private static int and(int a, int b) {
+        return a & b;
+    }
+
+    private static int or(int a, int b) {
+        return a | b;
+    }
+
+    private static int unsupported(int op, int a, int b) {
+        throw new RuntimeException("Unsupported binary operator: " + SimpleLangAst.operatorText(op));
+    }
+
+    private static int store(int value, int[] frame, int slot) {
+        return frame[slot] = value;
+    }
+
+    private static int checkBool(int value, String varName) {
+        if (value != 0 && value != 1) {
+            throw new RuntimeException("Type mismatch: Expected bool for " + varName);
+        }
+        return value;
+    }
+
+    private static boolean isTrue(int value) {
+        return value > 0;
+    }
+
+    private static boolean isFalse(int value) {
+        return value == 0;
+    }
+
+    // A loop condition that lets the loop go round again counts against the run's limits
+    private static boolean again(boolean loops) {
+        if (loops) {
+            SimpleLangExecutionContext.current().backEdge();
+        }
+        return loops;
+    }
+
+    private static int[] enter(int[] calleeFrame, int frameSize) {
+        SimpleLangExecutionContext.current().enter(frameSize);
+        return calleeFrame;
+    }
+
+    private static int exit(int result, int frameSize) {
+        SimpleLangExecutionContext.current().exit(frameSize);
+        return result;
+    }
+
+    private static int print(int value) {
+        SimpleLangExecutionContext.current().out.print(value);
+        return 0;
+    }
+
+    private static int space(int[] frame) {
+        SimpleLangExecutionContext.current().out.print(" ");
+        return 0;
+    }
+
+    private static int newLine(int[] frame) {
+        SimpleLangExecutionContext.current().out.println();
+        return 0;
+    }
+
+    // Errors are raised when the offending expression runs, as in SimpleLangInterpreter
+    private static int fail(String message, int[] frame) {
+        throw new RuntimeException(message);
+    }
+}
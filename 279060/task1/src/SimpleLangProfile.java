@@ -0,0 +1,27 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution counts gathered by {@link SimpleLangTieredInterpreter} while it interprets, and read
+ * by {@link SimpleLangJit} to decide what to speculate on.
+ */
+public final class SimpleLangProfile {
+
+    private final Map<ParserRuleContext, int[]> branches = new HashMap<>();
+
+    void recordBranch(SimpleLangParser.IfExprContext ctx, boolean thenTaken) {
+        branches.computeIfAbsent(ctx, k -> new int[2])[thenTaken ? 0 : 1]++;
+    }
+
+    int thenCount(SimpleLangParser.IfExprContext ctx) {
+        int[] counts = branches.get(ctx);
+        return counts == null ? 0 : counts[0];
+    }
+
+    int elseCount(SimpleLangParser.IfExprContext ctx) {
+        int[] counts = branches.get(ctx);
+        return counts == null ? 0 : counts[1];
+    }
+}
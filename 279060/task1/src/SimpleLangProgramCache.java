@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Linked programs by the SHA-256 of their source and the engine they were linked for, so that a
+ * program sent to {@link SimpleLangServer} again skips the front end and the engine's compiler
+ * and goes straight to running. A linked program holds nothing of its runs, so one entry serves
+ * any number of runs at once. What an engine gathers while running stays with the run: the
+ * tiered engine profiles and compiles afresh in every run, since {@link SimpleLangJit}
+ * speculates on what that run's arguments made the program do.
+ *
+ * Entries are weighed by an estimate of what they keep on the heap, from the size of the source
+ * and how much each engine was measured to keep per byte of it, and the least recently used are
+ * evicted once the total goes over the capacity, -Dsimplelang.cache.bytes (64 MiB by default).
+ * Programs that fail to link are not cached.
+ */
+final class SimpleLangProgramCache {
+
+    static final long CAPACITY = Long.getLong("simplelang.cache.bytes", 64L << 20);
+    // What a program links to is at least this much whatever its size
+    private static final long OVERHEAD = 1024;
+
+    private final long capacity;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    SimpleLangProgramCache() {
+        this(CAPACITY);
+    }
+
+    SimpleLangProgramCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("A cache cannot have a negative capacity");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * The program source links to with options, linked by {@link Task1#link} if it is not cached
+     * yet. Two threads that miss on the same source at once both link it, and the first to
+     * finish is kept.
+     */
+    SimpleLangCompiledProgram link(Task1.Options options, byte[] source) throws IOException {
+        Key key = new Key(options.engineName, digest(source));
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.program;
+            }
+            misses++;
+        }
+        SimpleLangCompiledProgram program = Task1.link(options, ByteBuffer.wrap(source));
+        long weight = weigh(options.engineName, source.length);
+        synchronized (this) {
+            if (weight > capacity) {
+                return program;
+            }
+            Entry raced = entries.putIfAbsent(key, new Entry(program, weight));
+            if (raced != null) {
+                return raced.program;
+            }
+            size += weight;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > capacity) {
+                size -= eldest.next().weight;
+                eldest.remove();
+                evictions++;
+            }
+        }
+        return program;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("%d programs, ~%d bytes, %d hits, %d misses (%.1f%% hit rate), %d evicted",
+                entries.size(), size, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions);
+    }
+
+    // Bytes kept per byte of source, measured on the tests; the tree-walking engines keep the
+    // parse tree
+    private static long weigh(String engine, int sourceLength) {
+        long perByte = switch (engine) {
+            case "interp", "tiered", "mh" -> 80;
+            case "ast" -> 8;
+            default -> 2;
+        };
+        return OVERHEAD + perByte * sourceLength;
+    }
+
+    static String digest(byte[] source) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(source));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JDK has SHA-256", e);
+        }
+    }
+
+    private record Key(String engine, String digest) {
+    }
+
+    private record Entry(SimpleLangCompiledProgram program, long weight) {
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The messages between {@link SimpleLangClient} and {@link SimpleLangServer}. Each message is one
+ * frame: its length as an int, then that many bytes. Strings and byte arrays inside a frame
+ * are likewise an int length followed by the bytes, strings in UTF-8.
+ *
+ * A request holds the command line Task1 would get (a count, then each argument) and the
+ * source of the program. A response holds a status, what the program printed, its result (a
+ * flag, then the value if the flag is 1), an error message (empty if there is none) and the
+ * time taken to link and to run the program in nanoseconds, each as a long.
+ *
+ * This class uses nothing but the JDK, so that loading the client does not load ANTLR.
+ */
+final class SimpleLangProtocol {
+
+    static final int NORMAL = 0;
+    static final int FAILED = 1;
+    static final int REJECTED = 2;
+    static final int LIMIT_EXCEEDED = 3;
+
+    // Larger frames are refused rather than allocated
+    static final int MAX_FRAME = 256 << 20;
+
+    private SimpleLangProtocol() {
+    }
+
+    static Path defaultSocket() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "simplelang.sock");
+    }
+
+    static final class Request {
+
+        final String[] args;
+        final byte[] source;
+
+        Request(String[] args, byte[] source) {
+            this.args = args;
+            this.source = source;
+        }
+
+        void write(OutputStream out) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(source.length + 64);
+            DataOutputStream data = new DataOutputStream(frame);
+            data.writeInt(args.length);
+            for (String arg : args) {
+                writeBytes(data, arg.getBytes(StandardCharsets.UTF_8));
+            }
+            writeBytes(data, source);
+            writeFrame(out, frame);
+        }
+
+        // Null once the other side has closed the connection
+        static Request read(InputStream in) throws IOException {
+            DataInputStream data = readFrame(in);
+            if (data == null) {
+                return null;
+            }
+            // every argument takes at least its length
+            String[] args = new String[readCount(data, 4)];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = new String(readBytes(data), StandardCharsets.UTF_8);
+            }
+            return new Request(args, readBytes(data));
+        }
+    }
+
+    static final class Response {
+
+        final int status;
+        final byte[] output;
+        final Integer result;
+        final String message;
+        final long linkNanos;
+        final long runNanos;
+
+        Response(int status, byte[] output, Integer result, String message, long linkNanos, long runNanos) {
+            this.status = status;
+            this.output = output;
+            this.result = result;
+            this.message = message;
+            this.linkNanos = linkNanos;
+            this.runNanos = runNanos;
+        }
+
+        void write(OutputStream out) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(output.length + 64);
+            DataOutputStream data = new DataOutputStream(frame);
+            data.writeInt(status);
+            writeBytes(data, output);
+            data.writeBoolean(result != null);
+            if (result != null) {
+                data.writeInt(result);
+            }
+            writeBytes(data, message.getBytes(StandardCharsets.UTF_8));
+            data.writeLong(linkNanos);
+            data.writeLong(runNanos);
+            writeFrame(out, frame);
+        }
+
+        static Response read(InputStream in) throws IOException {
+            DataInputStream data = readFrame(in);
+            if (data == null) {
+                throw new EOFException("The server closed the connection");
+            }
+            int status = data.readInt();
+            byte[] output = readBytes(data);
+            Integer result = data.readBoolean() ? data.readInt() : null;
+            String message = new String(readBytes(data), StandardCharsets.UTF_8);
+            return new Response(status, output, result, message, data.readLong(), data.readLong());
+        }
+    }
+
+    private static void writeFrame(OutputStream out, ByteArrayOutputStream frame) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(frame.size());
+        frame.writeTo(data);
+        data.flush();
+    }
+
+    // The frame's bytes are all read, so available() is what is left of it
+    private static DataInputStream readFrame(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int length;
+        try {
+            length = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        data.readFully(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[readCount(data, 1)];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    // A count of things of at least size bytes each, which must all fit in what is left of the
+    // frame, so that a bad one is refused before anything is allocated for it
+    private static int readCount(DataInputStream data, int size) throws IOException {
+        int count = data.readInt();
+        if (count < 0 || (long) count * size > data.available()) {
+            throw new IOException("Bad length " + count + " with " + data.available() + " bytes left in the frame");
+        }
+        return count;
+    }
+}
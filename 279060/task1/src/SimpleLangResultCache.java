@@ -0,0 +1,304 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What runs of programs printed and returned, by program and arguments. A SimpleLang program
+ * reads nothing but the arguments of main, so a run that terminated normally does the same
+ * every time, and {@link SimpleLangServer} answers a repeated request from here without running
+ * anything. The key is the SHA-256 of the source, the limits that decide where a run is cut off
+ * and the arguments; whatever engine ran the program, the result is the same. Engines count
+ * steps and nest calls differently, though, the bytecode engine's memo table answering calls in
+ * one step and no frame, so with a step or depth limit the key also holds the engine. Runs that
+ * fail or go over a limit are not cached, since the time and allocation limits depend on more
+ * than the program.
+ *
+ * Results are kept in memory up to a capacity in bytes, least recently used evicted first, and
+ * optionally spilled to a file when they are evicted or the cache is closed, from where a later
+ * lookup brings them back. The file is an append-only log of records, each
+ *
+ *   key length, key (UTF-8), output length, output, 1 and what main returned or 0 and 0 for unit
+ *
+ * with lengths and values as big-endian ints. Its index is rebuilt from the records when the
+ * cache is opened, so results survive the server, and a record cut short by a crash is dropped.
+ * Once the file would grow beyond its own capacity it is emptied and starts over.
+ *
+ * The index has a fixed number of slots, each a 64-bit hash of a key and where its record
+ * starts, so it takes the same 16 bytes a slot however many results are spilled. A key is looked
+ * for in the {@link #PROBES} slots from where its hash points, and the key of a record found is
+ * checked against the one looked for before the record is used. A record that finds those slots
+ * full takes the place of the oldest, which is still in the file but no longer found.
+ *
+ * The server enables the cache with -Dsimplelang.results.bytes and the file with
+ * -Dsimplelang.results.spill=path, of at most -Dsimplelang.results.spill.bytes (1 GiB by default)
+ * and indexed in -Dsimplelang.results.spill.slots slots (1,048,576 by default, 16 MiB).
+ */
+final class SimpleLangResultCache implements Closeable {
+
+    static final long CAPACITY = Long.getLong("simplelang.results.bytes", 0);
+    static final String SPILL = System.getProperty("simplelang.results.spill");
+    static final long SPILL_CAPACITY = Long.getLong("simplelang.results.spill.bytes", 1L << 30);
+    static final int SPILL_SLOTS = Integer.getInteger("simplelang.results.spill.slots", 1 << 20);
+    // Slots a key may be in, from the one its hash points at
+    static final int PROBES = 8;
+    // What an entry keeps besides its key and output
+    private static final long OVERHEAD = 64;
+
+    /** What a run printed, and what main returned, null for unit. */
+    record Result(byte[] output, Integer value) {
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private final FileChannel spill;
+    private final long spillCapacity;
+    // The hash of each spilled result's key and where its record starts, plus one (0 is empty)
+    private final long[] spilledHashes;
+    private final long[] spilledPositions;
+    private int spilled;
+    private long hits;
+    private long spillHits;
+    private long misses;
+
+    SimpleLangResultCache(long capacity) {
+        this(capacity, (FileChannel) null, 0, 0);
+    }
+
+    SimpleLangResultCache(long capacity, Path spillFile, long spillCapacity) throws IOException {
+        this(capacity, spillFile, spillCapacity, SPILL_SLOTS);
+    }
+
+    SimpleLangResultCache(long capacity, Path spillFile, long spillCapacity, int spillSlots) throws IOException {
+        this(capacity, FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                spillCapacity, spillSlots);
+        index();
+    }
+
+    private SimpleLangResultCache(long capacity, FileChannel spill, long spillCapacity, int spillSlots) {
+        if (capacity < 0 || spillCapacity < 0 || spillSlots < 0) {
+            throw new IllegalArgumentException("A cache cannot have a negative capacity");
+        }
+        this.capacity = capacity;
+        this.spill = spill;
+        this.spillCapacity = spillCapacity;
+        // a power of two, so that a hash picks a slot with a mask
+        int slots = spill == null ? 0 : Integer.highestOneBit(Math.max(spillSlots, PROBES) - 1) << 1;
+        this.spilledHashes = new long[slots];
+        this.spilledPositions = new long[slots];
+    }
+
+    // The cache the server's system properties ask for, or null for none
+    static SimpleLangResultCache configured() throws IOException {
+        if (SPILL != null) {
+            return new SimpleLangResultCache(CAPACITY, Path.of(SPILL), SPILL_CAPACITY);
+        }
+        return CAPACITY > 0 ? new SimpleLangResultCache(CAPACITY) : null;
+    }
+
+    static String key(byte[] source, Task1.Options options) {
+        SimpleLangLimits limits = options.limits();
+        boolean counted = limits.maxSteps != SimpleLangLimits.NONE.maxSteps || limits.maxDepth != SimpleLangLimits.NONE.maxDepth;
+        return (counted ? options.engineName + ' ' : "") + SimpleLangProgramCache.digest(source) + ' ' + limits.maxSteps + ' ' + limits.maxDepth + ' ' + limits.maxSlots
+                + ' ' + limits.maxOutput + ' ' + String.join(" ", options.mainArgs);
+    }
+
+    // The result cached under key, or null
+    synchronized Result get(String key) throws IOException {
+        Result result = entries.get(key);
+        if (result != null) {
+            hits++;
+            return result;
+        }
+        int slot = spill == null ? -1 : slot(hash(key));
+        if (slot >= 0) {
+            Map.Entry<String, Result> record = read(spilledPositions[slot] - 1);
+            if (record.getKey().equals(key)) {
+                spillHits++;
+                keep(key, record.getValue());
+                return record.getValue();
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(String key, Result result) throws IOException {
+        if (!entries.containsKey(key)) {
+            keep(key, result);
+        }
+    }
+
+    synchronized String stats() {
+        long lookups = hits + spillHits + misses;
+        return String.format("%d results, ~%d bytes, %d spilled, %d hits, %d from the spill file, %d misses (%.1f%% hit rate)",
+                entries.size(), size, spilled, hits, spillHits, misses,
+                lookups == 0 ? 0.0 : 100.0 * (hits + spillHits) / lookups);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            for (Map.Entry<String, Result> entry : entries.entrySet()) {
+                evict(entry.getKey(), entry.getValue());
+            }
+            spill.close();
+        }
+    }
+
+    private static long weigh(String key, Result result) {
+        return OVERHEAD + 2L * key.length() + result.output.length;
+    }
+
+    // Keeps a result in memory, evicting the least recently used to the spill file if it takes
+    // more room than there is
+    private void keep(String key, Result result) throws IOException {
+        long weight = weigh(key, result);
+        if (weight > capacity) {
+            evict(key, result);
+            return;
+        }
+        entries.put(key, result);
+        size += weight;
+        Iterator<Map.Entry<String, Result>> eldest = entries.entrySet().iterator();
+        while (size > capacity) {
+            Map.Entry<String, Result> entry = eldest.next();
+            size -= weigh(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void evict(String key, Result result) throws IOException {
+        // a result that was read back from the file is still there; one whose record has lost
+        // its slot is written again
+        if (spill == null || slot(hash(key)) >= 0) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 4 + result.output.length + 8);
+        record.putInt(keyBytes.length).put(keyBytes).putInt(result.output.length).put(result.output)
+                .putInt(result.value == null ? 0 : 1).putInt(result.value == null ? 0 : result.value).flip();
+        if (record.remaining() > spillCapacity) {
+            return;
+        }
+        long position = spill.size();
+        if (position + record.remaining() > spillCapacity) {
+            spill.truncate(0);
+            Arrays.fill(spilledPositions, 0);
+            spilled = 0;
+            position = 0;
+        }
+        place(hash(key), position);
+        while (record.hasRemaining()) {
+            position += spill.write(record, position);
+        }
+    }
+
+    // Reads the records of the spill file into the index, dropping a last one that is incomplete
+    private void index() throws IOException {
+        long position = 0;
+        long end = spill.size();
+        while (position < end) {
+            Map.Entry<String, Result> record;
+            try {
+                record = read(position);
+            } catch (IOException e) {
+                break;
+            }
+            place(hash(record.getKey()), position);
+            position += 4 + record.getKey().getBytes(StandardCharsets.UTF_8).length + 4 + record.getValue().output.length + 8;
+        }
+        spill.truncate(position);
+    }
+
+    // The slot of the record with this hash, or -1
+    private int slot(long hash) {
+        for (int probe = 0, mask = spilledHashes.length - 1; probe < PROBES; probe++) {
+            int slot = (int) (hash + probe) & mask;
+            if (spilledPositions[slot] != 0 && spilledHashes[slot] == hash) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Indexes the record at position under hash, in the slot of an earlier record with the same
+    // hash, else an empty one, else that of the oldest record, which starts first in the file
+    private void place(long hash, long position) {
+        int slot = slot(hash);
+        if (slot < 0) {
+            int mask = spilledHashes.length - 1;
+            slot = (int) hash & mask;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int candidate = (int) (hash + probe) & mask;
+                if (spilledPositions[candidate] == 0) {
+                    slot = candidate;
+                    break;
+                }
+                if (spilledPositions[candidate] < spilledPositions[slot]) {
+                    slot = candidate;
+                }
+            }
+            if (spilledPositions[slot] == 0) {
+                spilled++;
+            }
+        }
+        spilledHashes[slot] = hash;
+        spilledPositions[slot] = position + 1;
+    }
+
+    // FNV-1a over the key's chars
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    private Map.Entry<String, Result> read(long position) throws IOException {
+        byte[] key = new byte[readLength(position)];
+        readFully(ByteBuffer.wrap(key), position + 4);
+        position += 4 + key.length;
+        byte[] output = new byte[readLength(position)];
+        readFully(ByteBuffer.wrap(output), position + 4);
+        position += 4 + output.length;
+        boolean returned = readInt(position) != 0;
+        int value = readInt(position + 4);
+        return Map.entry(new String(key, StandardCharsets.UTF_8), new Result(output, returned ? value : null));
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    // A length that is negative or runs past the end of the file is not one this cache wrote
+    private int readLength(long position) throws IOException {
+        int length = readInt(position);
+        if (length < 0 || length > spill.size() - position - 4) {
+            throw new IOException("Bad record in the spill file at " + position);
+        }
+        return length;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = spill.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("The spill file ends in the middle of a record");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hand-written lexer for the tokens of SimpleLang.g4, working directly on the UTF-8 bytes of the
+ * source. It produces the same token types as {@link SimpleLangLexer}, which stays the reference
+ * for what the tokens are, but keeps only the current token's type, start and length instead of
+ * allocating a token object, or fills a compact {@link Tokens} array.
+ *
+ * Keywords are found with a perfect hash of an identifier's length and first and last bytes,
+ * so an identifier is compared against at most one keyword.
+ *
+ * A byte that starts no token is a lexical error. Given a listener, the scanner reports it there
+ * as {@link SimpleLangLexer} would and skips what that lexer skips; without one it throws.
+ */
+final class SimpleLangScanner {
+
+    private static final String[] KEYWORDS = {
+            "print", "space", "newline", "if", "then", "else", "while", "do", "repeat", "until", "skip",
+            "int", "bool", "unit", "true", "false"
+    };
+    private static final int[] KEYWORD_TYPES = {
+            SimpleLangLexer.Print, SimpleLangLexer.Space, SimpleLangLexer.NewLine, SimpleLangLexer.If,
+            SimpleLangLexer.Then, SimpleLangLexer.Else, SimpleLangLexer.While, SimpleLangLexer.Do,
+            SimpleLangLexer.Repeat, SimpleLangLexer.Until, SimpleLangLexer.Skip, SimpleLangLexer.IntType,
+            SimpleLangLexer.BoolType, SimpleLangLexer.UnitType, SimpleLangLexer.BoolLit, SimpleLangLexer.BoolLit
+    };
+    private static final int TABLE_BITS = 5;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final byte[][] TABLE_TEXT = new byte[TABLE_SIZE][];
+    private static final int[] TABLE_TYPE = new int[TABLE_SIZE];
+    private static final int MULTIPLIER;
+
+    static {
+        // Find a multiplier that gives every keyword its own bucket
+        int found = 0;
+        search:
+        for (int multiplier = 0x9E3779B1; multiplier != 0x9E3779B1 + 2 * 4096; multiplier += 2) {
+            boolean[] used = new boolean[TABLE_SIZE];
+            for (String keyword : KEYWORDS) {
+                int h = hash(multiplier, keyword.length(), keyword.charAt(0), keyword.charAt(keyword.length() - 1));
+                if (used[h]) {
+                    continue search;
+                }
+                used[h] = true;
+            }
+            found = multiplier;
+            break;
+        }
+        if (found == 0) {
+            throw new ExceptionInInitializerError("No perfect hash for the SimpleLang keywords");
+        }
+        MULTIPLIER = found;
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            String keyword = KEYWORDS[i];
+            int h = hash(MULTIPLIER, keyword.length(), keyword.charAt(0), keyword.charAt(keyword.length() - 1));
+            TABLE_TEXT[h] = keyword.getBytes(StandardCharsets.US_ASCII);
+            TABLE_TYPE[h] = KEYWORD_TYPES[i];
+        }
+    }
+
+    // Multiply-shift hash of the packed key, taking the top bits as the bucket
+    private static int hash(int multiplier, int length, int first, int last) {
+        return ((first << 16 | last << 8 | length) * multiplier) >>> (32 - TABLE_BITS);
+    }
+
+    private final ByteBuffer source;
+    private final int limit;
+    private int pos;
+    private int line;
+    private int lineStart;
+    private ANTLRErrorListener errors;
+
+    int type;
+    int start;
+    int length;
+
+    SimpleLangScanner(ByteBuffer source) {
+        this(source, 1, source.position());
+    }
+
+    // Scans from the buffer's position, which is on the given line of a larger source
+    SimpleLangScanner(ByteBuffer source, int line, int lineStart) {
+        this.source = source;
+        this.pos = source.position();
+        this.limit = source.limit();
+        this.line = line;
+        this.lineStart = lineStart;
+    }
+
+    SimpleLangScanner(byte[] source) {
+        this(ByteBuffer.wrap(source));
+    }
+
+    // Reports lexical errors to listener and goes on scanning after them
+    SimpleLangScanner reportErrors(ANTLRErrorListener listener) {
+        this.errors = listener;
+        return this;
+    }
+
+    static Tokens tokenize(ByteBuffer source) {
+        SimpleLangScanner scanner = new SimpleLangScanner(source);
+        Tokens tokens = new Tokens(source, Math.max(16, source.remaining() / 2));
+        do {
+            tokens.add(scanner.next(), scanner.start, scanner.length);
+        } while (scanner.type != Token.EOF);
+        return tokens;
+    }
+
+    int line() {
+        return line;
+    }
+
+    int column() {
+        return start - lineStart;
+    }
+
+    String text() {
+        return text(source, start, length);
+    }
+
+    int intValue() {
+        return intValue(source, start, length);
+    }
+
+    // The symbol of an Idfr, interned straight from the source bytes
+    int symbol() {
+        return SimpleLangSymbols.intern(source, start, length);
+    }
+
+    private static String text(ByteBuffer source, int start, int length) {
+        byte[] bytes = new byte[length];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    // The value of an IntLit, without going through a String
+    private static int intValue(ByteBuffer source, int start, int length) {
+        int i = start;
+        boolean negative = source.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int value = 0;
+        for (int end = start + length; i < end; i++) {
+            value = Math.subtractExact(Math.multiplyExact(value, 10), source.get(i) - '0');
+        }
+        return negative ? value : Math.negateExact(value);
+    }
+
+    int next() {
+        do {
+            skipWhitespace();
+            start = pos;
+            if (pos >= limit) {
+                length = 0;
+                return type = Token.EOF;
+            }
+            type = token(source.get(pos));
+        } while (type == Lexer.SKIP);
+        length = pos - start;
+        return type;
+    }
+
+    private int token(int c) {
+        return switch (c) {
+            case '(' -> single(SimpleLangLexer.LParen);
+            case ',' -> single(SimpleLangLexer.Comma);
+            case ')' -> single(SimpleLangLexer.RParen);
+            case '{' -> single(SimpleLangLexer.LBrace);
+            case ';' -> single(SimpleLangLexer.Semicolon);
+            case '}' -> single(SimpleLangLexer.RBrace);
+            case '+' -> single(SimpleLangLexer.Plus);
+            case '*' -> single(SimpleLangLexer.Times);
+            case '/' -> single(SimpleLangLexer.Divide);
+            case '&' -> single(SimpleLangLexer.And);
+            case '|' -> single(SimpleLangLexer.Or);
+            case '^' -> single(SimpleLangLexer.Xor);
+            case '<' -> peek(1) == '=' ? pair(SimpleLangLexer.LessEq) : single(SimpleLangLexer.Less);
+            case '>' -> peek(1) == '=' ? pair(SimpleLangLexer.GreatEq) : single(SimpleLangLexer.Great);
+            case '=' -> peek(1) == '=' ? pair(SimpleLangLexer.Eq) : error(true);
+            case ':' -> peek(1) == '=' ? pair(SimpleLangLexer.Assign) : error(true);
+            // A minus directly followed by a non-zero digit is the sign of a literal, as in the grammar
+            case '-' -> peek(1) >= '1' && peek(1) <= '9' ? number(pos + 1) : single(SimpleLangLexer.Minus);
+            case '0' -> single(SimpleLangLexer.IntLit);
+            default -> {
+                if (c >= '1' && c <= '9') {
+                    yield number(pos);
+                } else if (c >= 'a' && c <= 'z') {
+                    yield identifier();
+                }
+                yield error(false);
+            }
+        };
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            int c = source.get(pos);
+            if (c == '\n') {
+                line++;
+                lineStart = pos + 1;
+            } else if (c != ' ' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private int peek(int offset) {
+        return pos + offset < limit ? source.get(pos + offset) : -1;
+    }
+
+    private int single(int tokenType) {
+        pos++;
+        return tokenType;
+    }
+
+    private int pair(int tokenType) {
+        pos += 2;
+        return tokenType;
+    }
+
+    private int number(int digitsFrom) {
+        pos = digitsFrom;
+        while (pos < limit && isDigit(source.get(pos))) {
+            pos++;
+        }
+        return SimpleLangLexer.IntLit;
+    }
+
+    private int identifier() {
+        pos++;
+        while (pos < limit && isIdentifierPart(source.get(pos))) {
+            pos++;
+        }
+        int len = pos - start;
+        if (len < 2 || len > 7) {
+            return SimpleLangLexer.Idfr;
+        }
+        int h = hash(MULTIPLIER, len, source.get(start), source.get(pos - 1));
+        byte[] keyword = TABLE_TEXT[h];
+        if (keyword == null || keyword.length != len) {
+            return SimpleLangLexer.Idfr;
+        }
+        for (int i = 0; i < len; i++) {
+            if (source.get(start + i) != keyword[i]) {
+                return SimpleLangLexer.Idfr;
+            }
+        }
+        return TABLE_TYPE[h];
+    }
+
+    // SimpleLangLexer gives up on the character it cannot go on from, so for a lone = or : that
+    // is the one after it, and skips as far as it got, that character included
+    private int error(boolean partial) {
+        int end = charEnd(pos);
+        if (partial && end < limit) {
+            end = charEnd(end);
+        }
+        byte[] bytes = new byte[end - pos];
+        source.get(pos, bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8).replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+        String message = "token recognition error at: '" + text + "'";
+        if (errors == null) {
+            throw new RuntimeException("line " + line + ":" + (pos - lineStart) + " " + message);
+        }
+        errors.syntaxError(null, null, line, pos - lineStart, message, null);
+        pos = end;
+        if (source.get(end - 1) == '\n') {
+            line++;
+            lineStart = end;
+        }
+        return Lexer.SKIP;
+    }
+
+    // Where the UTF-8 character starting at i ends
+    private int charEnd(int i) {
+        i++;
+        while (i < limit && (source.get(i) & 0xc0) == 0x80) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+
+    /**
+     * Every token of a source as (type, start, length) triples in one int[], ending with EOF.
+     */
+    static final class Tokens {
+
+        private final ByteBuffer source;
+        private int[] data;
+        private int count;
+
+        Tokens(ByteBuffer source, int capacity) {
+            this.source = source;
+            this.data = new int[3 * capacity];
+        }
+
+        void add(int type, int start, int length) {
+            if (3 * count + 3 > data.length) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            data[3 * count] = type;
+            data[3 * count + 1] = start;
+            data[3 * count + 2] = length;
+            count++;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int type(int i) {
+            return data[3 * i];
+        }
+
+        int start(int i) {
+            return data[3 * i + 1];
+        }
+
+        int length(int i) {
+            return data[3 * i + 2];
+        }
+
+        String text(int i) {
+            return SimpleLangScanner.text(source, start(i), length(i));
+        }
+
+        int intValue(int i) {
+            return SimpleLangScanner.intValue(source, start(i), length(i));
+        }
+    }
+
+    /**
+     * Feeds the scanner's tokens to an ANTLR parser in place of {@link SimpleLangLexer}. Tokens
+     * carry their own text, so there is no character stream holding a copy of the whole source.
+     */
+    static final class AntlrSource implements TokenSource {
+
+        private static final String[] LITERALS = new String[SimpleLangLexer.VOCABULARY.getMaxTokenType() + 1];
+
+        static {
+            for (int i = 0; i < LITERALS.length; i++) {
+                String literal = SimpleLangLexer.VOCABULARY.getLiteralName(i);
+                if (literal != null) {
+                    LITERALS[i] = literal.substring(1, literal.length() - 1);
+                }
+            }
+        }
+
+        private final SimpleLangScanner scanner;
+        private final String sourceName;
+        private final Pair<TokenSource, CharStream> pair;
+
+        // Reporting lexical errors on stderr, as SimpleLangLexer does by default
+        AntlrSource(ByteBuffer source, String sourceName) {
+            this(new SimpleLangScanner(source).reportErrors(ConsoleErrorListener.INSTANCE), sourceName);
+        }
+
+        AntlrSource(SimpleLangScanner scanner, String sourceName) {
+            this.scanner = scanner;
+            this.sourceName = sourceName;
+            this.pair = new Pair<>(this, null);
+        }
+
+        @Override
+        public Token nextToken() {
+            int tokenType = scanner.next();
+            int stop = scanner.start + scanner.length - 1;
+            CommonToken token = tokenType == SimpleLangLexer.Idfr
+                    ? new SimpleLangSymbols.SymbolToken(pair, Token.DEFAULT_CHANNEL, scanner.start, stop, scanner.symbol())
+                    : new CommonToken(pair, tokenType, Token.DEFAULT_CHANNEL, scanner.start, stop);
+            token.setLine(scanner.line());
+            token.setCharPositionInLine(scanner.column());
+            if (tokenType == Token.EOF) {
+                token.setText("<EOF>");
+            } else if (tokenType != SimpleLangLexer.Idfr) {
+                token.setText(LITERALS[tokenType] != null ? LITERALS[tokenType] : scanner.text());
+            }
+            return token;
+        }
+
+        @Override
+        public int getLine() {
+            return scanner.line();
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return scanner.column();
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public String getSourceName() {
+            return sourceName;
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> factory) {
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return CommonTokenFactory.DEFAULT;
+        }
+    }
+}
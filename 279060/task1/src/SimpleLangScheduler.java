@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs many bytecode executions on a fixed number of carrier threads, each a quantum at a time.
+ * An execution runs on {@link SimpleLangVM}, which keeps all of its state in arrays and registers
+ * and so can stop after any number of loop back-edges and calls and carry on later, on the same
+ * carrier or another. A carrier runs an execution for one quantum, puts it back in the queue
+ * and takes the next, so a long run cannot hold a carrier while short ones wait behind it.
+ *
+ * Carriers share time by stride scheduling: every execution has a pass, and the carrier always
+ * takes the execution with the lowest, which then advances by a stride inversely proportional
+ * to its priority. Over time each execution gets quanta in proportion to its priority, and an
+ * execution that has just arrived starts from the pass of the one running, so it neither waits
+ * for the others nor gets to catch up on the time before it arrived.
+ *
+ * The quantum is -Dsimplelang.scheduler.quantum back-edges and calls (10,000 by default).
+ */
+final class SimpleLangScheduler implements AutoCloseable {
+
+    static final long QUANTUM = Long.getLong("simplelang.scheduler.quantum", 10_000);
+    static final int DEFAULT_PRIORITY = 10;
+    static final int MAX_PRIORITY = 100;
+    // The stride of priority 1. Strides of other priorities are rounded down, which gives a
+    // priority p at most p / 2^20, under 0.01%, more than its share
+    private static final long STRIDE = 1L << 20;
+
+    private final long quantum;
+    private final PriorityQueue<Execution> ready = new PriorityQueue<>((a, b) -> a.pass != b.pass
+            ? Long.compare(a.pass, b.pass) : Long.compare(a.sequence, b.sequence));
+    // The pass of the execution taken last, where new ones join
+    private long pass;
+    private long sequence;
+    private boolean closed;
+
+    SimpleLangScheduler(int carriers) {
+        this(carriers, QUANTUM);
+    }
+
+    SimpleLangScheduler(int carriers, long quantum) {
+        if (carriers < 1 || quantum < 1) {
+            throw new IllegalArgumentException("A scheduler needs at least one carrier and a positive quantum");
+        }
+        this.quantum = quantum;
+        for (int i = 0; i < carriers; i++) {
+            Thread carrier = new Thread(this::carry, "simplelang-carrier-" + i);
+            carrier.setDaemon(true);
+            carrier.start();
+        }
+    }
+
+    /**
+     * Schedules a run of program with args at priority, from 1 to {@link #MAX_PRIORITY}. The run
+     * prints to context, and the returned future completes with what main returns, or
+     * exceptionally with what the run threw. Cancelling it drops the run at its next quantum.
+     */
+    Execution submit(SimpleLangBytecodeEngine.BytecodeProgram program, String[] args, SimpleLangExecutionContext context, int priority) {
+        if (priority < 1 || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("Priority must be from 1 to " + MAX_PRIORITY + ", not " + priority);
+        }
+        Execution execution = new Execution(program, args, context, STRIDE / priority);
+        synchronized (ready) {
+            if (closed) {
+                throw new IllegalStateException("The scheduler is closed");
+            }
+            execution.pass = pass + execution.stride;
+            execution.sequence = sequence++;
+            ready.add(execution);
+            ready.notify();
+        }
+        return execution;
+    }
+
+    /**
+     * Raises execution to priority if that is higher than its own, as when a caller in more of a
+     * hurry comes to wait for the same run. It goes on at the new stride, and if it is waiting
+     * for a carrier, no further back than if it had just arrived at the new priority.
+     */
+    void raise(Execution execution, int priority) {
+        if (priority < 1 || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("Priority must be from 1 to " + MAX_PRIORITY + ", not " + priority);
+        }
+        synchronized (ready) {
+            long stride = STRIDE / priority;
+            if (stride < execution.stride) {
+                execution.stride = stride;
+                if (ready.remove(execution)) {
+                    execution.pass = Math.min(execution.pass, pass + stride);
+                    ready.add(execution);
+                }
+            }
+        }
+    }
+
+    // Stops the carriers after their current quantum and cancels everything still queued
+    @Override
+    public void close() {
+        List<Execution> dropped;
+        synchronized (ready) {
+            closed = true;
+            dropped = new ArrayList<>(ready);
+            ready.clear();
+            ready.notifyAll();
+        }
+        for (Execution execution : dropped) {
+            execution.cancel(false);
+        }
+    }
+
+    private void carry() {
+        while (true) {
+            Execution execution;
+            synchronized (ready) {
+                while (ready.isEmpty() && !closed) {
+                    try {
+                        ready.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                execution = ready.poll();
+                pass = execution.pass;
+            }
+            if (execution.isDone()) {
+                continue;
+            }
+            // Whatever a run throws ends that run, and the carrier goes on to the next
+            try {
+                if (execution.slice(quantum)) {
+                    execution.complete(execution.vm.result());
+                    continue;
+                }
+            } catch (Throwable e) {
+                execution.completeExceptionally(e);
+                continue;
+            }
+            synchronized (ready) {
+                if (closed) {
+                    execution.cancel(false);
+                } else {
+                    execution.pass += execution.stride;
+                    ready.add(execution);
+                }
+            }
+        }
+    }
+
+    /**
+     * One scheduled run, and the future of its result. The VM is created by the first quantum,
+     * on a carrier, rather than by submit.
+     */
+    static final class Execution extends CompletableFuture<Integer> {
+
+        private final SimpleLangBytecodeEngine.BytecodeProgram program;
+        private final String[] args;
+        private final SimpleLangExecutionContext context;
+        // The stride, pass and sequence are only used with the queue locked
+        private long stride;
+        private long pass;
+        private long sequence;
+        private SimpleLangVM vm;
+
+        private Execution(SimpleLangBytecodeEngine.BytecodeProgram program, String[] args, SimpleLangExecutionContext context, long stride) {
+            this.program = program;
+            this.args = args;
+            this.context = context;
+            this.stride = stride;
+        }
+
+        // Carriers take turns with executions, so the quantum is one slice of what the run
+        // allocates, and what the carrier allocates for others is not counted against it
+        private boolean slice(long quantum) {
+            context.beginSlice();
+            try {
+                if (vm == null) {
+                    vm = program.start(args, context);
+                }
+                return vm.step(quantum);
+            } finally {
+                context.endSlice();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a JVM running and runs programs sent to it over a Unix domain socket by
+ * {@link SimpleLangClient}, in the messages of {@link SimpleLangProtocol}, so that jobs do not
+ * pay for starting a JVM, loading ANTLR and warming HotSpot up every time.
+ *
+ * Each connection is served on a virtual thread where the JDK has them, and on a thread of a
+ * cached pool otherwise, and may send any number of requests one after the other. A request is
+ * linked and run as Task1 would with the same options, printing into a buffer that goes back
+ * in the response with the result and the time taken. Options that read or write files, or
+ * that print reports to stderr, are refused. Syntax errors are reported on the server's stderr.
+ *
+ * Runs on the bytecode engine are carried out by one {@link SimpleLangScheduler} with a carrier
+ * per core, at the request's --priority, so that a long run shares the cores with the others
+ * rather than holding one until it ends.
+ *
+ * Programs are linked once per source and engine and kept in a {@link SimpleLangProgramCache},
+ * whose hit rate the server logs on stderr every {@link #CACHE_REPORT} lookups and on the way
+ * out.
+ *
+ * With -Dsimplelang.results.bytes or -Dsimplelang.results.spill, what programs printed and
+ * returned is kept in a {@link SimpleLangResultCache} as well, and a request for a program and
+ * arguments that ran before is answered from there without running it again.
+ *
+ * Identical requests that arrive while one of them is running, the same source, engine, limits
+ * and arguments whatever their priority, are coalesced by a {@link SimpleLangCoalescer}: the
+ * first is run and every other gets its response, failures and times included. A request that
+ * joins a run that then goes over its time limit has the same limit and arrived later, so it
+ * would have gone over it as well. A request that joins a scheduled run at a higher priority
+ * raises the run to its priority, so that it never waits on a run slower than its own would be.
+ *
+ * Whatever limits a request asks for, it is held to the server's {@link #CEILINGS} at most, so
+ * that no client can take the server's heap or a core for good: -Dsimplelang.server.max-steps,
+ * .max-depth, .max-slots, .max-output, .max-allocated and .timeout, in the units of Task1's
+ * options. By default steps are not limited, calls nest at most 10,000 deep with 16,777,216
+ * variables in their frames, a run prints at most 64 MiB, allocates at most 1 GiB and runs for
+ * at most a minute.
+ */
+public class SimpleLangServer {
+
+    private static final SimpleLangScheduler SCHEDULER = new SimpleLangScheduler(Runtime.getRuntime().availableProcessors());
+    private static final SimpleLangProgramCache PROGRAMS = new SimpleLangProgramCache();
+    static final long CACHE_REPORT = 1000;
+    private static final SimpleLangCoalescer<SimpleLangProtocol.Response> FLIGHTS = new SimpleLangCoalescer<>();
+    // Null unless the system properties ask for one
+    private static SimpleLangResultCache results;
+    static final SimpleLangLimits CEILINGS = new SimpleLangLimits(
+            Long.getLong("simplelang.server.max-steps", Long.MAX_VALUE),
+            Integer.getInteger("simplelang.server.max-depth", 10_000),
+            Long.getLong("simplelang.server.max-slots", 1L << 24),
+            Long.getLong("simplelang.server.max-output", 64L << 20),
+            Long.getLong("simplelang.server.max-allocated", 1L << 30),
+            Long.getLong("simplelang.server.timeout", 60_000));
+
+    public static void main(String[] args) throws IOException {
+        Path socket = args.length > 0 && args[0].startsWith("--socket=")
+                ? Path.of(args[0].substring("--socket=".length())) : SimpleLangProtocol.defaultSocket();
+        // a socket file left behind by a server that was killed would make bind fail
+        Files.deleteIfExists(socket);
+        ExecutorService executor = executor();
+        results = SimpleLangResultCache.configured();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.println("Program cache: " + PROGRAMS.stats());
+                if (results != null) {
+                    System.err.println("Result cache: " + results.stats());
+                }
+                System.err.println("Coalesced requests: " + FLIGHTS.stats());
+                try {
+                    if (results != null) {
+                        results.close();
+                    }
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing more to do on the way out
+                }
+            }));
+            System.err.println("Listening on " + socket);
+            while (true) {
+                SocketChannel connection = server.accept();
+                executor.execute(() -> serve(connection));
+            }
+        }
+    }
+
+    // A virtual thread per task on JDKs that have them (21 on), looked up reflectively so that
+    // the server still builds and runs on 17
+    static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void serve(SocketChannel connection) {
+        try (connection; InputStream in = Channels.newInputStream(connection); OutputStream out = Channels.newOutputStream(connection)) {
+            SimpleLangProtocol.Request request;
+            while ((request = SimpleLangProtocol.Request.read(in)) != null) {
+                handle(request).write(out);
+            }
+        } catch (IOException e) {
+            // the client went away or sent something that is not a frame; either way it is done
+        }
+    }
+
+    static SimpleLangProtocol.Response handle(SimpleLangProtocol.Request request) {
+        long start = System.nanoTime();
+        Task1.Options options;
+        try {
+            options = Task1.Options.parse(request.args);
+            SimpleLangEngines.create(options.engineName);
+            if (options.priority < 1 || options.priority > SimpleLangScheduler.MAX_PRIORITY) {
+                throw new IllegalArgumentException("--priority must be from 1 to " + SimpleLangScheduler.MAX_PRIORITY);
+            }
+        } catch (IllegalArgumentException e) {
+            return new SimpleLangProtocol.Response(SimpleLangProtocol.REJECTED, new byte[0], null, e.getMessage(), 0, 0);
+        }
+        String refused = options.file != null ? "--file" : options.compileTo != null ? "--compile" : options.batch != null ? "--batch"
+                : options.profileParser ? "--profile-parser" : options.flatStats ? "--flat-stats" : options.usage ? "--usage" : null;
+        if (refused != null) {
+            return new SimpleLangProtocol.Response(SimpleLangProtocol.REJECTED, new byte[0], null,
+                    refused + " is not available through the server", 0, 0);
+        }
+        clamp(options);
+        return FLIGHTS.run(flightKey(request.source, options), options.priority, flight -> execute(request, options, start, flight));
+    }
+
+    // Lowers the limits a request asked for to the server's ceilings; a timeout of 0 is none
+    private static void clamp(Task1.Options options) {
+        options.maxSteps = Math.min(options.maxSteps, CEILINGS.maxSteps);
+        options.maxDepth = Math.min(options.maxDepth, CEILINGS.maxDepth);
+        options.maxSlots = Math.min(options.maxSlots, CEILINGS.maxSlots);
+        options.maxOutput = Math.min(options.maxOutput, CEILINGS.maxOutput);
+        options.maxAllocated = Math.min(options.maxAllocated, CEILINGS.maxAllocated);
+        if (CEILINGS.timeoutMillis != 0 && (options.timeoutMillis == 0 || options.timeoutMillis > CEILINGS.timeoutMillis)) {
+            options.timeoutMillis = CEILINGS.timeoutMillis;
+        }
+    }
+
+    // Everything that decides the response to a request, which leaves out its priority: the run
+    // goes at the highest priority of the requests waiting for it
+    private static String flightKey(byte[] source, Task1.Options options) {
+        SimpleLangLimits limits = options.limits();
+        return options.engineName + ' ' + limits.timeoutMillis + ' ' + limits.maxAllocated + ' ' + SimpleLangResultCache.key(source, options);
+    }
+
+    private static SimpleLangProtocol.Response execute(SimpleLangProtocol.Request request, Task1.Options options, long start,
+                                                        SimpleLangCoalescer.Flight<SimpleLangProtocol.Response> flight) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer);
+        long linked = start;
+        try {
+            String key = results == null ? null : SimpleLangResultCache.key(request.source, options);
+            SimpleLangResultCache.Result cached = key == null ? null : results.get(key);
+            if (cached != null) {
+                return new SimpleLangProtocol.Response(SimpleLangProtocol.NORMAL, cached.output(), cached.value(), "", 0,
+                        System.nanoTime() - start);
+            }
+            SimpleLangCompiledProgram program = PROGRAMS.link(options, request.source);
+            linked = System.nanoTime();
+            if ((PROGRAMS.hits() + PROGRAMS.misses()) % CACHE_REPORT == 0) {
+                System.err.println("Program cache: " + PROGRAMS.stats());
+            }
+            Integer result = run(program, options, new SimpleLangExecutionContext(out, options.limits()), flight);
+            out.flush();
+            if (key != null) {
+                results.put(key, new SimpleLangResultCache.Result(buffer.toByteArray(), result));
+            }
+            return new SimpleLangProtocol.Response(SimpleLangProtocol.NORMAL, buffer.toByteArray(), result, "",
+                    linked - start, System.nanoTime() - linked);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            out.flush();
+            long end = System.nanoTime();
+            int status = e instanceof SimpleLangLimits.Exceeded ? SimpleLangProtocol.LIMIT_EXCEEDED : SimpleLangProtocol.FAILED;
+            return new SimpleLangProtocol.Response(status, buffer.toByteArray(), null,
+                    SimpleLangBatch.describe(e), linked - start, linked == start ? 0 : end - linked);
+        }
+    }
+
+    private static Integer run(SimpleLangCompiledProgram program, Task1.Options options, SimpleLangExecutionContext context,
+                               SimpleLangCoalescer.Flight<SimpleLangProtocol.Response> flight) {
+        if (!(program instanceof SimpleLangBytecodeEngine.BytecodeProgram bytecode)) {
+            return program.run(options.mainArgs, context);
+        }
+        try {
+            SimpleLangScheduler.Execution execution = SCHEDULER.submit(bytecode, options.mainArgs, context, options.priority);
+            flight.onRaise(priority -> SCHEDULER.raise(execution, priority));
+            return execution.join();
+        } catch (CompletionException e) {
+            // report what the run threw, as if it had run on this thread
+            if (e.getCause() instanceof StackOverflowError overflow) {
+                throw overflow;
+            }
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+}
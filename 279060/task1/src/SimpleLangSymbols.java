@@ -0,0 +1,349 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns identifiers to dense int symbols, once, while they are lexed. Every Idfr token is a
+ * {@link SymbolToken} that carries its symbol and shares one String for its text with every
+ * other occurrence of the same name, so later stages key their tables on the symbol instead of
+ * hashing and comparing strings. The table is shared by every program a process loads.
+ *
+ * Looking up a name that is already interned takes no lock: the table is published as a
+ * {@link State} whose arrays are read and written element by element with volatile semantics,
+ * a name's bytes before the bucket that points at them, and replaced as a whole when it grows.
+ * Only adding a name takes the lock. The table never shrinks, since linked programs hold on to
+ * their symbols, so in a process that keeps loading programs, such as SimpleLangServer, it is
+ * bounded instead: past -Dsimplelang.symbols.max names (1,048,576 by default) or
+ * -Dsimplelang.symbols.bytes bytes of them (64 MiB by default) a new name fails to intern, and
+ * the program using it fails to compile.
+ */
+final class SimpleLangSymbols {
+
+    static final int MAX_SYMBOLS = Integer.getInteger("simplelang.symbols.max", 1 << 20);
+    static final long MAX_BYTES = Long.getLong("simplelang.symbols.bytes", 64L << 20);
+
+    private static volatile State state = new State(256, 512);
+    // Only changed under the lock
+    private static int count;
+    private static long byteCount;
+
+    /**
+     * Creates the tokens of {@link SimpleLangLexer} as {@link SymbolToken}s for identifiers.
+     */
+    static final TokenFactory<CommonToken> TOKEN_FACTORY = new TokenFactory<>() {
+        @Override
+        public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+            CommonToken token;
+            if (type == SimpleLangLexer.Idfr) {
+                token = new SymbolToken(source, channel, start, stop,
+                        intern(text != null ? text : source.b.getText(Interval.of(start, stop))));
+            } else {
+                token = CommonTokenFactory.DEFAULT.create(source, type, text, channel, start, stop, line, charPositionInLine);
+            }
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            return token;
+        }
+
+        @Override
+        public CommonToken create(int type, String text) {
+            return type == SimpleLangLexer.Idfr ? new SymbolToken(null, Token.DEFAULT_CHANNEL, -1, -1, intern(text))
+                    : CommonTokenFactory.DEFAULT.create(type, text);
+        }
+    };
+
+    private SimpleLangSymbols() {
+    }
+
+    static int intern(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        return intern(ByteBuffer.wrap(encoded), 0, encoded.length);
+    }
+
+    // Only allocates when the name is new
+    static int intern(ByteBuffer source, int start, int length) {
+        int hash = hash(source, start, length);
+        int symbol = state.find(hash, source, start, length);
+        if (symbol >= 0) {
+            return symbol;
+        }
+        synchronized (SimpleLangSymbols.class) {
+            symbol = state.find(hash, source, start, length);
+            if (symbol >= 0) {
+                return symbol;
+            }
+            byte[] name = new byte[length];
+            source.get(start, name);
+            return add(name, hash);
+        }
+    }
+
+    static String name(int symbol) {
+        return state.names.get(symbol);
+    }
+
+    static synchronized int count() {
+        return count;
+    }
+
+    // The symbol of an Idfr node
+    static int of(TerminalNode idfr) {
+        return of(idfr.getSymbol());
+    }
+
+    static int of(Token idfr) {
+        return idfr instanceof SymbolToken token ? token.symbol : intern(idfr.getText());
+    }
+
+    // Called with the lock held
+    private static int add(byte[] name, int hash) {
+        if (count == MAX_SYMBOLS || byteCount + name.length > MAX_BYTES) {
+            throw new RuntimeException("Too many distinct identifiers: the symbol table is limited to " + MAX_SYMBOLS
+                    + " names of " + MAX_BYTES + " bytes in all");
+        }
+        State current = state;
+        int symbol = count;
+        if (symbol == current.names.length() || 2 * (symbol + 1) > current.table.length()) {
+            current = current.grow(symbol, 2 * Math.max(symbol, 1));
+            state = current;
+        }
+        current.bytes.set(symbol, name);
+        current.names.set(symbol, new String(name, StandardCharsets.UTF_8));
+        current.place(hash, symbol);
+        count++;
+        byteCount += name.length;
+        return symbol;
+    }
+
+    private static int hash(ByteBuffer source, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + source.get(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] name) {
+        return hash(ByteBuffer.wrap(name), 0, name.length);
+    }
+
+    /**
+     * The interned names, and open addressing on the hash of their bytes, holding symbol + 1 (0
+     * is empty).
+     */
+    private static final class State {
+
+        final AtomicReferenceArray<byte[]> bytes;
+        final AtomicReferenceArray<String> names;
+        final AtomicIntegerArray table;
+
+        State(int capacity, int buckets) {
+            bytes = new AtomicReferenceArray<>(capacity);
+            names = new AtomicReferenceArray<>(capacity);
+            table = new AtomicIntegerArray(buckets);
+        }
+
+        // The symbol of the name, or -1 if it is not interned
+        int find(int hash, ByteBuffer source, int start, int length) {
+            int mask = table.length() - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int entry = table.get(i);
+                if (entry == 0) {
+                    return -1;
+                }
+                if (matches(bytes.get(entry - 1), source, start, length)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        void place(int hash, int symbol) {
+            int mask = table.length() - 1;
+            int i = hash & mask;
+            while (table.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            table.set(i, symbol + 1);
+        }
+
+        // A copy of the first count names with room for capacity, in a table twice as big as it
+        // needs to be for them
+        State grow(int count, int capacity) {
+            State grown = new State(Math.max(capacity, names.length()),
+                    Math.max(table.length(), Integer.highestOneBit(4 * capacity - 1) << 1));
+            for (int symbol = 0; symbol < count; symbol++) {
+                byte[] name = bytes.get(symbol);
+                grown.bytes.set(symbol, name);
+                grown.names.set(symbol, names.get(symbol));
+                grown.place(hash(name), symbol);
+            }
+            return grown;
+        }
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer source, int start, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != source.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An Idfr token with its symbol.
+     */
+    static final class SymbolToken extends CommonToken {
+
+        private static final long serialVersionUID = 1L;
+
+        final int symbol;
+
+        SymbolToken(Pair<TokenSource, CharStream> source, int channel, int start, int stop, int symbol) {
+            super(source, SimpleLangLexer.Idfr, channel, start, stop);
+            this.symbol = symbol;
+            setText(name(symbol));
+        }
+    }
+
+    /**
+     * A map from symbols to values, with open addressing on int keys and no boxing of keys.
+     */
+    static final class SymbolMap<V> {
+
+        // symbol + 1, 0 for an empty bucket
+        private int[] keys;
+        private Object[] values;
+        private int size;
+
+        SymbolMap() {
+            this(8);
+        }
+
+        SymbolMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(4, 2 * expected - 1)) << 1;
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean containsKey(int symbol) {
+            return keys[find(symbol)] != 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(int symbol) {
+            return (V) values[find(symbol)];
+        }
+
+        @SuppressWarnings("unchecked")
+        V getOrDefault(int symbol, V defaultValue) {
+            int i = find(symbol);
+            return keys[i] != 0 ? (V) values[i] : defaultValue;
+        }
+
+        void put(int symbol, V value) {
+            int i = find(symbol);
+            if (keys[i] == 0) {
+                keys[i] = symbol + 1;
+                if (2 * ++size > keys.length) {
+                    values[i] = value;
+                    resize();
+                    return;
+                }
+            }
+            values[i] = value;
+        }
+
+        V putIfAbsent(int symbol, V value) {
+            V old = get(symbol);
+            if (old == null && !containsKey(symbol)) {
+                put(symbol, value);
+            }
+            return old;
+        }
+
+        void remove(int symbol) {
+            int mask = keys.length - 1;
+            int i = find(symbol);
+            if (keys[i] == 0) {
+                return;
+            }
+            size--;
+            // Shift later entries of the probe sequence back into the gap
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = bucket(keys[j] - 1);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+        }
+
+        int[] keys() {
+            int[] result = new int[size];
+            int n = 0;
+            for (int key : keys) {
+                if (key != 0) {
+                    result[n++] = key - 1;
+                }
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<V> values() {
+            List<V> result = new ArrayList<>(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    result.add((V) values[i]);
+                }
+            }
+            return result;
+        }
+
+        private int bucket(int symbol) {
+            return (symbol * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+        }
+
+        private int find(int symbol) {
+            int mask = keys.length - 1;
+            int i = bucket(symbol);
+            while (keys[i] != 0 && keys[i] != symbol + 1) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[2 * oldKeys.length];
+            values = new Object[2 * oldKeys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int j = find(oldKeys[i] - 1);
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+}
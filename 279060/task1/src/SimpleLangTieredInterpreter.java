@@ -0,0 +1,149 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.*;
+
+/**
+ * {@link SimpleLangInterpreter} with a second tier: it profiles if branches and call counts
+ * while interpreting, and once a function has been called often enough it runs the code
+ * {@link SimpleLangJit} compiled for it instead. Compiled code hands control back through
+ * {@link #resume} when one of its speculations turns out wrong.
+ *
+ * The thresholds can be tuned with -Dsimplelang.jit.threshold (calls before compiling) and
+ * -Dsimplelang.jit.speculate (samples of a one-sided branch before compiling only that side).
+ */
+public class SimpleLangTieredInterpreter extends SimpleLangInterpreter {
+
+    static final int MAX_RECOMPILES = 3;
+
+    private static final class Tier {
+        int invocations;
+        int deopts;
+        SimpleLangJit.CompiledFunction code;
+    }
+
+    private final int compileThreshold;
+    private final int speculationThreshold;
+    private final SimpleLangProfile profile = new SimpleLangProfile();
+    private final SimpleLangSymbols.SymbolMap<Tier> tiers = new SimpleLangSymbols.SymbolMap<>();
+    private final SimpleLangSymbols.SymbolMap<FunctionLayout> layouts;
+    private final SimpleLangJit jit;
+
+    public SimpleLangTieredInterpreter() {
+        this(Integer.getInteger("simplelang.jit.threshold", 1000), Integer.getInteger("simplelang.jit.speculate", 100));
+    }
+
+    public SimpleLangTieredInterpreter(int compileThreshold, int speculationThreshold) {
+        this(compileThreshold, speculationThreshold, new SimpleLangSymbols.SymbolMap<>(), new SimpleLangSymbols.SymbolMap<>(),
+                SimpleLangExecutionContext.standard());
+    }
+
+    // One run of a linked program. Profiles and compiled code are the run's own, since they
+    // follow what this run's arguments made the program do
+    private SimpleLangTieredInterpreter(int compileThreshold, int speculationThreshold,
+                                        SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs,
+                                        SimpleLangSymbols.SymbolMap<FunctionLayout> layouts, SimpleLangExecutionContext context) {
+        super(global_funcs, context);
+        this.compileThreshold = compileThreshold;
+        this.speculationThreshold = speculationThreshold;
+        this.layouts = layouts;
+        this.jit = new SimpleLangJit(this, layouts, profile, speculationThreshold);
+    }
+
+    @Override
+    public SimpleLangCompiledProgram link(SimpleLangParser.ProgContext prog) {
+        SimpleLangSymbols.SymbolMap<Map<String, Object>> global_funcs = functions(prog);
+        SimpleLangSymbols.SymbolMap<FunctionLayout> layouts = FunctionLayout.of(prog);
+        // copied so that the linked program does not keep this engine, its profile and its JIT
+        int compileThreshold = this.compileThreshold;
+        int speculationThreshold = this.speculationThreshold;
+        return (args, context) -> new SimpleLangTieredInterpreter(compileThreshold, speculationThreshold, global_funcs, layouts,
+                context).visitProgram(args);
+    }
+
+    @Override
+    public Integer visitIfExpr(SimpleLangParser.IfExprContext ctx) {
+        Integer condValue = visit(ctx.exp());
+        boolean thenTaken = condValue > 0;
+        profile.recordBranch(ctx, thenTaken);
+        return visit(ctx.block(thenTaken ? 0 : 1));
+    }
+
+    @Override
+    public Integer visitInvokeExpr(SimpleLangParser.InvokeExprContext ctx) {
+        FunctionLayout callee = layouts.get(SimpleLangSymbols.of(ctx.Idfr()));
+        if (callee == null || callee.params.length != ctx.args.size()) {
+            return super.visitInvokeExpr(ctx);
+        }
+        SimpleLangJit.CompiledFunction code = tierUp(callee);
+        if (code == null) {
+            return super.visitInvokeExpr(ctx);
+        }
+
+        int[] argValues = new int[ctx.args.size()];
+        for (int i = 0; i < argValues.length; i++) {
+            Integer argValue = visit(ctx.args.get(i));
+            if (argValue == null) {
+                throw new RuntimeException("Argument " + ctx.args.get(i).getText() + " evaluated to null.");
+            }
+            argValues[i] = argValue;
+        }
+        context.enter(callee.frameSize());
+        Integer result = code.invoke(argValues);
+        context.exit(callee.frameSize());
+        return result;
+    }
+
+    // Calls made from compiled code that was not inlined
+    Integer call(FunctionLayout callee, int[] args) {
+        context.enter(callee.frameSize());
+        SimpleLangJit.CompiledFunction code = tierUp(callee);
+        Integer result;
+        if (code != null) {
+            result = code.invoke(args);
+        } else {
+            SimpleLangSymbols.SymbolMap<Integer> newFrame = new SimpleLangSymbols.SymbolMap<>(callee.frameSize());
+            for (int i = 0; i < args.length; i++) {
+                newFrame.put(callee.params[i], args[i]);
+            }
+            result = resume(newFrame, callee.dec.body());
+        }
+        context.exit(callee.frameSize());
+        return result;
+    }
+
+    // Interprets part of a function on a frame that compiled code reconstructed
+    Integer resume(SimpleLangSymbols.SymbolMap<Integer> frame, ParseTree tree) {
+        frames.push(frame);
+        try {
+            return visit(tree);
+        } finally {
+            frames.pop();
+        }
+    }
+
+    void deoptimize(SimpleLangJit.CompiledFunction code) {
+        if (!code.valid) {
+            return;
+        }
+        code.valid = false;
+        Tier tier = tiers.get(code.layout.symbol);
+        if (tier.code == code) {
+            tier.code = null;
+            tier.invocations = 0;
+            tier.deopts++;
+        }
+    }
+
+    private SimpleLangJit.CompiledFunction tierUp(FunctionLayout callee) {
+        Tier tier = tiers.get(callee.symbol);
+        if (tier == null) {
+            tier = new Tier();
+            tiers.put(callee.symbol, tier);
+        }
+        if (tier.code == null && ++tier.invocations >= compileThreshold) {
+            // Functions that keep failing their speculations are compiled for every path instead
+            tier.code = jit.compile(callee, tier.deopts < MAX_RECOMPILES);
+        }
+        return tier.code;
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Executes {@link SimpleLangBytecode}. Calls do not recurse on the Java stack: every frame lives
+ * in one growable int[] (variables, then operand stack) and return addresses are kept in a
+ * separate int[], so the whole state of an execution is a handful of arrays and registers.
+ *
+ * Given a profile the VM counts every pair and triple of instructions it dispatches, which is
+ * what {@link SimpleLangBytecodeCompiler} uses to decide which superinstructions to fuse.
+ *
+ * Given a {@link SimpleLangMemo}, a call of a pure function first looks its arguments up there,
+ * and a call that misses stores what it returns. A call answered from the table is not made, so
+ * it takes one step and no frame rather than those of the call.
+ */
+final class SimpleLangVM {
+
+    private final SimpleLangBytecode.Program program;
+    private final SimpleLangBytecode.Profile profile;
+    private final PrintStream out;
+    private final SimpleLangExecutionContext context;
+    private final SimpleLangMemo memo;
+    private final SimpleLangMemo.Fingerprints fingerprints;
+    private int[] stack = new int[256];
+    private int[] calls = new int[3 * 64];
+    // The arguments of each call in progress whose result goes into the memo table, MAX_ARGS
+    // ints a depth, and how many there are, -1 for a call that is not memoized
+    private int[] memoArgs;
+    private int[] memoCounts;
+    // The registers of a call that has not returned yet, kept while step is not running
+    private SimpleLangBytecode.Function entry;
+    private int savedFunction;
+    private int savedPc;
+    private int savedBase;
+    private int savedSp;
+    private int savedDepth;
+    private int result;
+
+    SimpleLangVM(SimpleLangBytecode.Program program, SimpleLangBytecode.Profile profile, SimpleLangExecutionContext context) {
+        this(program, profile, context, null, null);
+    }
+
+    SimpleLangVM(SimpleLangBytecode.Program program, SimpleLangBytecode.Profile profile, SimpleLangExecutionContext context,
+                 SimpleLangMemo memo, SimpleLangMemo.Fingerprints fingerprints) {
+        this.program = program;
+        this.profile = profile;
+        this.out = context.out;
+        this.context = context;
+        this.memo = memo;
+        this.fingerprints = fingerprints;
+        this.memoArgs = memo == null ? null : new int[64 * SimpleLangMemo.MAX_ARGS];
+        this.memoCounts = memo == null ? null : new int[64];
+    }
+
+    Integer run(String name, int[] args) {
+        start(name, args);
+        step(Long.MAX_VALUE);
+        return result();
+    }
+
+    // Sets up a call of name with args, which step then carries out
+    void start(String name, int[] args) {
+        int index = program.indexOf(name);
+        SimpleLangBytecode.Function function = program.function(index);
+        ensureStack(function.frameSize + function.maxStack);
+        for (int i = 0; i < args.length; i++) {
+            stack[function.paramSlots[i]] = args[i];
+        }
+        entry = function;
+        savedFunction = index;
+        savedPc = 0;
+        savedBase = 0;
+        savedSp = function.frameSize;
+        savedDepth = 0;
+    }
+
+    Integer result() {
+        return entry.returnsUnit ? null : result;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, 2 * stack.length));
+        }
+    }
+
+    // Runs until the call has returned, true, or until it has taken steps more loop back-edges
+    // and calls, false, when it stops at that point and the next step carries on from there
+    boolean step(long steps) {
+        int functionIndex = savedFunction;
+        int[] code = program.function(functionIndex).code;
+        int[] stack = this.stack;
+        int base = savedBase;
+        int sp = savedSp;
+        int pc = savedPc;
+        int depth = savedDepth;
+        int prev2 = -1;
+        int prev1 = -1;
+
+        while (true) {
+            int op = code[pc];
+            if (profile != null) {
+                profile.add(prev2, prev1, op, 1);
+                prev2 = prev1;
+                prev1 = op;
+            }
+            switch (op) {
+                case SimpleLangBytecode.CONST -> {
+                    stack[sp++] = code[pc + 1];
+                    pc += 2;
+                }
+                case SimpleLangBytecode.LOAD -> {
+                    stack[sp++] = stack[base + code[pc + 1]];
+                    pc += 2;
+                }
+                case SimpleLangBytecode.STORE -> {
+                    stack[base + code[pc + 1]] = stack[--sp];
+                    pc += 2;
+                }
+                case SimpleLangBytecode.DUP -> {
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    pc++;
+                }
+                case SimpleLangBytecode.POP -> {
+                    sp--;
+                    pc++;
+                }
+                case SimpleLangBytecode.ADD -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    pc++;
+                }
+                case SimpleLangBytecode.SUB -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    pc++;
+                }
+                case SimpleLangBytecode.MUL -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    pc++;
+                }
+                case SimpleLangBytecode.LT -> {
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                    pc++;
+                }
+                case SimpleLangBytecode.DIV, SimpleLangBytecode.EQ, SimpleLangBytecode.GT, SimpleLangBytecode.LE,
+                        SimpleLangBytecode.GE, SimpleLangBytecode.AND, SimpleLangBytecode.OR, SimpleLangBytecode.NE -> {
+                    sp--;
+                    stack[sp - 1] = SimpleLangBytecode.binary(op, stack[sp - 1], stack[sp]);
+                    pc++;
+                }
+                case SimpleLangBytecode.JUMP -> {
+                    int next = code[pc + 1];
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.JUMP_IF_TRUE -> {
+                    int next = stack[--sp] > 0 ? code[pc + 1] : pc + 2;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.JUMP_IF_FALSE -> {
+                    int next = stack[--sp] <= 0 ? code[pc + 1] : pc + 2;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.JUMP_IF_ZERO -> {
+                    int next = stack[--sp] == 0 ? code[pc + 1] : pc + 2;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.CALL -> {
+                    // a call suspended here makes it again when the execution resumes
+                    if (--steps < 0) {
+                        return suspend(functionIndex, pc, base, sp, depth);
+                    }
+                    int calleeIndex = code[pc + 1];
+                    int argCount = code[pc + 2];
+                    int memoized = -1;
+                    if (memo != null) {
+                        long fingerprint = fingerprints.of(calleeIndex);
+                        if (fingerprint != 0) {
+                            long result = memo.lookup(fingerprint, stack, sp - argCount, argCount);
+                            if (result != SimpleLangMemo.MISS) {
+                                // a call answered from the table is still a step, but leaves no frame
+                                context.backEdge();
+                                sp -= argCount;
+                                stack[sp++] = (int) result;
+                                pc += 3;
+                                continue;
+                            }
+                            memoized = argCount;
+                        }
+                    }
+                    SimpleLangBytecode.Function callee = program.function(calleeIndex);
+                    context.enter(callee.frameSize);
+                    int calleeBase = sp - argCount;
+                    if (calleeBase + callee.frameSize + callee.maxStack > stack.length) {
+                        ensureStack(calleeBase + callee.frameSize + callee.maxStack);
+                        stack = this.stack;
+                    }
+                    if (3 * depth + 3 > calls.length) {
+                        calls = Arrays.copyOf(calls, 2 * calls.length);
+                    }
+                    calls[3 * depth] = pc + 3;
+                    calls[3 * depth + 1] = base;
+                    calls[3 * depth + 2] = functionIndex;
+                    if (memoCounts != null) {
+                        if (depth == memoCounts.length) {
+                            memoCounts = Arrays.copyOf(memoCounts, 2 * depth);
+                            memoArgs = Arrays.copyOf(memoArgs, 2 * depth * SimpleLangMemo.MAX_ARGS);
+                        }
+                        memoCounts[depth] = memoized;
+                        if (memoized > 0) {
+                            System.arraycopy(stack, sp - argCount, memoArgs, depth * SimpleLangMemo.MAX_ARGS, argCount);
+                        }
+                    }
+                    depth++;
+
+                    // Arguments are already where the parameters go unless a parameter name repeats
+                    if (callee.paramsInOrder) {
+                        Arrays.fill(stack, sp, calleeBase + callee.frameSize, 0);
+                    } else {
+                        int[] args = Arrays.copyOfRange(stack, calleeBase, sp);
+                        Arrays.fill(stack, calleeBase, calleeBase + callee.frameSize, 0);
+                        for (int i = 0; i < argCount; i++) {
+                            stack[calleeBase + callee.paramSlots[i]] = args[i];
+                        }
+                    }
+                    base = calleeBase;
+                    sp = base + callee.frameSize;
+                    functionIndex = calleeIndex;
+                    code = callee.code;
+                    pc = 0;
+                }
+                case SimpleLangBytecode.RET -> {
+                    int result = stack[sp - 1];
+                    if (depth == 0) {
+                        this.result = result;
+                        return true;
+                    }
+                    depth--;
+                    context.exit(program.function(functionIndex).frameSize);
+                    if (memoCounts != null && memoCounts[depth] >= 0) {
+                        memo.store(fingerprints.of(functionIndex), memoArgs, depth * SimpleLangMemo.MAX_ARGS, memoCounts[depth], result);
+                    }
+                    sp = base;
+                    stack[sp++] = result;
+                    pc = calls[3 * depth];
+                    base = calls[3 * depth + 1];
+                    functionIndex = calls[3 * depth + 2];
+                    code = program.function(functionIndex).code;
+                }
+                case SimpleLangBytecode.PRINT -> {
+                    out.print(stack[--sp]);
+                    pc++;
+                }
+                case SimpleLangBytecode.SPACE -> {
+                    out.print(" ");
+                    pc++;
+                }
+                case SimpleLangBytecode.NEWLINE -> {
+                    out.println();
+                    pc++;
+                }
+                case SimpleLangBytecode.CHECK_BOOL -> {
+                    if (stack[sp - 1] != 0 && stack[sp - 1] != 1) {
+                        throw new RuntimeException(program.constants[code[pc + 1]]);
+                    }
+                    pc += 2;
+                }
+                case SimpleLangBytecode.FAIL -> throw new RuntimeException(program.constants[code[pc + 1]]);
+                case SimpleLangBytecode.S_LOAD_LOAD -> {
+                    stack[sp++] = stack[base + code[pc + 1]];
+                    stack[sp++] = stack[base + code[pc + 2]];
+                    pc += 3;
+                }
+                case SimpleLangBytecode.S_LOAD_CONST -> {
+                    stack[sp++] = stack[base + code[pc + 1]];
+                    stack[sp++] = code[pc + 2];
+                    pc += 3;
+                }
+                case SimpleLangBytecode.S_LOAD_CONST_OP -> {
+                    stack[sp++] = SimpleLangBytecode.binary(code[pc + 3], stack[base + code[pc + 1]], code[pc + 2]);
+                    pc += 4;
+                }
+                case SimpleLangBytecode.S_LOAD_LOAD_OP -> {
+                    stack[sp++] = SimpleLangBytecode.binary(code[pc + 3], stack[base + code[pc + 1]], stack[base + code[pc + 2]]);
+                    pc += 4;
+                }
+                case SimpleLangBytecode.S_LOAD_CONST_OP_STORE -> {
+                    stack[base + code[pc + 4]] = SimpleLangBytecode.binary(code[pc + 3], stack[base + code[pc + 1]], code[pc + 2]);
+                    pc += 5;
+                }
+                case SimpleLangBytecode.S_LOAD_LOAD_OP_STORE -> {
+                    stack[base + code[pc + 4]] = SimpleLangBytecode.binary(code[pc + 3], stack[base + code[pc + 1]], stack[base + code[pc + 2]]);
+                    pc += 5;
+                }
+                case SimpleLangBytecode.S_CMP_JUMP -> {
+                    sp -= 2;
+                    int next = SimpleLangBytecode.compare(code[pc + 1], stack[sp], stack[sp + 1]) ? code[pc + 2] : pc + 3;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.S_LOAD_CONST_CMP_JUMP -> {
+                    int next = SimpleLangBytecode.compare(code[pc + 3], stack[base + code[pc + 1]], code[pc + 2]) ? code[pc + 4] : pc + 5;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                case SimpleLangBytecode.S_LOAD_LOAD_CMP_JUMP -> {
+                    int next = SimpleLangBytecode.compare(code[pc + 3], stack[base + code[pc + 1]], stack[base + code[pc + 2]]) ? code[pc + 4] : pc + 5;
+                    if (next <= pc) {
+                        context.backEdge();
+                        if (--steps < 0) {
+                            return suspend(functionIndex, next, base, sp, depth);
+                        }
+                    }
+                    pc = next;
+                }
+                default -> throw new IllegalStateException("Bad opcode " + op + " at " + pc + " in " + program.function(functionIndex).name);
+            }
+        }
+    }
+
+    private boolean suspend(int functionIndex, int pc, int base, int sp, int depth) {
+        savedFunction = functionIndex;
+        savedPc = pc;
+        savedBase = base;
+        savedSp = sp;
+        savedDepth = depth;
+        return false;
+    }
+}
@@ -1,30 +1,221 @@
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.TokenSource;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class Task1 {
 
+    // Options come before the arguments for main, e.g. --engine=tiered 10
+    static final class Options {
+
+        String engineName = SimpleLangEngines.DEFAULT;
+        boolean antlrLexer = false;
+        String parserName = "descent";
+        boolean profileParser = false;
+        boolean flatStats = false;
+        String file = null;
+        String compileTo = null;
+        String batch = null;
+        // Only SimpleLangServer schedules runs, and only on the bytecode engine
+        int priority = SimpleLangScheduler.DEFAULT_PRIORITY;
+        long maxSteps = Long.MAX_VALUE;
+        int maxDepth = Integer.MAX_VALUE;
+        long maxSlots = Long.MAX_VALUE;
+        long maxOutput = Long.MAX_VALUE;
+        long maxAllocated = Long.MAX_VALUE;
+        long timeoutMillis = 0;
+        boolean usage = false;
+        String[] mainArgs;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            int firstArg = 0;
+            while (firstArg < args.length && args[firstArg].startsWith("--")) {
+                String option = args[firstArg++];
+                if (option.startsWith("--engine=")) {
+                    options.engineName = option.substring("--engine=".length());
+                } else if (option.equals("--lexer=antlr")) {
+                    options.antlrLexer = true;
+                } else if (option.equals("--lexer=scanner")) {
+                    options.antlrLexer = false;
+                } else if (option.equals("--parser=descent") || option.equals("--parser=antlr") || option.equals("--parser=ll")
+                        || option.equals("--parser=parallel")) {
+                    options.parserName = option.substring("--parser=".length());
+                } else if (option.equals("--profile-parser")) {
+                    options.profileParser = true;
+                } else if (option.equals("--flat-stats")) {
+                    options.flatStats = true;
+                } else if (option.startsWith("--file=")) {
+                    options.file = option.substring("--file=".length());
+                } else if (option.startsWith("--compile=")) {
+                    options.compileTo = option.substring("--compile=".length());
+                } else if (option.startsWith("--batch=")) {
+                    options.batch = option.substring("--batch=".length());
+                } else if (option.startsWith("--priority=")) {
+                    options.priority = Integer.parseInt(option.substring("--priority=".length()));
+                } else if (option.startsWith("--max-steps=")) {
+                    options.maxSteps = Long.parseLong(option.substring("--max-steps=".length()));
+                } else if (option.startsWith("--max-depth=")) {
+                    options.maxDepth = Integer.parseInt(option.substring("--max-depth=".length()));
+                } else if (option.startsWith("--max-slots=")) {
+                    options.maxSlots = Long.parseLong(option.substring("--max-slots=".length()));
+                } else if (option.startsWith("--max-output=")) {
+                    options.maxOutput = Long.parseLong(option.substring("--max-output=".length()));
+                } else if (option.startsWith("--max-allocated=")) {
+                    options.maxAllocated = Long.parseLong(option.substring("--max-allocated=".length()));
+                } else if (option.startsWith("--timeout=")) {
+                    options.timeoutMillis = Long.parseLong(option.substring("--timeout=".length()));
+                } else if (option.equals("--usage")) {
+                    options.usage = true;
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            options.mainArgs = Arrays.copyOfRange(args, firstArg, args.length);
+            // limits that make no sense are refused before anything runs
+            options.limits();
+            return options;
+        }
+
+        SimpleLangLimits limits() {
+            return new SimpleLangLimits(maxSteps, maxDepth, maxSlots, maxOutput, maxAllocated, timeoutMillis);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        // create a CharStream that reads from standard input
-        CharStream input = CharStreams.fromStream(System.in);
+        Options options = Options.parse(args);
 
-        // create a lexer that feeds off of input CharStream
-        SimpleLangLexer lexer = new SimpleLangLexer(input);
+        // a precompiled program skips the front end and always runs on the bytecode VM
+        SimpleLangCompiledProgram compiled;
+        if (options.file != null && options.file.endsWith(".simpc")) {
+            compiled = new SimpleLangBytecodeEngine().link(SimpleLangBytecodeFile.load(Path.of(options.file)));
+        } else {
+            compiled = link(options, source(options.file));
+            if (compiled == null) {
+                return;
+            }
+        }
+
+        // --batch=file runs every line of file as the arguments of one run, in parallel
+        if (options.batch != null) {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try (BufferedReader lines = Files.newBufferedReader(Path.of(options.batch))) {
+                SimpleLangBatch.run(compiled, lines, System.out, pool, 4 * pool.getParallelism(), options.limits());
+            } finally {
+                pool.shutdown();
+            }
+            return;
+        }
+        // going over a limit is reported like a result, and makes the exit status 3
+        SimpleLangExecutionContext context = new SimpleLangExecutionContext(System.out, options.limits());
+        Integer result;
+        try {
+            result = compiled.run(options.mainArgs, context);
+        } catch (SimpleLangLimits.Exceeded e) {
+            printLimitExceeded(System.out, e);
+            System.out.flush();
+            printUsage(options, context);
+            System.exit(3);
+            return;
+        }
+        printResult(System.out, result);
+        printUsage(options, context);
+    }
+
+    // Read the program from standard input, or map it straight from a file so that the source
+    // never has to be copied onto the heap
+    private static ByteBuffer source(String file) throws IOException {
+        if (file == null) {
+            return ByteBuffer.wrap(System.in.readAllBytes());
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 
-        // create a buffer of tokens pulled from the lexer
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+    // Null if the program was only compiled to a file
+    static SimpleLangCompiledProgram link(Options options, ByteBuffer source) throws IOException {
+        SimpleLangEngine engine = SimpleLangEngines.create(options.engineName);
+        String file = options.file;
+        boolean antlrLexer = options.antlrLexer;
 
-        // create a parser that feeds off the tokens buffer
-        SimpleLangParser parser = new SimpleLangParser(tokens);
-        SimpleLangParser.ProgContext tree = parser.prog(); // begin parsing at prog rule
+        // the ast engine does not need a parse tree, so it gets the recursive-descent parser
+        if (engine instanceof SimpleLangAstEngine ast && !antlrLexer && !options.profileParser && options.compileTo == null
+                && options.parserName.equals("descent")) {
+            try {
+                return ast.link(SimpleLangDescentParser.parse(source));
+            } catch (RuntimeException e) {
+                // leave reporting the error to the generated parser below
+            }
+        }
 
-        SimpleLangInterpreter interpreter = new SimpleLangInterpreter();
-        Integer mainReturnValue = interpreter.visitProgram(tree, args);
-        System.out.println();
-        System.out.println("NORMAL_TERMINATION");
-        System.out.println(mainReturnValue);
+        // create a token source over the input, by default the hand-written scanner
+        TokenSource lexer;
+        if (antlrLexer) {
+            CharStream input = CharStreams.fromString(StandardCharsets.UTF_8.decode(source.duplicate()).toString());
+            SimpleLangLexer antlr = new SimpleLangLexer(input);
+            antlr.setTokenFactory(SimpleLangSymbols.TOKEN_FACTORY);
+            lexer = antlr;
+        } else {
+            lexer = new SimpleLangScanner.AntlrSource(source, file != null ? file : "<stdin>");
+        }
+
+        // parse with SLL prediction first, falling back to full LL only for input it fails on
+        SimpleLangParser.ProgContext tree;
+        if (options.profileParser) {
+            tree = SimpleLangFrontEnd.profile(lexer, System.err, 10);
+        } else if (options.parserName.equals("ll")) {
+            tree = SimpleLangFrontEnd.parseLL(lexer);
+        } else if (options.parserName.equals("parallel") && !antlrLexer) {
+            tree = SimpleLangFrontEnd.parseParallel(source, file != null ? file : "<stdin>", ForkJoinPool.commonPool());
+        } else {
+            tree = SimpleLangFrontEnd.parse(lexer);
+        }
+
+        // --compile=file.simpc only writes the compiled program, to run later with --file=file.simpc
+        if (options.compileTo != null) {
+            SimpleLangBytecodeFile.write(SimpleLangBytecodeEngine.compile(tree), Path.of(options.compileTo));
+            return null;
+        }
+
+        if (engine instanceof SimpleLangFlatEngine flat) {
+            // lower first so that the parse tree and its tokens can be collected before the run
+            SimpleLangFlatProgram lowered = SimpleLangFlatLowering.lower(tree);
+            if (options.flatStats) {
+                lowered.report(System.err);
+            }
+            return flat.link(lowered);
+        }
+        return engine.link(tree);
+    }
+
+    static void printResult(PrintStream out, Integer mainReturnValue) {
+        out.println();
+        out.println("NORMAL_TERMINATION");
+        out.println(mainReturnValue);
+    }
+
+    // --usage reports what the run used on stderr, after its output
+    private static void printUsage(Options options, SimpleLangExecutionContext context) {
+        if (options.usage) {
+            System.err.println("usage: " + context.usage());
+        }
+    }
 
+    static void printLimitExceeded(PrintStream out, SimpleLangLimits.Exceeded e) {
+        out.println();
+        out.println("LIMIT_EXCEEDED");
+        out.println(e.getMessage());
     }
-}
\ No newline at end of file
+}
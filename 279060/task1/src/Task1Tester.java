@@ -1,19 +1,55 @@
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
 
 import java.io.PrintStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Task1Tester {
 
+    private static final String DESCENT = "ast with the descent parser";
+    private static final String SIMPC = "bytecode loaded from .simpc";
+    // Every run is held to these, so that a test that does not terminate fails instead of hanging
+    private static final SimpleLangLimits LIMITS = new SimpleLangLimits(
+            Long.getLong("simplelang.tester.steps", 100_000), 200, 10_000, 1024, Long.MAX_VALUE,
+            Long.getLong("simplelang.tester.timeout", 10_000));
+
     public static void main(String[] args) throws IOException {
 
+        // Tier up almost immediately so the tests exercise compiled code and deoptimisation
+        System.setProperty("simplelang.jit.threshold", System.getProperty("simplelang.jit.threshold", "2"));
+        System.setProperty("simplelang.jit.speculate", System.getProperty("simplelang.jit.speculate", "1"));
+        // Low enough for checkCeilings to reach
+        System.setProperty("simplelang.server.max-output", System.getProperty("simplelang.server.max-output", "1024"));
+
         String pathToTests = "./task1tests/";
         File dir = new File(pathToTests);
         File[] directoryListing = dir.listFiles((file, name) -> name.toLowerCase().endsWith(".simp"));
@@ -23,62 +59,596 @@ public class Task1Tester {
                 System.out.println("Trying testcase " + child.getName());
 
                 SimpleLangParser.ProgContext tree;
+                byte[] source;
                 try {
+                    source = Files.readAllBytes(Path.of(pathToTests + child.getName()));
                     CharStream input = CharStreams.fromFileName(pathToTests + child.getName());
                     SimpleLangLexer lexer = new SimpleLangLexer(input);
+                    lexer.setTokenFactory(SimpleLangSymbols.TOKEN_FACTORY);
                     CommonTokenStream tokens = new CommonTokenStream(lexer);
-                    SimpleLangParser parser = new SimpleLangParser(tokens);
-                    tree = parser.prog();
+                    tree = SimpleLangFrontEnd.parse(tokens);
+                    checkScanner(tokens.getTokens(), source, child.getName());
+                    checkParallel(tree, source, child.getName());
+                    checkIncremental(tree, source, child.getName());
+                    checkProgramCache(source, child.getName());
                 } catch (Exception e) {
                     System.err.println("Exception when parsing " + child.getName());
                     continue;
                 }
 
-                StringBuilder sb = new StringBuilder();
+                // every engine on the ANTLR parse tree, then the ast engine behind the hand-written
+                // parser and the bytecode VM on a program written to and loaded from a .simpc file
+                List<String> configurations = new ArrayList<>(SimpleLangEngines.names());
+                configurations.add(DESCENT);
+                configurations.add(SIMPC);
+                for (String engineName : configurations) {
+
+                    SimpleLangCompiledProgram program;
+                    try {
+                        program = link(engineName, tree, source);
+                    } catch (Exception e) {
+                        System.err.println("Exception when linking " + child.getName() + " with " + engineName);
+                        continue;
+                    }
+
+                    // every line runs on the one linked program, printing to a context of its own
+                    StringBuilder sb = new StringBuilder();
+                    List<String> lines = new ArrayList<>();
+                    List<String> outputs = new ArrayList<>();
+                    try (FileReader fr = new FileReader(pathToTests + child.getName() + ".args"); BufferedReader br = new BufferedReader(fr)) {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            String output = feed(program, line);
+                            lines.add(line);
+                            outputs.add(output);
+                            if (output == null) {
+                                System.err.println("Exception when feeding " + line + " into " + child.getName() + " with " + engineName);
+                                continue;
+                            }
+                            sb.append(output);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Exception when reading arguments for " + child.getName());
+                        continue;
+                    }
+                    checkShared(program, lines, outputs, child.getName(), engineName);
+                    if (engineName.equals(SimpleLangEngines.DEFAULT)) {
+                        checkResultCache(source, lines, outputs, child.getName());
+                        checkCoalesced(program, lines, outputs, child.getName());
+                        checkMemo(tree, lines, outputs, child.getName());
+                    }
+                    if (!outputs.contains(null)) {
+                        checkBatch(program, lines, sb.toString(), child.getName(), engineName);
+                    }
+                    if (program instanceof SimpleLangBytecodeEngine.BytecodeProgram bytecode) {
+                        checkScheduled(bytecode, lines, outputs, child.getName(), engineName);
+                    }
+
+                    try (FileReader fr = new FileReader(pathToTests + child.getName() + ".answers"); BufferedReader br = new BufferedReader(fr)) {
+                        String content = br.lines().collect(Collectors.joining("\n"));
+                        if (!content.trim().replace("\r", "").equals(sb.toString().trim().replace("\r", ""))) {
+                            System.err.println("Incorrect output for " + child.getName() + " with " + engineName);
+                            System.err.println("Answers:\n\n" + content);
+                            System.err.println("Output:\n\n" + sb.toString());
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Exception when reading answers for " + child.getName());
+                        continue;
+                    }
+                }
+            }
+        } else {
+            System.err.println("Failed to find any testcases!");
+        }
+        checkLongChain(3000);
+        checkProtocol();
+        checkCeilings();
+        checkSpillIndex();
+        checkResultKeys();
+        checkMemoTable();
+        checkDuplicates();
+        checkLexicalErrors();
+    }
+
+    private static SimpleLangCompiledProgram link(String configuration, SimpleLangParser.ProgContext tree, byte[] source) throws IOException {
+        if (configuration.equals(DESCENT)) {
+            return new SimpleLangAstEngine().link(SimpleLangDescentParser.parse(ByteBuffer.wrap(source)));
+        } else if (configuration.equals(SIMPC)) {
+            // the file stays mapped, which some platforms do not allow deleting right away
+            Path file = Files.createTempFile("task1", ".simpc");
+            file.toFile().deleteOnExit();
+            SimpleLangBytecodeFile.write(SimpleLangBytecodeEngine.compile(tree), file);
+            return new SimpleLangBytecodeEngine().link(SimpleLangBytecodeFile.load(file));
+        }
+        return SimpleLangEngines.create(configuration).link(tree);
+    }
 
-                try (FileReader fr = new FileReader(pathToTests + child.getName() + ".args"); BufferedReader br = new BufferedReader(fr)) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
+    // What one run prints, followed by what Task1 prints after it, or null if the run failed
+    private static String feed(SimpleLangCompiledProgram program, String line) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        return finish(baos, () -> program.run(SimpleLangBatch.arguments(line), new SimpleLangExecutionContext(new PrintStream(baos), LIMITS)));
+    }
 
-                        PrintStream old = System.out;
-                        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); PrintStream ps = new PrintStream(baos)) {
+    // What a run printed into buffer, followed by what Task1 prints after it, or null if it failed
+    private static String finish(ByteArrayOutputStream buffer, Supplier<Integer> run) {
+        PrintStream ps = new PrintStream(buffer);
+        try {
+            Task1.printResult(ps, run.get());
+        } catch (SimpleLangLimits.Exceeded e) {
+            Task1.printLimitExceeded(ps, e);
+        } catch (Exception e) {
+            return null;
+        }
+        ps.flush();
+        return buffer.toString();
+    }
+
+    // A chain of functions alike but for where it ends is lowered in about linear time, with none
+    // of its functions sharing a body, while those of a chain closed into a cycle all share one
+    private static void checkLongChain(int length) {
+        StringBuilder source = new StringBuilder("int main(int n) { (c1(n) + d1(n)) }\n");
+        for (int i = 1; i < length; i++) {
+            source.append("int c").append(i).append("(int n) { if (n < 1) then { 0 } else { (c").append(i + 1).append("((n - 1)) + 1) } }\n");
+            source.append("int d").append(i).append("(int k) { if (k < 1) then { 0 } else { (d").append(i + 1).append("((k - 1)) + 1) } }\n");
+        }
+        source.append("int c").append(length).append("(int n) { (n * 100) }\n");
+        source.append("int d").append(length).append("(int k) { if (k < 1) then { 0 } else { (d1((k - 1)) + 1) } }\n");
+        SimpleLangLexer lexer = new SimpleLangLexer(CharStreams.fromString(source.toString()));
+        lexer.setTokenFactory(SimpleLangSymbols.TOKEN_FACTORY);
+        SimpleLangParser.ProgContext tree = SimpleLangFrontEnd.parse(new CommonTokenStream(lexer));
 
-                            System.setOut(ps);
-                            SimpleLangInterpreter interpreter = new SimpleLangInterpreter();
-                            Integer mainReturnValue = interpreter.visitProgram(tree, line.isEmpty() ? new String[0] : line.trim().split("\\s+"));
-                            System.out.println();
-                            System.out.println("NORMAL_TERMINATION");
-                            System.out.println(mainReturnValue);
-                            System.out.flush();
-                            System.setOut(old);
-                            sb.append(baos);
+        long start = System.nanoTime();
+        SimpleLangFlatProgram program = SimpleLangFlatLowering.lower(tree);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Set<Integer> cBodies = new HashSet<>();
+        Set<Integer> dBodies = new HashSet<>();
+        for (int i = 1; i <= length; i++) {
+            cBodies.add(program.functions[SimpleLangFlatProgram.FUNCTION_STRIDE * program.indexOf("c" + i)]);
+            dBodies.add(program.functions[SimpleLangFlatProgram.FUNCTION_STRIDE * program.indexOf("d" + i)]);
+        }
+        String output = feed(new SimpleLangFlatEngine().link(program), "5");
+        if (millis > 10_000 || cBodies.size() != length || dBodies.size() != 1 || !"\nNORMAL_TERMINATION\n10\n".equals(output)) {
+            System.err.println("Lowering a chain of " + length + " functions took " + millis + " ms, giving " + cBodies.size()
+                    + " and " + dBodies.size() + " bodies and " + output);
+        }
+    }
 
-                        } catch (Exception e) {
+    // A request survives the trip, and one whose counts or lengths do not fit in its frame is
+    // refused before anything is allocated for them
+    private static void checkProtocol() throws IOException {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        new SimpleLangProtocol.Request(new String[]{"--engine=flat", "5"}, "int main() { 1 }".getBytes(StandardCharsets.UTF_8)).write(sent);
+        SimpleLangProtocol.Request request = SimpleLangProtocol.Request.read(new ByteArrayInputStream(sent.toByteArray()));
+        if (!List.of(request.args).equals(List.of("--engine=flat", "5")) || !new String(request.source, StandardCharsets.UTF_8).equals("int main() { 1 }")) {
+            System.err.println("A request did not survive being written and read");
+        }
+        int[][] frames = {{-1}, {Integer.MAX_VALUE}, {1, 1 << 30}, {0, -5}, {0, 9, 0}};
+        for (int[] frame : frames) {
+            ByteBuffer bytes = ByteBuffer.allocate(4 + 4 * frame.length).putInt(4 * frame.length);
+            for (int value : frame) {
+                bytes.putInt(value);
+            }
+            try {
+                SimpleLangProtocol.Request.read(new ByteArrayInputStream(bytes.array()));
+                System.err.println("A request of " + Arrays.toString(frame) + " was not refused");
+            } catch (IOException e) {
+                // refused, as it should be
+            }
+        }
+    }
 
-                            System.err.println("Exception when feeding " + line + " into " + child.getName());
-                            System.setOut(old);
-                            continue;
-                        }
+    // A request that asks for no limits is still held to the server's
+    private static void checkCeilings() {
+        byte[] source = "int main() { while (0 < 1) do { print 7 }; 0 }".getBytes(StandardCharsets.UTF_8);
+        SimpleLangProtocol.Response response = SimpleLangServer.handle(new SimpleLangProtocol.Request(new String[0], source));
+        if (response.status != SimpleLangProtocol.LIMIT_EXCEEDED || response.output.length != SimpleLangServer.CEILINGS.maxOutput) {
+            System.err.println("The server let a run print " + response.output.length + " bytes, ending with status " + response.status
+                    + " and " + response.message);
+        }
+    }
+
+    // A cached program is linked once per source and engine, and the one used least recently
+    // makes room for the next
+    private static void checkProgramCache(byte[] source, String name) throws IOException {
+        Task1.Options bytecode = Task1.Options.parse(new String[]{"--engine=bytecode"});
+        Task1.Options ast = Task1.Options.parse(new String[]{"--engine=ast"});
+        // room for the ast program, but not for both
+        SimpleLangProgramCache cache = new SimpleLangProgramCache(1024 + 8L * source.length);
+        SimpleLangCompiledProgram first = cache.link(bytecode, source);
+        boolean same = cache.link(bytecode, source) == first && cache.hits() == 1;
+        cache.link(ast, source);
+        same &= cache.link(bytecode, source) != first && cache.misses() == 3;
+        if (!same) {
+            System.err.println("Program cache did not hit and evict as expected for " + name + ": " + cache.stats());
+        }
+    }
+
+    // Results evicted from memory come back from the spill file, also once it is opened again
+    private static void checkResultCache(byte[] source, List<String> lines, List<String> outputs, String name) throws IOException {
+        Path spill = Files.createTempFile("task1", ".results");
+        try {
+            List<String> keys = new ArrayList<>();
+            // room in memory for about one result, so that most go to the file
+            try (SimpleLangResultCache cache = new SimpleLangResultCache(200, spill, 1 << 20)) {
+                for (int i = 0; i < lines.size(); i++) {
+                    keys.add(SimpleLangResultCache.key(source, Task1.Options.parse(SimpleLangBatch.arguments(lines.get(i)))));
+                    // a line that repeats is cached once, as its first
+                    cache.put(keys.get(i), new SimpleLangResultCache.Result(String.valueOf(outputs.get(i)).getBytes(), keys.indexOf(keys.get(i))));
+                }
+                checkResults(cache, keys, outputs, name);
+            }
+            try (SimpleLangResultCache cache = new SimpleLangResultCache(0, spill, 1 << 20)) {
+                checkResults(cache, keys, outputs, name);
+            }
+        } finally {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    // Engines count steps and calls differently, so a result may only go to another engine when
+    // neither is limited
+    private static void checkResultKeys() {
+        byte[] source = "int main() { 1 }".getBytes(StandardCharsets.UTF_8);
+        boolean same = true;
+        for (String limit : new String[]{"--max-steps=10", "--max-depth=10"}) {
+            same &= !SimpleLangResultCache.key(source, Task1.Options.parse(new String[]{"--engine=bytecode", limit}))
+                    .equals(SimpleLangResultCache.key(source, Task1.Options.parse(new String[]{"--engine=interp", limit})));
+        }
+        same &= SimpleLangResultCache.key(source, Task1.Options.parse(new String[]{"--engine=bytecode"}))
+                .equals(SimpleLangResultCache.key(source, Task1.Options.parse(new String[]{"--engine=interp"})));
+        if (!same) {
+            System.err.println("Result cache keys do not hold the engine exactly where steps or depth are limited");
+        }
+    }
+
+    // A spill file with more results than its index has slots gives back the ones still indexed,
+    // the latest among them, and never another key's
+    private static void checkSpillIndex() throws IOException {
+        Path spill = Files.createTempFile("task1", ".results");
+        try (SimpleLangResultCache cache = new SimpleLangResultCache(0, spill, 1 << 20, 8)) {
+            for (int i = 0; i < 100; i++) {
+                cache.put("key " + i, new SimpleLangResultCache.Result(new byte[0], i));
+            }
+            int found = 0;
+            for (int i = 0; i < 100; i++) {
+                SimpleLangResultCache.Result result = cache.get("key " + i);
+                if (result != null && result.value() != i) {
+                    System.err.println("The spill index gave the result of " + result.value() + " for " + i);
+                }
+                found += result == null ? 0 : 1;
+            }
+            if (found > 8 || cache.get("key 99") == null) {
+                System.err.println("The spill index of 8 slots found " + found + " results: " + cache.stats());
+            }
+        } finally {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    private static void checkResults(SimpleLangResultCache cache, List<String> keys, List<String> outputs, String name) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            SimpleLangResultCache.Result result = cache.get(keys.get(i));
+            if (result == null || !new String(result.output()).equals(String.valueOf(outputs.get(i))) || result.value() != keys.indexOf(keys.get(i))) {
+                System.err.println("Result cache lost the result of line " + (i + 1) + " for " + name + ": " + cache.stats());
+                return;
+            }
+        }
+    }
+
+    // Callers asking for the same run at once get one run and its output, the run hears of the
+    // highest priority among them, and a run that fails is not handed to a caller that comes
+    // after it
+    private static void checkCoalesced(SimpleLangCompiledProgram program, List<String> lines, List<String> expected, String name) {
+        SimpleLangCoalescer<String> coalescer = new SimpleLangCoalescer<>();
+        int callers = 4;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            long joined = coalescer.joined();
+            AtomicInteger runs = new AtomicInteger();
+            AtomicInteger highest = new AtomicInteger();
+            String[] actual = new String[callers];
+            List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                int caller = c;
+                threads.add(new Thread(() -> actual[caller] = coalescer.run(line, 1 + caller, flight -> {
+                    runs.incrementAndGet();
+                    flight.onRaise(highest::set);
+                    // the run waits until every other caller has joined it, or has had ample time to
+                    long deadline = System.nanoTime() + 10_000_000_000L;
+                    while (coalescer.joined() < joined + callers - 1 && System.nanoTime() - deadline < 0) {
+                        Thread.yield();
                     }
-                } catch (Exception e) {
-                    System.err.println("Exception when reading arguments for " + child.getName());
-                    continue;
+                    // what a caller that joins last passes on may still be on its way
+                    while (highest.get() < callers && System.nanoTime() - deadline < 0) {
+                        Thread.yield();
+                    }
+                    return feed(program, line);
+                })));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
                 }
+            }
+            for (String output : actual) {
+                if (runs.get() != 1 || highest.get() != callers || !Objects.equals(expected.get(i), output)) {
+                    System.err.println("Coalesced run of " + line + " differs for " + name + ": " + coalescer.stats());
+                    return;
+                }
+            }
+        }
+        AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            try {
+                coalescer.run("fails", () -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("fails");
+                });
+            } catch (IllegalStateException e) {
+                // as expected
+            }
+        }
+        if (attempts.get() != 2) {
+            System.err.println("Coalesced failure was handed to a later caller for " + name);
+        }
+    }
+
+    // Runs that memoize pure functions print what runs that do not do, also once the table has
+    // been written to a file and opened again
+    private static void checkMemo(SimpleLangParser.ProgContext tree, List<String> lines, List<String> expected, String name) throws IOException {
+        Path file = Files.createTempFile("task1", ".memo");
+        Files.delete(file);
+        try {
+            SimpleLangBytecode.Program compiled = SimpleLangBytecodeEngine.compile(tree);
+            int used;
+            try (SimpleLangMemo memo = new SimpleLangMemo(file, 1024)) {
+                if (!checkMemoRuns(new SimpleLangBytecodeEngine().link(compiled, memo), lines, expected, name)) {
+                    return;
+                }
+                used = memo.used();
+            }
+            try (SimpleLangMemo memo = new SimpleLangMemo(file, 1024)) {
+                if (memo.used() != used) {
+                    System.err.println("Memo table lost entries when reopened for " + name + ": " + memo.stats());
+                }
+                checkMemoRuns(new SimpleLangBytecodeEngine().link(compiled, memo), lines, expected, name);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // A full memo table keeps taking calls in place of older ones, and never answers one with
+    // another's result
+    private static void checkMemoTable() throws IOException {
+        Path file = Files.createTempFile("task1", ".memo");
+        Files.delete(file);
+        try (SimpleLangMemo memo = new SimpleLangMemo(file, 16)) {
+            for (int i = 0; i < 100; i++) {
+                memo.store(42, new int[]{i, -i}, 0, 2, 3 * i);
+            }
+            int found = 0;
+            for (int i = 0; i < 100; i++) {
+                long result = memo.lookup(42, new int[]{i, -i}, 0, 2);
+                if (result != SimpleLangMemo.MISS && result != 3 * i) {
+                    System.err.println("The memo table answered " + result + " for " + i);
+                }
+                found += result == SimpleLangMemo.MISS ? 0 : 1;
+            }
+            if (found == 0 || found > 16 || memo.used() > 16 || memo.lookup(42, new int[]{99, -99}, 0, 2) != 297) {
+                System.err.println("A memo table of 16 slots found " + found + " of 100 calls: " + memo.stats());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
 
-                try (FileReader fr = new FileReader(pathToTests + child.getName() + ".answers"); BufferedReader br = new BufferedReader(fr)) {
-                    String content = br.lines().collect(Collectors.joining("\n"));
-                    if (!content.trim().replace("\r", "").equals(sb.toString().trim().replace("\r", ""))) {
-                        System.err.println("Incorrect output for " + child.getName());
-                        System.err.println("Answers:\n\n" + content);
-                        System.err.println("Output:\n\n" + sb.toString());
+    private static boolean checkMemoRuns(SimpleLangCompiledProgram program, List<String> lines, List<String> expected, String name) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (!Objects.equals(expected.get(i), feed(program, lines.get(i)))) {
+                System.err.println("Memoized run of " + lines.get(i) + " differs for " + name);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs sharing one linked program across threads must each print what a run on its own does
+    private static void checkShared(SimpleLangCompiledProgram program, List<String> lines, List<String> expected, String name, String engineName) {
+        int copies = 4;
+        List<String> actual = IntStream.range(0, copies * lines.size()).parallel()
+                .mapToObj(i -> feed(program, lines.get(i % lines.size())))
+                .collect(Collectors.toList());
+        for (int i = 0; i < actual.size(); i++) {
+            if (!Objects.equals(expected.get(i % lines.size()), actual.get(i))) {
+                System.err.println("Concurrent run of " + lines.get(i % lines.size()) + " differs for " + name + " with " + engineName);
+                return;
+            }
+        }
+    }
+
+    // Task1 --batch prints what running the lines one after the other does, in the same order
+    private static void checkBatch(SimpleLangCompiledProgram program, List<String> lines, String expected, String name, String engineName) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            // a window smaller than the batch, so that some runs wait for earlier ones
+            SimpleLangBatch.run(program, new BufferedReader(new StringReader(String.join("\n", lines) + "\n")), baos,
+                    ForkJoinPool.commonPool(), 2, LIMITS);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!baos.toString().equals(expected)) {
+            System.err.println("Batch output differs for " + name + " with " + engineName);
+        }
+    }
+
+    // Runs sliced by the scheduler as finely as it goes, interleaved on two carriers at
+    // different priorities, must each print what a run on its own does
+    private static void checkScheduled(SimpleLangBytecodeEngine.BytecodeProgram program, List<String> lines, List<String> expected,
+            String name, String engineName) {
+        List<ByteArrayOutputStream> buffers = new ArrayList<>();
+        List<SimpleLangScheduler.Execution> executions = new ArrayList<>();
+        try (SimpleLangScheduler scheduler = new SimpleLangScheduler(2, 1)) {
+            for (int i = 0; i < lines.size(); i++) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                buffers.add(buffer);
+                executions.add(scheduler.submit(program, SimpleLangBatch.arguments(lines.get(i)),
+                        new SimpleLangExecutionContext(new PrintStream(buffer), LIMITS), 1 + i % 3));
+            }
+            // raising a run, waiting or running, changes when it runs and not what it does
+            scheduler.raise(executions.get(0), SimpleLangScheduler.MAX_PRIORITY);
+            for (int i = 0; i < lines.size(); i++) {
+                SimpleLangScheduler.Execution execution = executions.get(i);
+                String actual = finish(buffers.get(i), () -> {
+                    try {
+                        return execution.join();
+                    } catch (CompletionException e) {
+                        throw e.getCause() instanceof RuntimeException cause ? cause : e;
                     }
-                } catch (Exception e) {
-                    System.err.println("Exception when reading answers for " + child.getName());
-                    continue;
+                });
+                if (!Objects.equals(expected.get(i), actual)) {
+                    System.err.println("Scheduled run of " + lines.get(i) + " differs for " + name + " with " + engineName);
+                    return;
                 }
             }
-        } else {
-            System.err.println("Failed to find any testcases!");
         }
     }
-}
\ No newline at end of file
+
+    // The ANTLR lexer is the reference for the hand-written scanner
+    private static void checkScanner(List<Token> expected, byte[] source, String name) {
+        SimpleLangScanner.Tokens actual = SimpleLangScanner.tokenize(ByteBuffer.wrap(source));
+        boolean same = actual.size() == expected.size();
+        for (int i = 0; same && i < actual.size(); i++) {
+            Token token = expected.get(i);
+            same = actual.type(i) == token.getType()
+                    && (token.getType() == Token.EOF || actual.start(i) == token.getStartIndex()
+                    && actual.length(i) == token.getStopIndex() - token.getStartIndex() + 1);
+            // both lexers intern an identifier to the same symbol, with the same String
+            if (same && token.getType() == SimpleLangLexer.Idfr) {
+                int symbol = SimpleLangSymbols.intern(ByteBuffer.wrap(source), actual.start(i), actual.length(i));
+                same = token instanceof SimpleLangSymbols.SymbolToken symbolToken && symbolToken.symbol == symbol
+                        && token.getText() == SimpleLangSymbols.name(symbol);
+            }
+        }
+        if (!same) {
+            System.err.println("Scanner tokens differ from SimpleLangLexer for " + name);
+        }
+    }
+
+    // Given a listener, the scanner reports the same lexical errors as SimpleLangLexer, and skips
+    // the same characters
+    private static void checkLexicalErrors() {
+        String text = "int main() {\n  1 # =x ::\n  $ 2 =\n}=";
+        List<String> expectedErrors = new ArrayList<>();
+        SimpleLangLexer lexer = new SimpleLangLexer(CharStreams.fromString(text));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(collect(expectedErrors));
+        List<Integer> expected = new ArrayList<>();
+        for (Token token : lexer.getAllTokens()) {
+            expected.add(token.getType());
+        }
+        List<String> errors = new ArrayList<>();
+        SimpleLangScanner scanner = new SimpleLangScanner(text.getBytes(StandardCharsets.UTF_8)).reportErrors(collect(errors));
+        List<Integer> actual = new ArrayList<>();
+        while (scanner.next() != Token.EOF) {
+            actual.add(scanner.type);
+        }
+        if (!actual.equals(expected) || !errors.equals(expectedErrors)) {
+            System.err.println("Scanner errors differ from SimpleLangLexer: " + errors + " instead of " + expectedErrors);
+        }
+    }
+
+    private static BaseErrorListener collect(List<String> errors) {
+        return new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                                    String msg, RecognitionException e) {
+                errors.add(line + ":" + charPositionInLine + " " + msg);
+            }
+        };
+    }
+
+    // Parsing every dec as its own chunk must give the same decs as parsing the file in one go
+    private static void checkParallel(SimpleLangParser.ProgContext expected, byte[] source, String name) {
+        SimpleLangParser.ProgContext actual = SimpleLangFrontEnd.parseParallel(ByteBuffer.wrap(source), name, ForkJoinPool.commonPool(), 1);
+        boolean same = actual.dec().size() == expected.dec().size();
+        for (int i = 0; same && i < actual.dec().size(); i++) {
+            same = actual.dec(i).getText().equals(expected.dec(i).getText());
+        }
+        if (!same) {
+            System.err.println("Parallel parse differs from sequential parse for " + name);
+        }
+    }
+
+    // Deleting and reinserting each dec must leave the same layouts as analysing the text afresh
+    private static void checkIncremental(SimpleLangParser.ProgContext expected, byte[] source, String name) {
+        String text = new String(source, StandardCharsets.UTF_8);
+        SimpleLangDocument document = new SimpleLangDocument(text, name);
+        boolean same = sameLayouts(document);
+        for (int i = expected.dec().size() - 1; same && i >= 0; i--) {
+            int start = expected.dec(i).getStart().getStartIndex();
+            int end = expected.dec(i).getStop().getStopIndex() + 1;
+            document.edit(start, end - start, "");
+            same = sameLayouts(document);
+            document.edit(start, 0, text.substring(start, end));
+            same &= document.reparsed() == 1 && sameLayouts(document);
+        }
+        try {
+            document.edit(0, 0, "{");
+            same = false;
+        } catch (RuntimeException e) {
+            document.edit(0, 1, "");
+            same &= !document.broken() && sameLayouts(document) && document.text().equals(text);
+        }
+        if (!same) {
+            System.err.println("Incremental reparse differs from a full parse for " + name);
+        }
+    }
+
+    // Deleting one of two declarations of a name must leave the other's layout
+    private static void checkDuplicates() {
+        String first = "int f() { 1 }\n";
+        String second = "int f() { 2 }\n";
+        boolean same = true;
+        for (int deleted = 0; deleted < 2; deleted++) {
+            SimpleLangDocument document = new SimpleLangDocument(first + second + "int main() { f() }", "duplicates");
+            document.edit(deleted * first.length(), second.length(), "");
+            same &= sameLayouts(document);
+        }
+        if (!same) {
+            System.err.println("Incremental reparse differs from a full parse after deleting a duplicate declaration");
+        }
+    }
+
+    private static boolean sameLayouts(SimpleLangDocument document) {
+        List<FunctionLayout> expected = document.text().isBlank() ? List.of()
+                : FunctionLayout.of(SimpleLangFrontEnd.parse(new SimpleLangScanner.AntlrSource(
+                ByteBuffer.wrap(document.text().getBytes(StandardCharsets.UTF_8)), "<text>"))).values();
+        if (document.layouts().size() != expected.size()) {
+            return false;
+        }
+        for (FunctionLayout layout : expected) {
+            FunctionLayout other = document.layout(layout.symbol);
+            if (other == null || other.returnsUnit != layout.returnsUnit || !sameSlots(other, layout)
+                    || !other.dec.getText().equals(layout.dec.getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameSlots(FunctionLayout a, FunctionLayout b) {
+        if (a.frameSize() != b.frameSize()) {
+            return false;
+        }
+        for (int slot = 0; slot < a.frameSize(); slot++) {
+            if (a.symbolAt(slot) != b.symbolAt(slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}